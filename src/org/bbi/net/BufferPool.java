@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bbi.tools.RingQueue;
+
+/**
+ * Pool of datagram sized buffers shared by every socket in the process.
+ * Buffers are only allocated when the pool runs dry, so once the pool has
+ * grown to the working set, sending and receiving allocate nothing
+ *
+ * @author wira
+ */
+class BufferPool {
+    /**
+     * Maximum number of idle buffers kept in each pool
+     */
+    public static int MAX_IDLE = 4096;
+
+    /**
+     * Direct buffers, used with <code>DatagramChannel</code> so the kernel
+     * copies straight in and out of them
+     */
+    static final BufferPool DIRECT = new BufferPool(true);
+
+    /**
+     * Heap buffers, used with <code>DatagramSocket</code> which needs a
+     * backing array
+     */
+    static final BufferPool HEAP = new BufferPool(false);
+
+    private final boolean direct;
+    private final int capacity;
+    private final RingQueue<Datagram> idle;
+    private final AtomicLong allocated = new AtomicLong();
+
+    BufferPool(boolean direct) {
+        this.direct = direct;
+        this.capacity = SockUDP.UDP_MAX_DATAGRAM_SIZE;
+        idle = new RingQueue<>(MAX_IDLE);
+    }
+
+    /**
+     * Get an empty buffer
+     *
+     * @return datagram with a cleared buffer
+     */
+    Datagram acquire() {
+        Datagram d = idle.poll();
+        if(d == null) {
+            allocated.incrementAndGet();
+            d = new Datagram(this, direct ? ByteBuffer.allocateDirect(capacity) :
+                                            ByteBuffer.allocate(capacity));
+        }
+        d.buf.clear();
+        return d;
+    }
+
+    void release(Datagram d) {
+        // when the pool is full the buffer is simply left to the collector
+        idle.offer(d);
+    }
+
+    /**
+     * Get the size of the buffers in this pool
+     *
+     * @return capacity in bytes
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of buffers allocated since the pool was created
+     *
+     * @return number of buffers
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+}
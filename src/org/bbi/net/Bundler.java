@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Packs small datagrams to the same host into one
+ * {@link Frame#BUNDLE BUNDLE} frame, Nagle style. The first datagram for a
+ * host opens a bundle that is sent when it is full, when
+ * <code>FLUSH_DELAY_US</code> have passed, or when it is flushed because
+ * something else is about to go to that host. A bundle that only ever got
+ * one datagram is sent as that datagram alone.</p>
+ *
+ * <p>There is one instance per socket, shared by every {@link SockUDP}
+ * wrapping it, with a thread that sends the bundles whose time is up.
+ * Bundles are sent with the lock held, so a datagram that flushes its
+ * host's bundle before going out can never overtake it.</p>
+ *
+ * @author wira
+ */
+public class Bundler implements Runnable {
+    /**
+     * Longest time a datagram waits in a bundle for company
+     */
+    public static long FLUSH_DELAY_US = 200;
+
+    /**
+     * Largest bundle, small enough to get through any path without
+     * fragmentation
+     */
+    public static int MAX_SIZE = 1200;
+
+    /**
+     * Largest datagram that is bundled, anything bigger is sent on its own
+     */
+    public static int MESSAGE_SIZE = 512;
+
+    private static final int ENTRY_HEADER_SIZE = 2;
+
+    private final DatagramTransport t;
+    private final SendLanes lanes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition opened = lock.newCondition();
+    private final HashMap<SocketAddress, Bundle> open = new HashMap<>();
+
+    /**
+     * Open bundles in the order they were opened, which is also the order
+     * their deadlines expire in
+     */
+    private final ArrayDeque<Bundle> deadlines = new ArrayDeque<>();
+    private final AtomicLong bundled = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private boolean started;
+
+    Bundler(DatagramTransport t, SendLanes lanes) {
+        this.t = t;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Check whether a datagram is small enough to bundle
+     *
+     * @param d the datagram
+     * @return true if it is
+     */
+    static boolean fits(Datagram d) {
+        return d.length() <= Math.min(MESSAGE_SIZE,
+                MAX_SIZE - Frame.BUNDLE_HEADER_SIZE - ENTRY_HEADER_SIZE);
+    }
+
+    /**
+     * Add a datagram to the bundle of its host. The datagram is released
+     *
+     * @param addr address of the host
+     * @param d the datagram, small enough to {@link #fits(Datagram) fit}
+     * @param control true if the bundle should go on the control lane
+     * @throws IOException if a full bundle could not be sent
+     */
+    void add(SocketAddress addr, Datagram d, boolean control)
+            throws IOException {
+        lock.lock();
+        try {
+            Bundle b = open.get(addr);
+            if(b != null && b.d.buf.remaining() < ENTRY_HEADER_SIZE + d.length()) {
+                send(b);
+                b = null;
+            }
+            if(b == null) {
+                b = new Bundle(addr, t.pool().acquire(),
+                               System.nanoTime() + FLUSH_DELAY_US * 1000);
+                Frame.putHeader(b.d.buf, Frame.BUNDLE);
+                b.d.buf.limit(MAX_SIZE);
+                open.put(addr, b);
+                deadlines.add(b);
+                if(!started) {
+                    started = true;
+                    Thread th = new Thread(this, "Bundler[" + t.getLocalPort() + "]");
+                    th.setDaemon(true);
+                    th.start();
+                }
+                opened.signal();
+            }
+            b.d.buf.putShort((short) d.length());
+            b.d.buf.put(d.buf);
+            b.count++;
+            b.control |= control;
+            bundled.incrementAndGet();
+        } finally {
+            lock.unlock();
+            d.release();
+        }
+    }
+
+    /**
+     * Send the bundle of a host right away, if it has one
+     *
+     * @param addr address of the host
+     * @throws IOException if the bundle could not be sent
+     */
+    void flush(SocketAddress addr) throws IOException {
+        lock.lock();
+        try {
+            Bundle b = open.get(addr);
+            if(b != null) {
+                send(b);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        lock.lock();
+        try {
+            while(!t.isClosed()) {
+                Bundle b = deadlines.peek();
+                if(b == null) {
+                    opened.await(1, TimeUnit.SECONDS);
+                    continue;
+                }
+                long wait = b.deadline - System.nanoTime();
+                if(wait > 0) {
+                    opened.awaitNanos(wait);
+                    continue;
+                }
+                try {
+                    send(b);
+                } catch(IOException ioe) {
+                    Log.d(3, this + ": " + UDPHost.sockAddress(b.addr) +
+                             ": " + ioe);
+                }
+            }
+        } catch(InterruptedException ie) {
+            Log.d(1, this + ": interrupted");
+        } finally {
+            for(Bundle b : deadlines) {
+                b.d.release();
+            }
+            deadlines.clear();
+            open.clear();
+            started = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send a bundle and forget it. Called with the lock held
+     */
+    private void send(Bundle b) throws IOException {
+        open.remove(b.addr);
+        deadlines.remove(b);
+        Datagram d = b.d;
+        d.buf.flip();
+        if(b.count == 1) {
+            // no company came along, send it as it was
+            d.buf.position(Frame.BUNDLE_HEADER_SIZE + ENTRY_HEADER_SIZE);
+        }
+        try {
+            if(b.control) {
+                lanes.sendControl(d.buf, b.addr);
+            } else {
+                t.send(d.buf, b.addr);
+            }
+            sent.incrementAndGet();
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Get the number of datagrams that went into bundles
+     *
+     * @return number of datagrams
+     */
+    public long getBundledCount() {
+        return bundled.get();
+    }
+
+    /**
+     * Get the number of bundles sent, counting those that went out with a
+     * single datagram
+     *
+     * @return number of bundles
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Bundler[" + t.getLocalPort() + "]";
+    }
+
+    private static class Bundle {
+        final SocketAddress addr;
+        final Datagram d;
+        final long deadline;
+        int count;
+        boolean control;
+
+        Bundle(SocketAddress addr, Datagram d, long deadline) {
+            this.addr = addr;
+            this.d = d;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Transport over a blocking <code>DatagramChannel</code>, using direct
+ * buffers so datagrams go between the kernel and the pool without an
+ * intermediate copy
+ *
+ * @author wira
+ */
+class ChannelTransport implements DatagramTransport {
+    private final DatagramChannel ch;
+
+    ChannelTransport(DatagramChannel ch) throws IOException {
+        if(!ch.isBlocking()) {
+            throw new IOException("DatagramChannel must be in blocking mode");
+        }
+        this.ch = ch;
+    }
+
+    @Override
+    public Object key() {
+        return ch;
+    }
+
+    @Override
+    public BufferPool pool() {
+        return BufferPool.DIRECT;
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst) throws IOException {
+        SocketAddress from = ch.receive(dst);
+        dst.flip();
+        return from;
+    }
+
+    @Override
+    public void send(ByteBuffer src, SocketAddress target) throws IOException {
+        ch.send(src, target);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean setDontFragment() {
+        // jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT, on newer runtimes
+        for(SocketOption<?> o : ch.supportedOptions()) {
+            if(o.name().equals("IP_DONTFRAGMENT") && o.type() == Boolean.class) {
+                try {
+                    ch.setOption((SocketOption<Boolean>) o, true);
+                    return true;
+                } catch(IOException | UnsupportedOperationException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return ch.socket().getLocalPort();
+    }
+
+    @Override
+    public int getSoTimeout() throws IOException {
+        return ch.socket().getSoTimeout();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !ch.isOpen();
+    }
+}
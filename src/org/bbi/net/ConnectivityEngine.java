@@ -0,0 +1,332 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bbi.tools.HashedWheelTimer;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Finds which of the candidate addresses of a peer can be reached, in the
+ * manner of ICE connectivity checks. A {@link Frame#BIND BIND} is sent to
+ * every candidate at once and retried, quickly at first and then backing
+ * off, until the candidate answers or the check times out. The peer is
+ * expected to check toward this host at the same time, which opens the
+ * NAT bindings on both sides.</p>
+ *
+ * <p>Once a candidate answers, the check waits a little longer for faster
+ * ones, at least as long as the first answer took, then settles on the
+ * candidate with the lowest round trip time.</p>
+ *
+ * <p>Every check of every socket is driven from the thread of one shared
+ * {@link HashedWheelTimer}, so thousands of checks running at the same time
+ * cost timer entries, not threads. There is one engine per socket, and the
+ * socket's demultiplexer hands it the answers.</p>
+ *
+ * @author wira
+ */
+public class ConnectivityEngine {
+    /**
+     * Time before the first retry of a candidate, doubled on every retry
+     */
+    public static long FIRST_RETRY_MS = 50;
+
+    /**
+     * Longest time between retries of a candidate
+     */
+    public static long MAX_RETRY_MS = 1000;
+
+    /**
+     * Time a check is given to find a working candidate
+     */
+    public static long CHECK_TIMEOUT_MS = 10000;
+
+    /**
+     * Least time to wait for faster candidates after the first answer
+     */
+    public static long NOMINATION_WAIT_MS = 20;
+
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * Retries of a candidate whose send times are kept, the low bits of a
+     * transaction
+     */
+    private static final int ATTEMPT_BITS = 4;
+    private static final int ATTEMPT_MASK = (1 << ATTEMPT_BITS) - 1;
+
+    private static HashedWheelTimer timer;
+
+    private final DatagramTransport t;
+    private final ConcurrentHashMap<Integer, Probe> probes =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger tokens =
+            new AtomicInteger(new Random().nextInt());
+
+    ConnectivityEngine(DatagramTransport t) {
+        this.t = t;
+    }
+
+    private static synchronized HashedWheelTimer timer() {
+        if(timer == null) {
+            timer = new HashedWheelTimer(TICK_MS, WHEEL_SIZE);
+            timer.start();
+        }
+        return timer;
+    }
+
+    /**
+     * Start checking the candidates of a peer
+     *
+     * @param candidates addresses the peer may be reached at, like its
+     * public and private endpoints
+     * @return the check
+     */
+    public Check check(List<SocketAddress> candidates) {
+        final Check c = new Check(candidates);
+        HashedWheelTimer w = timer();
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < c.candidates.size(); i++) {
+            // a token is only reused after 2^28 probes
+            int token = tokens.incrementAndGet() & (-1 >>> ATTEMPT_BITS);
+            Probe p = new Probe(c, i, token);
+            probes.put(token, p);
+            w.schedule(p, now);
+        }
+        w.schedule(new HashedWheelTimer.Task() {
+            @Override
+            public long expire(long now) {
+                c.nominate();
+                return 0;
+            }
+        }, now + CHECK_TIMEOUT_MS);
+        return c;
+    }
+
+    /**
+     * Answer a connectivity check. Called on the demultiplexer thread
+     *
+     * @param t transport the check arrived on
+     * @param d the check, released by this call
+     */
+    static void answer(DatagramTransport t, Datagram d) {
+        try {
+            d.buf.put(2, (byte) Frame.BIND_ACK);
+            d.buf.position(0);
+            d.buf.limit(Frame.BIND_ACK_HEADER_SIZE);
+            t.send(d.buf, d.source);
+        } catch(IOException ioe) {
+            Log.d(3, "bind: answer to " + UDPHost.sockAddress(d.source) +
+                     ": " + ioe);
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Take an answer to a check. Called on the demultiplexer thread
+     *
+     * @param from address the answer came from
+     * @param txn transaction of the answer
+     */
+    void onAck(SocketAddress from, int txn) {
+        long now = System.currentTimeMillis();
+        Probe p = probes.get(txn >>> ATTEMPT_BITS);
+        // only the candidate checked can answer for it
+        if(p == null || !p.addr.equals(from)) {
+            return;
+        }
+        probes.remove(p.token, p);
+        p.check.answered(p.index, now - p.sentAt(txn));
+    }
+
+    /**
+     * Retries of one candidate, run on the timer thread
+     */
+    private class Probe implements HashedWheelTimer.Task {
+        final Check check;
+        final int index;
+        final SocketAddress addr;
+        final int token;
+        final long[] sentAt = new long[ATTEMPT_MASK + 1];
+        int attempt = 0;
+
+        Probe(Check check, int index, int token) {
+            this.check = check;
+            this.index = index;
+            this.addr = check.candidates.get(index);
+            this.token = token;
+        }
+
+        @Override
+        public long expire(long now) {
+            if(check.isDone() || probes.get(token) != this) {
+                probes.remove(token, this);
+                return 0;
+            }
+            int txn = (token << ATTEMPT_BITS) | (attempt & ATTEMPT_MASK);
+            synchronized(this) {
+                sentAt[attempt & ATTEMPT_MASK] = now;
+            }
+            Datagram d = t.pool().acquire();
+            try {
+                Frame.putHeader(d.buf, Frame.BIND);
+                d.buf.putInt(txn);
+                d.buf.flip();
+                t.send(d.buf, addr);
+            } catch(IOException ioe) {
+                // an unreachable private address, keep trying the others
+                Log.d(3, "bind: " + UDPHost.sockAddress(addr) + ": " + ioe);
+            } finally {
+                d.release();
+            }
+            long retry = Math.min(FIRST_RETRY_MS << Math.min(attempt, 20),
+                                  MAX_RETRY_MS);
+            attempt++;
+            return now + retry;
+        }
+
+        synchronized long sentAt(int txn) {
+            return sentAt[txn & ATTEMPT_MASK];
+        }
+    }
+
+    /**
+     * A check of the candidates of a peer
+     */
+    public class Check {
+        private final List<SocketAddress> candidates;
+        private final long[] rtt;
+        private int answers = 0;
+        private boolean done = false;
+        private SocketAddress selected;
+
+        Check(List<SocketAddress> candidates) {
+            this.candidates = Collections.unmodifiableList(
+                    new ArrayList<>(candidates));
+            rtt = new long[candidates.size()];
+            for(int i = 0; i < rtt.length; i++) {
+                rtt[i] = -1;
+            }
+        }
+
+        private synchronized void answered(int index, long ms) {
+            if(done || rtt[index] >= 0) {
+                return;
+            }
+            rtt[index] = ms;
+            if(++answers == rtt.length) {
+                nominate();
+            } else if(answers == 1) {
+                timer().schedule(new HashedWheelTimer.Task() {
+                    @Override
+                    public long expire(long now) {
+                        nominate();
+                        return 0;
+                    }
+                }, System.currentTimeMillis() +
+                   Math.max(NOMINATION_WAIT_MS, ms));
+            }
+        }
+
+        /**
+         * Settle on the fastest candidate that answered, if any
+         */
+        private synchronized void nominate() {
+            if(done) {
+                return;
+            }
+            long best = -1;
+            for(int i = 0; i < rtt.length; i++) {
+                if(rtt[i] >= 0 && (best < 0 || rtt[i] < best)) {
+                    best = rtt[i];
+                    selected = candidates.get(i);
+                }
+            }
+            done = true;
+            notifyAll();
+            Log.d(2, "bind: " + (selected == null ? "no candidate answered" :
+                     "selected " + UDPHost.sockAddress(selected) +
+                     " rtt=" + best + "ms"));
+        }
+
+        /**
+         * Stop the check. The fastest candidate that answered so far, if
+         * any, is selected
+         */
+        public void cancel() {
+            nominate();
+        }
+
+        /**
+         * Wait for the check to settle
+         *
+         * @param timeout maximum time to wait in milliseconds, 0 to wait
+         * until the check times out
+         * @return the selected candidate, <code>null</code> if none
+         * answered or the wait timed out
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public synchronized SocketAddress await(long timeout)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while(!done) {
+                long left = timeout == 0 ? 0 : end - System.currentTimeMillis();
+                if(timeout != 0 && left <= 0) {
+                    return null;
+                }
+                wait(left);
+            }
+            return selected;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Get the selected candidate
+         *
+         * @return the candidate, <code>null</code> if none is selected yet
+         */
+        public synchronized SocketAddress getSelected() {
+            return selected;
+        }
+
+        public List<SocketAddress> getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * Get the round trip time of the first answer of a candidate
+         *
+         * @param addr the candidate
+         * @return time in milliseconds, -1 if it has not answered
+         */
+        public synchronized long getRTT(SocketAddress addr) {
+            int i = candidates.indexOf(addr);
+            return i < 0 ? -1 : rtt[i];
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import org.bbi.net.cc.Pacer;
+
+/**
+ * A datagram held in a pooled buffer. The contents are between position 0
+ * and the buffer's limit. Whoever ends up owning a datagram must
+ * {@link #release() release} it exactly once, after which it must not be
+ * touched again
+ *
+ * @author wira
+ */
+class Datagram {
+    final ByteBuffer buf;
+    final BufferPool pool;
+    SocketAddress source;
+
+    // set while queued in a SendEngine
+    SocketAddress target;
+    SendFuture future;
+    Pacer pacer;
+    boolean control;
+    boolean reserved;
+    long slot;
+
+    Datagram(BufferPool pool, ByteBuffer buf) {
+        this.pool = pool;
+        this.buf = buf;
+    }
+
+    int length() {
+        return buf.limit();
+    }
+
+    int getByte(int index) {
+        return buf.get(index) & 0xff;
+    }
+
+    int getShort(int index) {
+        return buf.getShort(index) & 0xffff;
+    }
+
+    long getInt(int index) {
+        return buf.getInt(index) & 0xffffffffL;
+    }
+
+    long getLong(int index) {
+        return buf.getLong(index);
+    }
+
+    /**
+     * Copy part of the datagram into an array
+     *
+     * @param off offset into the datagram
+     * @param dst destination array
+     * @param dstOff offset into the destination
+     * @param len number of bytes
+     */
+    void copyTo(int off, byte[] dst, int dstOff, int len) {
+        buf.position(off);
+        buf.get(dst, dstOff, len);
+        buf.position(0);
+    }
+
+    /**
+     * Copy the datagram into a newly allocated <code>DatagramPacket</code>,
+     * for the public API that predates the pool
+     *
+     * @return packet with the same contents and source
+     */
+    DatagramPacket toPacket() {
+        byte[] b = new byte[length()];
+        copyTo(0, b, 0, b.length);
+        // the constructor taking an address throws SocketException on Java 7
+        DatagramPacket p = new DatagramPacket(b, b.length);
+        p.setSocketAddress(source);
+        return p;
+    }
+
+    void release() {
+        source = null;
+        target = null;
+        future = null;
+        pacer = null;
+        reserved = false;
+        pool.release(this);
+    }
+}
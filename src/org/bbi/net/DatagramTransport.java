@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The endpoint {@link SockUDP} sends and receives datagrams through, either
+ * a classic <code>DatagramSocket</code> or an NIO
+ * <code>DatagramChannel</code>
+ *
+ * @author wira
+ */
+interface DatagramTransport {
+    /**
+     * Get the underlying socket or channel. Transports wrapping the same
+     * object share one {@link Demultiplexer}
+     *
+     * @return socket or channel
+     */
+    Object key();
+
+    /**
+     * Get the pool whose buffers this transport works best with
+     *
+     * @return buffer pool
+     */
+    BufferPool pool();
+
+    /**
+     * Block until a datagram arrives. Only the demultiplexer thread calls
+     * this
+     *
+     * @param dst cleared buffer, flipped on return so the datagram is between
+     *            position 0 and the limit
+     * @return the sender's address
+     * @throws IOException if the endpoint failed or was closed
+     */
+    SocketAddress receive(ByteBuffer dst) throws IOException;
+
+    /**
+     * Send the remaining bytes of a buffer as one datagram
+     *
+     * @param src datagram contents
+     * @param target destination address
+     * @throws IOException if the datagram could not be sent
+     */
+    void send(ByteBuffer src, SocketAddress target) throws IOException;
+
+    /**
+     * Ask for the don't-fragment bit on outgoing datagrams, where the
+     * platform offers it
+     *
+     * @return true if it is set
+     */
+    boolean setDontFragment();
+
+    int getLocalPort();
+
+    int getSoTimeout() throws IOException;
+
+    boolean isClosed();
+}
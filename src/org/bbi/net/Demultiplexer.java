@@ -0,0 +1,1072 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Receive side of a UDP socket. A single thread owns the socket's receive
+ * call and routes every datagram into a bounded queue for its source
+ * address. Readers block on the queue of the host they are talking to, so
+ * nobody spins and readers of different hosts never touch each other's
+ * data.</p>
+ *
+ * <p>Readers that accept datagrams from any host are served from a queue of
+ * hosts that have data waiting. Each host is in that queue at most once, so
+ * it stays as small as the number of hosts.</p>
+ *
+ * <p>Datagrams wrapped in a {@link Frame#STREAM STREAM} frame are unwrapped
+ * and queued per host <em>and</em> stream, with their own quota and their
+ * own queue of hosts with data waiting, so streams to the same host never
+ * see each other's datagrams. Everything else belongs to stream 0.</p>
+ *
+ * <p>Datagrams wrapped in a {@link Frame#CONTROL CONTROL} frame are queued
+ * in a lane of their own and handed to readers before any bulk data of the
+ * same host and stream, and their host goes to the front of the queue of
+ * hosts with data waiting. Control datagrams have their own quota, so a host
+ * that floods a stream with bulk data cannot get its control datagrams
+ * dropped.</p>
+ *
+ * <p>A {@link Frame#BUNDLE BUNDLE} frame is taken apart and each datagram in
+ * it is routed as if it had arrived on its own.</p>
+ *
+ * <p>A timed {@link Frame#MSG MSG} is acknowledged as soon as it is queued,
+ * and acknowledgements are handed straight to the socket's
+ * {@link TimedDelivery}.</p>
+ *
+ * <p>A connectivity check, {@link Frame#BIND BIND}, is answered right away
+ * from the receive thread, and answers go to the socket's
+ * {@link ConnectivityEngine}.</p>
+ *
+ * <p>A {@link Frame#KEEPALIVE KEEPALIVE} frame has done its work once it
+ * got through the NATs on the way, and is dropped.</p>
+ *
+ * <p>A {@link Frame#RELAY RELAY} frame is forwarded by the socket's
+ * {@link Relay} if it has one. Otherwise it is unwrapped and queued as
+ * coming from the peer its session was opened with, see
+ * {@link #addRelaySession(int, SocketAddress, SocketAddress)
+ * addRelaySession}, and dropped if the session is unknown or the frame did
+ * not come from the relay server.</p>
+ *
+ * <p>Besides the quota of each queue, there are at most
+ * {@link #MAX_QUEUES} queues and {@link #TOTAL_QUOTA} bytes queued in all
+ * of them, so a flood from many (possibly spoofed) sources cannot take more
+ * memory than one socket is allowed. At the queue limit, queues that are
+ * empty and have no reader are discarded at once, whatever their age. A
+ * datagram from a new host and stream that still finds no room, or any
+ * datagram beyond the byte limit, is dropped and counted.</p>
+ *
+ * <p>Datagrams are received into buffers from a {@link BufferPool} and the
+ * per-host queues are array rings, so once the pool and the rings have
+ * grown to the traffic, routing a datagram allocates nothing.</p>
+ *
+ * <p>There is one instance per socket or channel, shared by all
+ * {@link SockUDP} objects wrapping it. The thread exits when the socket is
+ * closed, waking up all blocked readers with an <code>IOException</code>.
+ * </p>
+ *
+ * @author wira
+ */
+public class Demultiplexer implements Runnable {
+    /**
+     * Maximum number of bytes of pooled buffers queued for a single source.
+     * Datagrams beyond this are dropped and counted. Every queued datagram
+     * holds a whole <code>UDP_MAX_DATAGRAM_SIZE</code> buffer, whatever its
+     * length
+     */
+    public static int PEER_QUOTA = 8 * 1024 * 1024;
+
+    /**
+     * Queues that have been empty and unused for this long are discarded
+     */
+    public static long IDLE_PEER_MS = 60000;
+
+    /**
+     * Maximum number of control datagrams queued for a single source and
+     * stream, on top of <code>PEER_QUOTA</code>
+     */
+    public static int CONTROL_QUOTA = 256;
+
+    /**
+     * Maximum number of bytes of pooled buffers queued for all sources
+     * together, control datagrams included
+     */
+    public static long TOTAL_QUOTA = 64L * 1024 * 1024;
+
+    /**
+     * Maximum number of host and stream queues. Datagrams that would need a
+     * new queue beyond this are dropped until idle queues are discarded
+     */
+    public static int MAX_QUEUES = 16384;
+
+    private static final Map<Object, Demultiplexer> INSTANCES =
+            new IdentityHashMap<>();
+
+    private final DatagramTransport t;
+    private final BufferPool pool;
+    private final ConcurrentHashMap<Key, PeerQueue> peers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, LinkedBlockingDeque<PeerQueue>> readyQueues =
+            new ConcurrentHashMap<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicInteger queues = new AtomicInteger();
+    private final PeerQueue closedMarker = 
+            new PeerQueue(null, 0, null, queued);
+
+    /**
+     * Lookup key reused by the receive thread
+     */
+    private final Key lookup = new Key(null, 0);
+    private final AtomicLong drops = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile PathMTU pathMTU;
+    private volatile SendLanes sendLanes;
+    private volatile Bundler bundler;
+    private volatile SendEngine sendEngine;
+    private volatile TimedDelivery timedDelivery;
+    private volatile ConnectivityEngine connectivity;
+    private volatile Relay relay;
+    private final ConcurrentHashMap<Integer, SocketAddress[]> relayed =
+            new ConcurrentHashMap<>();
+    private volatile long lastAccess;
+    private long lastSweep;
+    private long lastFullSweep;
+
+    private Demultiplexer(DatagramTransport t) {
+        this.t = t;
+        this.pool = t.pool();
+        lastAccess = System.currentTimeMillis();
+        lastSweep = lastAccess;
+    }
+
+    /**
+     * Get the demultiplexer of a socket, starting its receive thread if
+     * there is none yet
+     *
+     * @param s the socket
+     * @return the demultiplexer
+     */
+    public static Demultiplexer of(DatagramSocket s) {
+        return of(new SocketTransport(s));
+    }
+
+    /**
+     * Get the demultiplexer of a blocking channel, starting its receive
+     * thread if there is none yet
+     *
+     * @param ch the channel
+     * @return the demultiplexer
+     * @throws IOException if the channel is not in blocking mode
+     */
+    public static Demultiplexer of(DatagramChannel ch) throws IOException {
+        return of(new ChannelTransport(ch));
+    }
+
+    static Demultiplexer of(DatagramTransport t) {
+        synchronized(INSTANCES) {
+            Demultiplexer d = INSTANCES.get(t.key());
+            if(d == null) {
+                d = new Demultiplexer(t);
+                INSTANCES.put(t.key(), d);
+                Thread th = new Thread(d, "Demultiplexer[" + t.getLocalPort() + "]");
+                th.setDaemon(true);
+                th.start();
+            }
+            return d;
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(1, this + ": run");
+        try {
+            while(!t.isClosed()) {
+                Datagram d = pool.acquire();
+                try {
+                    d.source = t.receive(d.buf);
+                } catch(IOException ioe) {
+                    d.release();
+                    throw ioe;
+                }
+                route(d);
+            }
+        } catch(IOException ioe) {
+            Log.d(1, this + ": " + ioe);
+        } finally {
+            close();
+        }
+        Log.d(1, this + ": exit");
+    }
+
+    private void route(Datagram d) {
+        SocketAddress server = null;
+        int session = 0;
+        if(Frame.isExtended(d.buf) && Frame.type(d.buf) == Frame.RELAY &&
+                d.length() >= Frame.RELAY_HEADER_SIZE) {
+            Relay r = relay;
+            if(r != null) {
+                r.forward(t, d);
+                return;
+            }
+            // server and peer of the session
+            session = (int) d.getInt(3);
+            SocketAddress[] path = relayed.get(session);
+            if(path == null || !path[0].equals(d.source)) {
+                d.release();
+                return;
+            }
+            server = path[0];
+            // relayed datagrams are queued as if the peer had sent them
+            unwrap(d, Frame.RELAY_HEADER_SIZE);
+            d.source = path[1];
+        }
+        SocketAddress from = d.source;
+        int stream = 0;
+        boolean control = false;
+        if(Frame.isExtended(d.buf) && Frame.type(d.buf) == Frame.BUNDLE) {
+            unbundle(d);
+            return;
+        }
+        if(Frame.isExtended(d.buf) && Frame.type(d.buf) == Frame.KEEPALIVE) {
+            d.release();
+            return;
+        }
+        if(Frame.isExtended(d.buf) && Frame.type(d.buf) == Frame.CONTROL) {
+            control = true;
+            unwrap(d, Frame.CONTROL_HEADER_SIZE);
+        }
+        if(Frame.isExtended(d.buf) && d.length() >= Frame.STREAM_HEADER_SIZE) {
+            int type = Frame.type(d.buf);
+            if(type == Frame.STREAM) {
+                stream = d.getShort(3);
+                unwrap(d, Frame.STREAM_HEADER_SIZE);
+            } else if(type == Frame.PROBE && 
+                      d.length() >= Frame.PROBE_HEADER_SIZE) {
+                getPathMTU().answer(d);
+                return;
+            } else if(type == Frame.PROBE_ACK && 
+                      d.length() >= Frame.PROBE_ACK_HEADER_SIZE) {
+                PathMTU pm = pathMTU;
+                if(pm != null) {
+                    pm.onProbeAck(from, d.getShort(3), d.getShort(5));
+                }
+                d.release();
+                return;
+            } else if(type == Frame.BIND && 
+                      d.length() >= Frame.BIND_HEADER_SIZE) {
+                ConnectivityEngine.answer(t, d);
+                return;
+            } else if(type == Frame.BIND_ACK && 
+                      d.length() >= Frame.BIND_ACK_HEADER_SIZE) {
+                ConnectivityEngine ce = connectivity;
+                if(ce != null) {
+                    ce.onAck(from, (int) d.getInt(3));
+                }
+                d.release();
+                return;
+            } else if(type == Frame.ACK && 
+                      d.length() >= Frame.ACK_HEADER_SIZE) {
+                TimedDelivery td = timedDelivery;
+                if(td != null) {
+                    td.onAck(from, d.getShort(3), (int) d.getInt(5));
+                }
+                d.release();
+                return;
+            }
+        }
+        // acknowledged once it is queued, a message dropped by the quota
+        // has to be sent again
+        boolean timed = Frame.isExtended(d.buf) && 
+                        Frame.type(d.buf) == Frame.MSG &&
+                        d.length() >= Frame.MSG_HEADER_SIZE;
+        int seq = timed ? (int) d.getInt(3) : 0;
+        PeerQueue q = peers.get(lookup.set(from, stream));
+        if(q == null) {
+            if(queues.get() >= MAX_QUEUES) {
+                // make room from queues that are empty and not read, at
+                // most once a second
+                long now = System.currentTimeMillis();
+                if(now - lastFullSweep >= 1000) {
+                    lastFullSweep = now;
+                    sweep(now, 0);
+                }
+            }
+            if(queues.get() >= MAX_QUEUES) {
+                drops.incrementAndGet();
+                if(Log.debugLevel >= 3) {
+                    Log.d(3, this + ": queue limit reached, dropped " + 
+                             d.length() + " bytes from " + 
+                             UDPHost.sockAddress(from));
+                }
+                d.release();
+                return;
+            }
+            PeerQueue n = new PeerQueue(from, stream, ready(stream), queued);
+            q = peers.putIfAbsent(new Key(from, stream), n);
+            if(q == null) {
+                q = n;
+                queues.incrementAndGet();
+            }
+        }
+        if(!q.offer(d, control)) {
+            drops.incrementAndGet();
+            if(Log.debugLevel >= 3) {
+                Log.d(3, this + ": quota exceeded, dropped " + d.length() +
+                         " bytes from " + UDPHost.sockAddress(from));
+            }
+            d.release();
+            return;
+        }
+        if(timed) {
+            getTimedDelivery().acknowledge(from, stream, seq, server, session);
+        }
+        if(q.announced.compareAndSet(false, true)) {
+            if(control) {
+                q.ready.offerFirst(q);
+            } else {
+                q.ready.offer(q);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if(now - lastSweep > IDLE_PEER_MS) {
+            lastSweep = now;
+            sweep(now, IDLE_PEER_MS);
+        }
+    }
+
+    /**
+     * Route the datagrams of a bundle, each in a pooled buffer of its own.
+     * A malformed entry ends the bundle
+     *
+     * @param b the bundle, released by this call
+     */
+    private void unbundle(Datagram b) {
+        int end = b.length();
+        int off = Frame.BUNDLE_HEADER_SIZE;
+        while(off + 2 <= end) {
+            int len = b.getShort(off);
+            off += 2;
+            if(len == 0 || off + len > end) {
+                break;
+            }
+            Datagram d = pool.acquire();
+            b.buf.limit(off + len).position(off);
+            d.buf.put(b.buf);
+            d.buf.flip();
+            b.buf.limit(end).position(0);
+            d.source = b.source;
+            if(Frame.isExtended(d.buf) && Frame.type(d.buf) == Frame.BUNDLE) {
+                // bundles are never nested
+                d.release();
+            } else {
+                route(d);
+            }
+            off += len;
+        }
+        b.release();
+    }
+
+    /**
+     * Strip a frame header off a datagram, leaving what it wraps between
+     * position 0 and the limit
+     */
+    private static void unwrap(Datagram d, int header) {
+        d.buf.position(header);
+        d.buf.compact();
+        d.buf.flip();
+    }
+
+    /**
+     * Discard queues of hosts that have gone quiet. Runs on the receive
+     * thread, so no datagram can be routed to a queue while it is removed
+     *
+     * @param idle milliseconds a queue must have been empty and unused
+     */
+    private void sweep(long now, long idle) {
+        for(PeerQueue q : peers.values()) {
+            if(q.isEmpty() && now - q.lastAccess >= idle &&
+                    q.readers.compareAndSet(0, -1)) {
+                if(peers.remove(new Key(q.addr, q.stream), q)) {
+                    queues.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void announce(PeerQueue q) {
+        if(!q.isEmpty() && q.announced.compareAndSet(false, true)) {
+            q.ready.offer(q);
+        }
+    }
+
+    /**
+     * Get the queue of hosts with data waiting on a stream
+     */
+    private LinkedBlockingDeque<PeerQueue> ready(int stream) {
+        LinkedBlockingDeque<PeerQueue> r = readyQueues.get(stream);
+        if(r == null) {
+            LinkedBlockingDeque<PeerQueue> n = new LinkedBlockingDeque<>();
+            r = readyQueues.putIfAbsent(stream, n);
+            if(r == null) {
+                r = n;
+                if(closed) {
+                    r.offer(closedMarker);
+                }
+            }
+        }
+        return r;
+    }
+
+    private void close() {
+        closed = true;
+        synchronized(INSTANCES) {
+            INSTANCES.remove(t.key());
+        }
+        for(PeerQueue q : peers.values()) {
+            q.kill();
+        }
+        for(LinkedBlockingDeque<PeerQueue> r : readyQueues.values()) {
+            r.offer(closedMarker);
+        }
+    }
+
+    private static IOException closedException() {
+        return new SocketException("Socket is closed");
+    }
+
+    /**
+     * Get the queue of a host and register as its reader
+     */
+    private PeerQueue attach(SocketAddress addr, int stream) throws IOException {
+        Key key = new Key(addr, stream);
+        while(true) {
+            if(closed) {
+                throw closedException();
+            }
+            PeerQueue q = peers.get(key);
+            if(q == null) {
+                PeerQueue n = new PeerQueue(addr, stream, ready(stream),
+                                            queued);
+                q = peers.putIfAbsent(key, n);
+                if(q == null) {
+                    q = n;
+                    queues.incrementAndGet();
+                    if(closed) {
+                        q.kill();
+                    }
+                }
+            }
+            int r;
+            while((r = q.readers.get()) >= 0) {
+                if(q.readers.compareAndSet(r, r + 1)) {
+                    return q;
+                }
+            }
+            // swept away under us, get the new one
+        }
+    }
+
+    /**
+     * Receive a datagram from the given host
+     *
+     * @param addr address of the host
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram
+     * @throws SocketTimeoutException if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    public DatagramPacket read(SocketAddress addr, long timeout)
+            throws IOException {
+        return read(addr, 0, timeout);
+    }
+
+    /**
+     * Receive a datagram from the given host on a stream
+     *
+     * @param addr address of the host
+     * @param stream stream number, 0 for datagrams not sent on a stream
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram, without the stream frame header
+     * @throws SocketTimeoutException if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    public DatagramPacket read(SocketAddress addr, int stream, long timeout)
+            throws IOException {
+        Datagram d = receive(addr, stream, timeout);
+        DatagramPacket p = d.toPacket();
+        d.release();
+        return p;
+    }
+
+    /**
+     * Receive a pooled datagram from the given host. The caller must
+     * release it
+     *
+     * @param addr address of the host
+     * @param stream stream number
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram
+     * @throws SocketTimeoutException if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    Datagram receive(SocketAddress addr, int stream, long timeout) 
+            throws IOException {
+        PeerQueue q = attach(addr, stream);
+        Datagram d;
+        try {
+            d = q.poll(timeout);
+        } finally {
+            q.readers.decrementAndGet();
+        }
+        if(d == null) {
+            throw new SocketTimeoutException("Receive timed out");
+        }
+        lastAccess = q.lastAccess;
+        return d;
+    }
+
+    /**
+     * Receive a datagram from any host that is not in the exclusion set.
+     * Datagrams of excluded hosts stay in their queues for their readers
+     *
+     * @param exclude addresses to ignore, <code>null</code> to accept any
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram, or <code>null</code> if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    public DatagramPacket take(Set<SocketAddress> exclude, long timeout)
+            throws IOException {
+        return take(exclude, 0, timeout);
+    }
+
+    /**
+     * Receive a datagram on a stream from any host that is not in the
+     * exclusion set
+     *
+     * @param exclude addresses to ignore, <code>null</code> to accept any
+     * @param stream stream number, 0 for datagrams not sent on a stream
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram, or <code>null</code> if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    public DatagramPacket take(Set<SocketAddress> exclude, int stream, 
+                               long timeout) throws IOException {
+        Datagram d = receiveAny(exclude, stream, timeout);
+        if(d == null) {
+            return null;
+        }
+        DatagramPacket p = d.toPacket();
+        d.release();
+        return p;
+    }
+
+    /**
+     * Receive a pooled datagram from any host that is not in the exclusion
+     * set. The caller must release it
+     *
+     * @param exclude addresses to ignore, <code>null</code> to accept any
+     * @param stream stream number
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram, or <code>null</code> if nothing arrived in time
+     * @throws IOException if the socket was closed
+     */
+    Datagram receiveAny(Set<SocketAddress> exclude, int stream, long timeout)
+            throws IOException {
+        LinkedBlockingDeque<PeerQueue> ready = ready(stream);
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true) {
+            PeerQueue q;
+            try {
+                if(timeout > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    q = remaining > 0 ?
+                            ready.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                } else {
+                    q = ready.take();
+                }
+            } catch(InterruptedException ie) {
+                throw new InterruptedIOException("read interrupted");
+            }
+            if(q == null) {
+                return null;
+            }
+            if(q == closedMarker) {
+                ready.offer(closedMarker);
+                throw closedException();
+            }
+            if(exclude != null && exclude.contains(q.addr)) {
+                // their reader will pick it up
+                q.announced.set(false);
+                continue;
+            }
+            Datagram d = q.poll(-1);
+            q.announced.set(false);
+            announce(q);
+            if(d != null) {
+                lastAccess = q.lastAccess;
+                return d;
+            }
+        }
+    }
+
+    /**
+     * Get the path MTU table of the socket, shared by everyone sending
+     * through it
+     *
+     * @return the table
+     */
+    public PathMTU getPathMTU() {
+        PathMTU pm = pathMTU;
+        if(pm == null) {
+            synchronized(this) {
+                pm = pathMTU;
+                if(pm == null) {
+                    pm = new PathMTU(t);
+                    pathMTU = pm;
+                }
+            }
+        }
+        return pm;
+    }
+
+    /**
+     * Get the send side lanes of the socket, shared by everyone sending
+     * through it
+     *
+     * @return the lanes
+     */
+    SendLanes getSendLanes() {
+        SendLanes l = sendLanes;
+        if(l == null) {
+            synchronized(this) {
+                l = sendLanes;
+                if(l == null) {
+                    l = new SendLanes(t);
+                    sendLanes = l;
+                }
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Get the bundler of the socket, shared by everyone sending through it
+     *
+     * @return the bundler
+     */
+    public Bundler getBundler() {
+        Bundler b = bundler;
+        if(b == null) {
+            synchronized(this) {
+                b = bundler;
+                if(b == null) {
+                    b = new Bundler(t, getSendLanes());
+                    bundler = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Get the send engine of the socket, shared by everyone sending through
+     * it. Its thread starts with the first datagram submitted
+     *
+     * @return the engine
+     */
+    public SendEngine getSendEngine() {
+        SendEngine e = sendEngine;
+        if(e == null) {
+            synchronized(this) {
+                e = sendEngine;
+                if(e == null) {
+                    e = new SendEngine(t, getSendLanes());
+                    sendEngine = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Get the timed message sender of the socket, shared by everyone sending
+     * through it. Its thread starts with the first message sent
+     *
+     * @return the sender
+     */
+    public TimedDelivery getTimedDelivery() {
+        TimedDelivery td = timedDelivery;
+        if(td == null) {
+            synchronized(this) {
+                td = timedDelivery;
+                if(td == null) {
+                    td = new TimedDelivery(t, getSendLanes());
+                    timedDelivery = td;
+                }
+            }
+        }
+        return td;
+    }
+
+    /**
+     * Forward the {@link Frame#RELAY RELAY} frames arriving at the socket
+     * through a relay
+     *
+     * @param r the relay, <code>null</code> to stop relaying
+     */
+    void setRelay(Relay r) {
+        relay = r;
+    }
+
+    /**
+     * Take in datagrams relayed from a peer
+     *
+     * @param session relay session number
+     * @param server address of the relay server
+     * @param peer address to queue the datagrams under
+     */
+    void addRelaySession(int session, SocketAddress server,
+                         SocketAddress peer) {
+        relayed.put(session, new SocketAddress[] { server, peer });
+    }
+
+    void removeRelaySession(int session) {
+        relayed.remove(session);
+    }
+
+    /**
+     * Get the connectivity engine of the socket
+     *
+     * @return the engine
+     */
+    public ConnectivityEngine getConnectivityEngine() {
+        ConnectivityEngine ce = connectivity;
+        if(ce == null) {
+            synchronized(this) {
+                ce = connectivity;
+                if(ce == null) {
+                    ce = new ConnectivityEngine(t);
+                    connectivity = ce;
+                }
+            }
+        }
+        return ce;
+    }
+
+    /**
+     * Get the number of datagrams dropped because a host exceeded its
+     * queue quota, or all hosts together exceeded theirs
+     *
+     * @return number of datagrams
+     */
+    public long getDropCount() {
+        return drops.get();
+    }
+
+    /**
+     * Get the last time a datagram was handed to a reader
+     *
+     * @return timestamp in milliseconds
+     */
+    public long getTimeLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Describe the queued datagrams
+     *
+     * @return one line per queued datagram
+     */
+    public String[] dump() {
+        List<String> ret = new ArrayList<>();
+        for(PeerQueue q : peers.values()) {
+            q.dump(ret);
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    /**
+     * Discard everything that is queued
+     */
+    public void clear() {
+        for(PeerQueue q : peers.values()) {
+            q.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Demultiplexer[" + t.getLocalPort() + "]";
+    }
+
+    /**
+     * Host and stream a queue belongs to
+     */
+    static final class Key {
+        long peer;
+        SocketAddress addr;
+        int stream;
+
+        Key(SocketAddress addr, int stream) {
+            set(addr, stream);
+        }
+
+        Key set(SocketAddress addr, int stream) {
+            this.peer = addr == null ? 0 : PeerKey.of(addr);
+            this.addr = addr;
+            this.stream = stream;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = (peer ^ ((long) stream << 48)) * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return stream == k.stream && 
+                   (addr == null ? k.addr == null : k.addr != null &&
+                    PeerKey.equal(peer, addr, k.peer, k.addr));
+        }
+    }
+
+    /**
+     * Datagrams of one host and stream in two lanes, control and bulk,
+     * guarded by its own lock so only the receive thread and that host's
+     * readers contend
+     */
+    private static class PeerQueue {
+        final SocketAddress addr;
+        final int stream;
+        final LinkedBlockingDeque<PeerQueue> ready;
+        final AtomicBoolean announced = new AtomicBoolean();
+        final AtomicLong drops = new AtomicLong();
+
+        /**
+         * Number of blocked readers, -1 once the queue has been discarded
+         */
+        final AtomicInteger readers = new AtomicInteger();
+        volatile long lastAccess = System.currentTimeMillis();
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Ring control = new Ring();
+        private final Ring bulk = new Ring();
+        private int bytes;
+        private boolean dead;
+
+        /**
+         * Bytes queued in all the queues of the demultiplexer
+         */
+        private final AtomicLong total;
+
+        PeerQueue(SocketAddress addr, int stream, 
+                  LinkedBlockingDeque<PeerQueue> ready, AtomicLong total) {
+            this.addr = addr;
+            this.stream = stream;
+            this.ready = ready;
+            this.total = total;
+        }
+
+        boolean offer(Datagram d, boolean urgent) {
+            int size = d.buf.capacity();
+            lock.lock();
+            try {
+                if(dead || (urgent ? control.count >= CONTROL_QUOTA :
+                                     bytes + size > PEER_QUOTA) ||
+                        total.get() + size > TOTAL_QUOTA) {
+                    drops.incrementAndGet();
+                    return false;
+                }
+                total.addAndGet(size);
+                if(urgent) {
+                    control.add(d);
+                } else {
+                    bulk.add(d);
+                    bytes += size;
+                }
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove the oldest control datagram, or the oldest bulk datagram if
+         * there is none. Datagrams still queued when the socket closes are
+         * handed out before readers get the exception
+         *
+         * @param timeout milliseconds to wait, 0 forever, negative not at all
+         * @return the datagram, <code>null</code> on timeout
+         */
+        Datagram poll(long timeout) throws IOException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while(control.count == 0 && bulk.count == 0) {
+                    if(dead) {
+                        throw closedException();
+                    }
+                    if(timeout < 0) {
+                        return null;
+                    } else if(timeout == 0) {
+                        notEmpty.await();
+                    } else {
+                        if(nanos <= 0) {
+                            return null;
+                        }
+                        nanos = notEmpty.awaitNanos(nanos);
+                    }
+                }
+                Datagram d;
+                if(control.count > 0) {
+                    d = control.remove();
+                } else {
+                    d = bulk.remove();
+                    bytes -= d.buf.capacity();
+                }
+                total.addAndGet(-d.buf.capacity());
+                lastAccess = System.currentTimeMillis();
+                return d;
+            } catch(InterruptedException ie) {
+                throw new InterruptedIOException("read interrupted");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEmpty() {
+            lock.lock();
+            try {
+                return control.count == 0 && bulk.count == 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void kill() {
+            lock.lock();
+            try {
+                dead = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void dump(List<String> out) {
+            String name = UDPHost.sockAddress(addr) + 
+                          (stream != 0 ? " stream=" + stream : "");
+            lock.lock();
+            try {
+                for(int i = 0; i < control.count; i++) {
+                    out.add(name + " control len=" + control.get(i).length());
+                }
+                for(int i = 0; i < bulk.count; i++) {
+                    out.add(name + " len=" + bulk.get(i).length());
+                }
+            } finally {
+                lock.unlock();
+            }
+            if(drops.get() > 0) {
+                out.add(name + " dropped=" + drops.get());
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                while(control.count > 0) {
+                    Datagram d = control.remove();
+                    total.addAndGet(-d.buf.capacity());
+                    d.release();
+                }
+                while(bulk.count > 0) {
+                    Datagram d = bulk.remove();
+                    total.addAndGet(-d.buf.capacity());
+                    d.release();
+                }
+                bytes = 0;
+                lastAccess = System.currentTimeMillis();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Array ring of datagrams that doubles when full. The lock of the queue
+     * owning it guards it
+     */
+    private static final class Ring {
+        private Datagram[] ring = new Datagram[4];
+        private int head;
+        int count;
+
+        void add(Datagram d) {
+            if(count == ring.length) {
+                Datagram[] n = new Datagram[ring.length * 2];
+                for(int i = 0; i < count; i++) {
+                    n[i] = get(i);
+                }
+                ring = n;
+                head = 0;
+            }
+            ring[(head + count) & (ring.length - 1)] = d;
+            count++;
+        }
+
+        Datagram remove() {
+            Datagram d = ring[head];
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+            count--;
+            return d;
+        }
+
+        Datagram get(int i) {
+            return ring[(head + i) & (ring.length - 1)];
+        }
+    }
+}
@@ -22,15 +22,15 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
 import org.bbi.tools.FileEntry;
 import org.bbi.tools.Log;
+import org.bbi.tools.LongHashMap;
 import static org.bbi.tools.FileEntry.populateFileList;
 
 /**
@@ -49,14 +49,43 @@ public class FileDownloadServer {
      */
     public static void wait(DatagramSocket s, String root, Progress p)
             throws IOException {
+        wait(new SockUDP(s), root, p);
+    }
+    
+    /**
+     * UDP interactive file server on an existing socket, such as a stream,
+     * relay view or a socket already punched through to a peer
+     * 
+     * @param sock socket to serve on
+     * @param root Root directory, client won't be able to access a higher level
+     * @param p Progress handle to use
+     * @throws IOException 
+     */
+    public static void wait(SockUDP sock, String root, Progress p)
+            throws IOException {
+        wait(sock, null, root, p);
+    }
+    
+    /**
+     * UDP interactive file server for a single client. Datagrams from other
+     * hosts are left queued for whoever reads from them
+     * 
+     * @param sock socket to serve on
+     * @param client address of the only client to serve, <code>null</code>
+     * to serve any
+     * @param root Root directory, client won't be able to access a higher level
+     * @param p Progress handle to use
+     * @throws IOException 
+     */
+    public static void wait(SockUDP sock, SocketAddress client, String root,
+                            Progress p) throws IOException {
         String line;
-        String addr;
+        long key;
         String[] tokens;
         String effectivePath;
         InetSocketAddress source;
         Payload payload;
-        SockUDP sock = new SockUDP(s);
-        Map<String, String> clientPaths = new HashMap<>();
+        LongHashMap<String> clientPaths = new LongHashMap<>();
         List<SocketAddress> activeClients = new ArrayList<>();
         File rootDirectory = new File(root);
         if(!rootDirectory.exists()) {
@@ -73,19 +102,26 @@ public class FileDownloadServer {
         Log.d(0, "udp listening");
         while(!quit) {
             DatagramPacket packet;
-            for(SocketAddress client : activeClients) {
-                Log.d(0, UDPHost.sockAddress(client));
-            }
-            while((packet = sock.listen(activeClients)) == null) {
-                for(String str : sock.dumpBuffer()) {
-                    Log.d(0, str);
-                }
+            if(client != null) {
                 try {
-                    // give other threads 10 seconds to consume the buffer
-                    Thread.sleep(10000);
-                    sock.clearBuffer(10000);
-                } catch(Exception e) {
-                    
+                    packet = sock.read(client);
+                } catch(SocketTimeoutException ste) {
+                    continue;
+                }
+            } else {
+                for(SocketAddress active : activeClients) {
+                    Log.d(0, UDPHost.sockAddress(active));
+                }
+                while((packet = sock.listen(activeClients)) == null) {
+                    for(String str : sock.dumpBuffer()) {
+                        Log.d(0, str);
+                    }
+                    try {
+                        // give other threads 10 seconds to consume the buffer
+                        Thread.sleep(10000);
+                        sock.clearBuffer(10000);
+                    } catch(Exception e) {
+                    }
                 }
             }
             payload = new Payload(packet);
@@ -95,12 +131,12 @@ public class FileDownloadServer {
                 line = line.substring(0, line.length()-1);
             }
             source = (InetSocketAddress) payload.getRemote();
-            addr = UDPHost.sockAddress(source);
-            if(!clientPaths.containsKey(addr)) {
-                clientPaths.put(addr, rootPath);
-                Log.d(1, "new client: " + addr);
+            key = PeerKey.of(source);
+            if(!clientPaths.containsKey(key)) {
+                clientPaths.put(key, rootPath);
+                Log.d(1, "new client: " + UDPHost.sockAddress(source));
             }
-            currentPath = clientPaths.get(addr);
+            currentPath = clientPaths.get(key);
             tokens = line.split(" ", 2);
             File f;
             List<FileEntry> fileList;
@@ -120,8 +156,9 @@ public class FileDownloadServer {
                         sock.putf(source, effectivePath, p);
                         break;
                     case "quit":
-                        clientPaths.remove(addr);
-                        Log.d(1, "removing from known list " + addr);
+                        clientPaths.remove(key);
+                        Log.d(1, "removing from known list " + 
+                                 UDPHost.sockAddress(source));
                         break;
                     case "ls":
                         if(tokens.length < 2) {
@@ -212,7 +249,7 @@ public class FileDownloadServer {
                             }
                             currentPath = f.getCanonicalPath() + "/";
                             // update current path for this host
-                            clientPaths.put(addr, currentPath);
+                            clientPaths.put(key, currentPath);
                             udputf8(sock, source, currentPath);
                         }
                         break;
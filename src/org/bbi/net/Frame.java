@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Datagram framing used by {@link SockUDP}. A plain SEND/RECV piece starts
+ * with a 4 byte header: 16-bit piece number (starting at 1) followed by the
+ * 16-bit number of pieces.</p>
+ *
+ * <p>Since a piece number is never 0, a datagram starting with two zero
+ * bytes is an <em>extended</em> frame, and the third byte tells its type.
+ * Everything added on top of the original protocol uses extended frames so
+ * older peers keep working as long as the new features are not enabled.</p>
+ *
+ * <p>All multi-byte values are big endian.</p>
+ *
+ * @author wira
+ */
+public class Frame {
+    /**
+     * Size of the plain SEND/RECV piece header
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Size of the common part of an extended frame header (two zero bytes
+     * and the type)
+     */
+    public static final int EXTENDED_HEADER_SIZE = 3;
+
+    /**
+     * FEC parity piece:
+     * <code>msg16 total16 first16 k8 m8 row8 pieceSize16 bytes32</code>
+     */
+    public static final int FEC_PARITY = 0x01;
+    public static final int FEC_PARITY_HEADER_SIZE = 18;
+
+    /**
+     * FEC protected data piece: <code>msg16 order16 total16</code>
+     */
+    public static final int FEC_DATA = 0x02;
+    public static final int FEC_DATA_HEADER_SIZE = 9;
+
+    /**
+     * Stream piece:
+     * <code>msg16 total64 offset64 chunkEnd64</code>. The offset is where
+     * the piece goes in the stream, and <code>chunkEnd</code> is the end of
+     * the chunk the sender waits to have acknowledged
+     */
+    public static final int STREAM_DATA = 0x03;
+    public static final int STREAM_DATA_HEADER_SIZE = 29;
+
+    /**
+     * Path MTU probe: <code>id16 size16</code>, padded with zeros to
+     * <code>size</code> bytes. Answered by the receiving demultiplexer
+     */
+    public static final int PROBE = 0x04;
+    public static final int PROBE_HEADER_SIZE = 7;
+
+    /**
+     * Answer to a probe: <code>id16 size16</code>, where size is the length
+     * the probe arrived with
+     */
+    public static final int PROBE_ACK = 0x05;
+    public static final int PROBE_ACK_HEADER_SIZE = 7;
+
+    /**
+     * Datagram on a multiplexed stream: <code>stream16</code> followed by the
+     * datagram as it would be sent without a stream. Stream 0 is never sent
+     * in this frame, it is the plain framing
+     */
+    public static final int STREAM = 0x06;
+    public static final int STREAM_HEADER_SIZE = 5;
+
+    /**
+     * Control datagram: no fields, followed by the datagram as it would be
+     * sent otherwise, stream frame included. The receiving demultiplexer
+     * queues it ahead of the bulk data of the same host and stream
+     */
+    public static final int CONTROL = 0x07;
+    public static final int CONTROL_HEADER_SIZE = 3;
+
+    /**
+     * Several small datagrams to the same host in one: each is
+     * <code>len16</code> followed by the datagram as it would be sent on its
+     * own. The receiving demultiplexer routes them one by one
+     */
+    public static final int BUNDLE = 0x08;
+    public static final int BUNDLE_HEADER_SIZE = 3;
+
+    /**
+     * Message with a delivery deadline: <code>seq32 floor32 ttl16</code>
+     * followed by the message. <code>ttl</code> is the time in milliseconds
+     * left until the deadline, and <code>floor</code> the lowest sequence
+     * number the sender has not yet seen acknowledged or abandoned
+     */
+    public static final int MSG = 0x09;
+    public static final int MSG_HEADER_SIZE = 13;
+
+    /**
+     * Acknowledgement of a {@link #MSG MSG}: <code>stream16 seq32</code>.
+     * Sent by the receiving demultiplexer as the message arrives, never
+     * wrapped in a stream frame
+     */
+    public static final int ACK = 0x0a;
+    public static final int ACK_HEADER_SIZE = 9;
+
+    /**
+     * The sender has abandoned every message it still had below
+     * <code>floor</code>: <code>floor32</code>
+     */
+    public static final int DROP = 0x0b;
+    public static final int DROP_HEADER_SIZE = 7;
+
+    /**
+     * Connectivity check: <code>txn32</code>. Answered by the receiving
+     * demultiplexer with a {@link #BIND_ACK BIND_ACK} carrying the same
+     * transaction
+     */
+    public static final int BIND = 0x0c;
+    public static final int BIND_HEADER_SIZE = 7;
+
+    /**
+     * Answer to a connectivity check: <code>txn32</code>
+     */
+    public static final int BIND_ACK = 0x0d;
+    public static final int BIND_ACK_HEADER_SIZE = 7;
+
+    /**
+     * Datagram relayed through a server: <code>session32</code> followed by
+     * the datagram as it would be sent directly. The server forwards the
+     * frame unchanged to the other host of the session
+     */
+    public static final int RELAY = 0x0e;
+    public static final int RELAY_HEADER_SIZE = 7;
+
+    /**
+     * Keepalive: nothing but the header. Sent to hold the NAT binding of a
+     * path open and dropped on arrival
+     */
+    public static final int KEEPALIVE = 0x0f;
+    public static final int KEEPALIVE_HEADER_SIZE = 3;
+
+    /**
+     * Check whether a datagram is an extended frame
+     *
+     * @param buf array holding the datagram
+     * @param off offset of the datagram in the array
+     * @param len length of the datagram
+     * @return true if it is an extended frame
+     */
+    public static boolean isExtended(byte[] buf, int off, int len) {
+        return len >= EXTENDED_HEADER_SIZE && buf[off] == 0 && buf[off+1] == 0;
+    }
+
+    /**
+     * Get the type of an extended frame
+     *
+     * @param buf array holding the datagram
+     * @param off offset of the datagram in the array
+     * @return frame type
+     */
+    public static int type(byte[] buf, int off) {
+        return buf[off+2] & 0xff;
+    }
+
+    /**
+     * Write the common extended frame header
+     *
+     * @param buf destination array
+     * @param off offset into the array
+     * @param type frame type
+     * @return offset right after the common header
+     */
+    public static int putHeader(byte[] buf, int off, int type) {
+        buf[off] = 0;
+        buf[off+1] = 0;
+        buf[off+2] = (byte) type;
+        return off + EXTENDED_HEADER_SIZE;
+    }
+
+    /**
+     * Check whether a pooled datagram, held between position 0 and the
+     * limit of a buffer, is an extended frame
+     *
+     * @param b buffer holding the datagram
+     * @return true if it is an extended frame
+     */
+    public static boolean isExtended(ByteBuffer b) {
+        return b.limit() >= EXTENDED_HEADER_SIZE && b.get(0) == 0 && b.get(1) == 0;
+    }
+
+    /**
+     * Get the type of an extended frame held in a buffer
+     *
+     * @param b buffer holding the datagram at position 0
+     * @return frame type
+     */
+    public static int type(ByteBuffer b) {
+        return b.get(2) & 0xff;
+    }
+
+    /**
+     * Write the common extended frame header at the buffer's position
+     *
+     * @param b destination buffer
+     * @param type frame type
+     */
+    public static void putHeader(ByteBuffer b, int type) {
+        b.put((byte) 0).put((byte) 0).put((byte) type);
+    }
+
+    public static int getShort(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off+1] & 0xff);
+    }
+
+    public static void putShort(byte[] b, int off, int v) {
+        b[off]   = (byte) (v >>> 8);
+        b[off+1] = (byte) v;
+    }
+
+    public static long getInt(byte[] b, int off) {
+        return ((long) getShort(b, off) << 16) | getShort(b, off+2);
+    }
+
+    public static void putInt(byte[] b, int off, long v) {
+        putShort(b, off, (int) (v >>> 16));
+        putShort(b, off+2, (int) v);
+    }
+
+    public static long getLong(byte[] b, int off) {
+        return (getInt(b, off) << 32) | getInt(b, off+4);
+    }
+
+    public static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, v >>> 32);
+        putInt(b, off+4, v);
+    }
+}
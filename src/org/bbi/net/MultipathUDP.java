@@ -0,0 +1,422 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Stream transfer striped over several paths, each a {@link SockUDP} on
+ * its own local socket paired with the remote host's address for that path,
+ * for example one socket per NIC or per local address. Both sides add their
+ * paths in the same order.</p>
+ *
+ * <p>The stream is cut into chunks of <code>SockUDP.getPutBufferSize()</code>
+ * bytes. Every path has a thread that takes the next chunk that nobody has
+ * taken yet, sends it as {@link Frame#STREAM_DATA STREAM_DATA} pieces
+ * through its own socket and waits for the receiver to acknowledge it on
+ * that path, so every path is paced and fed back by its own congestion
+ * controller and path MTU, and faster paths simply end up taking more
+ * chunks. The receiver puts the pieces of all paths back together by their
+ * offset in the stream.</p>
+ *
+ * <p>The transfer starts with an "mpath MSG LENGTH CHUNK" message on the
+ * first path.</p>
+ *
+ * @author wira
+ */
+public class MultipathUDP {
+    /**
+     * How often path threads check whether the transfer is over
+     */
+    private static final long POLL_MS = 100;
+
+    private final List<Path> paths = new ArrayList<>();
+
+    /**
+     * Add a path
+     *
+     * @param local socket to send and receive the path's datagrams with
+     * @param remote address of the remote host's socket for this path
+     */
+    public void addPath(SockUDP local, SocketAddress remote) {
+        paths.add(new Path(local, remote));
+    }
+
+    public int getPathCount() {
+        return paths.size();
+    }
+
+    /**
+     * Get the number of stream bytes that went over a path in the last
+     * transfer
+     *
+     * @param i path index, in the order the paths were added
+     * @return number of bytes
+     */
+    public long getPathBytes(int i) {
+        return paths.get(i).bytes;
+    }
+
+    /**
+     * Send a stream to a host calling one of the <code>getStream</code>
+     * methods of its own <code>MultipathUDP</code>
+     *
+     * @param in channel to read the stream from
+     * @param length number of bytes to send
+     * @param p progress handle to use (can be null)
+     * @throws java.io.EOFException if the channel ends before
+     * <code>length</code> bytes
+     * @throws IOException if an I/O exception occurs on any path
+     */
+    public void putStream(ReadableByteChannel in, long length, Progress p)
+            throws IOException {
+        checkPaths();
+        final Transfer x = new Transfer(SockUDP.nextMessage(), length,
+                                        SockUDP.getPutBufferSize(), p);
+        x.in = in;
+        if(p != null) {
+            p.totalBytes = length;
+        }
+        Path first = paths.get(0);
+        Log.d(3, "mpath: put msg=" + x.msg + " len=" + length + " paths=" +
+                 paths.size());
+        first.sock.sendUTF8(first.remote, "mpath " + x.msg + " " + length +
+                                          " " + x.chunk);
+        run(x, true);
+    }
+
+    /**
+     * Receive a stream sent with
+     * {@link #putStream(ReadableByteChannel, long, Progress) putStream} and
+     * write it to a channel in order
+     *
+     * @param out channel to write the stream to
+     * @param p progress handle to use (can be null)
+     * @return length of the stream
+     * @throws IOException if an I/O exception occurs on any path
+     */
+    public long getStream(WritableByteChannel out, Progress p)
+            throws IOException {
+        return getStream(new StreamReassembler(out), p);
+    }
+
+    /**
+     * Receive a stream sent with
+     * {@link #putStream(ReadableByteChannel, long, Progress) putStream} into
+     * a file
+     *
+     * @param out file to write the stream to
+     * @param position file position of the first byte of the stream
+     * @param p progress handle to use (can be null)
+     * @return length of the stream
+     * @throws IOException if an I/O exception occurs on any path
+     */
+    public long getStream(FileChannel out, long position, Progress p)
+            throws IOException {
+        return getStream(new StreamReassembler(out, position), p);
+    }
+
+    private long getStream(StreamReassembler r, Progress p)
+            throws IOException {
+        checkPaths();
+        Path first = paths.get(0);
+        String[] tokens;
+        while(true) {
+            tokens = first.sock.recv(first.remote, null).decode().split(" ");
+            if(tokens.length == 4 && tokens[0].equals("mpath")) {
+                break;
+            }
+            Log.d(3, "mpath: not a stream header: " + tokens[0]);
+        }
+        Transfer x;
+        try {
+            x = new Transfer(Integer.parseInt(tokens[1]),
+                             Long.parseLong(tokens[2]),
+                             Long.parseLong(tokens[3]), p);
+        } catch(NumberFormatException nfe) {
+            throw new IOException("bad stream header: " + nfe.getMessage());
+        }
+        if(x.chunk <= 0) {
+            throw new IOException("bad stream header: chunk " + x.chunk);
+        }
+        Log.d(3, "mpath: get msg=" + x.msg + " len=" + x.length +
+                 " chunk=" + x.chunk);
+        if(p != null) {
+            p.totalBytes = x.length;
+        }
+        x.r = r;
+        try {
+            run(x, false);
+        } finally {
+            r.clear();
+        }
+        return x.length;
+    }
+
+    private void checkPaths() throws IOException {
+        if(paths.isEmpty()) {
+            throw new IOException("no paths");
+        }
+    }
+
+    /**
+     * Run a transfer with a thread per path. A sender runs the first path
+     * itself, a receiver watches over the transfer instead
+     */
+    private void run(final Transfer x, final boolean put) throws IOException {
+        List<Thread> threads = new ArrayList<>();
+        for(final Path path : paths) {
+            path.bytes = 0;
+            if(put && path == paths.get(0)) {
+                continue;
+            }
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    x.runPath(path, put);
+                }
+            }, "MultipathUDP[" + UDPHost.sockAddress(path.remote) + "]");
+            th.setDaemon(true);
+            th.start();
+            threads.add(th);
+        }
+        if(put) {
+            x.runPath(paths.get(0), true);
+        } else {
+            x.await(paths.get(0).sock.timeout());
+        }
+        try {
+            for(Thread th : threads) {
+                th.join();
+            }
+        } catch(InterruptedException ie) {
+            x.fail(new InterruptedIOException("transfer interrupted"));
+        }
+        if(x.error != null) {
+            throw x.error;
+        }
+    }
+
+    private static class Path {
+        final SockUDP sock;
+        final SocketAddress remote;
+        volatile long bytes;
+
+        Path(SockUDP sock, SocketAddress remote) {
+            this.sock = sock;
+            this.remote = remote;
+        }
+    }
+
+    /**
+     * State of one transfer shared by the path threads, guarded by its own
+     * monitor
+     */
+    private static class Transfer {
+        final int msg;
+        final long length;
+        final long chunk;
+        final Progress p;
+
+        // sender
+        ReadableByteChannel in;
+        long next;
+
+        // receiver
+        StreamReassembler r;
+        long lastProgress = System.currentTimeMillis();
+
+        boolean done;
+        IOException error;
+
+        Transfer(int msg, long length, long chunk, Progress p) {
+            this.msg = msg;
+            this.length = length;
+            this.chunk = chunk;
+            this.p = p;
+            this.done = length == 0;
+        }
+
+        synchronized void fail(IOException e) {
+            if(error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isOver() {
+            return done || error != null;
+        }
+
+        void runPath(Path path, boolean put) {
+            try {
+                if(put) {
+                    put(path);
+                } else {
+                    get(path);
+                }
+            } catch(IOException ioe) {
+                Log.d(3, "mpath: " + UDPHost.sockAddress(path.remote) +
+                         ": " + ioe);
+                fail(ioe);
+            }
+        }
+
+        /**
+         * Take the next chunk and read its pieces, cut to the path's
+         * datagram size
+         *
+         * @return the pieces, <code>null</code> when nothing is left
+         */
+        private synchronized List<Datagram> claim(Path path)
+                throws IOException {
+            if(error != null || next >= length) {
+                return null;
+            }
+            long chunkEnd = Math.min(length, next + chunk);
+            int pieceSize = path.sock.datagramSize(path.remote) -
+                            Frame.STREAM_DATA_HEADER_SIZE;
+            List<Datagram> pieces = new ArrayList<>();
+            try {
+                while(next < chunkEnd) {
+                    int n = (int) Math.min(pieceSize, chunkEnd - next);
+                    pieces.add(path.sock.streamPiece(in, msg, length, next,
+                                                     chunkEnd, n));
+                    next += n;
+                }
+            } catch(IOException ioe) {
+                release(pieces, 0);
+                throw ioe;
+            }
+            return pieces;
+        }
+
+        private void put(Path path) throws IOException {
+            List<Datagram> pieces;
+            while((pieces = claim(path)) != null) {
+                long bytes = 0;
+                int i = 0;
+                try {
+                    for(; i < pieces.size(); i++) {
+                        Datagram d = pieces.get(i);
+                        bytes += d.length() - Frame.STREAM_DATA_HEADER_SIZE;
+                        path.sock.sendDatagram(path.remote, d);
+                    }
+                } finally {
+                    release(pieces, i + 1);
+                }
+                long syncStart = System.nanoTime();
+                Payload reply = new Payload(path.sock.read(path.remote));
+                if(!path.sock.sync(path.remote, reply.decode(), bytes,
+                                   syncStart)) {
+                    Log.err("illegal chunk termination line: " +
+                            reply.decode());
+                }
+                path.bytes += bytes;
+                progress(bytes);
+            }
+        }
+
+        private static void release(List<Datagram> pieces, int from) {
+            for(int i = from; i < pieces.size(); i++) {
+                pieces.get(i).release();
+            }
+        }
+
+        private void get(Path path) throws IOException {
+            // bytes received so far of the chunks in progress on this path,
+            // by chunk end
+            HashMap<Long, Long> chunks = new HashMap<>();
+            while(!isOver()) {
+                Datagram d;
+                try {
+                    d = path.sock.receive(path.remote, POLL_MS);
+                } catch(SocketTimeoutException ste) {
+                    continue;
+                }
+                if(!SockUDP.isStream(d) || d.getShort(3) != msg) {
+                    d.release();
+                    continue;
+                }
+                long offset = d.getLong(13);
+                long chunkEnd = d.getLong(21);
+                int n;
+                synchronized(this) {
+                    n = r.add(d, Frame.STREAM_DATA_HEADER_SIZE, offset);
+                    if(n > 0) {
+                        lastProgress = System.currentTimeMillis();
+                        if(r.getReceived() == length) {
+                            done = true;
+                            notifyAll();
+                        }
+                    }
+                }
+                if(n == 0) {
+                    continue;
+                }
+                path.bytes += n;
+                progress(n);
+                Long got = chunks.get(chunkEnd);
+                long total = (got == null ? 0 : got) + n;
+                long chunkStart = (chunkEnd - 1) / chunk * chunk;
+                if(total == chunkEnd - chunkStart) {
+                    chunks.remove(chunkEnd);
+                    path.sock.write(path.remote, "next");
+                } else {
+                    chunks.put(chunkEnd, total);
+                }
+            }
+        }
+
+        private void progress(long n) {
+            if(p != null) {
+                synchronized(p) {
+                    p.copiedTotalBytes += n;
+                }
+            }
+        }
+
+        /**
+         * Wait for the receiving path threads to finish the stream
+         *
+         * @param timeout time without progress after which the transfer
+         * fails, 0 to wait forever
+         */
+        synchronized void await(long timeout) {
+            try {
+                while(!done && error == null) {
+                    wait(POLL_MS);
+                    if(timeout > 0 && !done &&
+                       System.currentTimeMillis() - lastProgress > timeout) {
+                        fail(new SocketTimeoutException("Receive timed out"));
+                    }
+                }
+            } catch(InterruptedException ie) {
+                fail(new InterruptedIOException("transfer interrupted"));
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Per-host datagram sizes for a socket, found by probing the path. Until
+ * a host has answered a probe, it gets <code>UDP_MAX_DATAGRAM_SIZE</code>
+ * datagrams like before, which every version understands. Probing never
+ * blocks a sender: probes of every candidate size are fired at once and the
+ * answers, handled on the demultiplexer thread, raise the size as they come
+ * in.</p>
+ *
+ * <p>Candidates are the common link MTUs up to the MTU of the local
+ * interface that routes to the host. Where the platform lets us set the
+ * don't-fragment bit, probes that do not fit the path are dropped on the
+ * way and the largest answered probe is the path MTU. Where it does not,
+ * loss reported on the PUT/GET synchronization steps the size down, and a
+ * periodic probe steps it back up.</p>
+ *
+ * @author wira
+ */
+public class PathMTU {
+    /**
+     * Time to wait for probe answers before a probe round is over
+     */
+    public static long PROBE_TIMEOUT_MS = 1000;
+
+    /**
+     * Number of rounds tried before a host that never answers is considered
+     * to not support probing
+     */
+    public static int PROBE_TRIES = 3;
+
+    /**
+     * Interval between probe rounds once a size has been found, so a size
+     * lowered by loss can recover
+     */
+    public static long REPROBE_MS = 600000;
+
+    /**
+     * Number of consecutive lossy synchronizations that step the size down
+     */
+    public static int LOSS_THRESHOLD = 3;
+
+    /**
+     * Common link MTUs tried as candidates: jumbo, Ethernet, PPPoE, tunnels
+     * and the IPv6 minimum
+     */
+    private static final int[] LINK_MTUS = { 9000, 1500, 1492, 1400, 1280 };
+
+    private static final byte[] PADDING = new byte[SockUDP.UDP_MAX_DATAGRAM_SIZE];
+
+    private static final int NEW = 0;
+    private static final int PROBING = 1;
+    private static final int DONE = 2;
+    private static final int LEGACY = 3;
+
+    private final DatagramTransport t;
+    private final boolean dontFragment;
+    private final ConcurrentHashMap<SocketAddress, Peer> peers =
+            new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    PathMTU(DatagramTransport t) {
+        this.t = t;
+        this.dontFragment = t.setDontFragment();
+        Log.d(2, "pmtu: port " + t.getLocalPort() + " dontFragment=" +
+                 dontFragment);
+    }
+
+    /**
+     * Get the datagram size to use for a host, starting or continuing a
+     * probe round if one is due
+     *
+     * @param addr address of the host
+     * @return datagram size in bytes, including SockUDP headers
+     */
+    public int getDatagramSize(SocketAddress addr) {
+        Peer p = peer(addr);
+        long now = System.currentTimeMillis();
+        synchronized(p) {
+            switch(p.state) {
+                case NEW:
+                    probe(p, now);
+                    break;
+                case PROBING:
+                    if(now - p.probeTime > PROBE_TIMEOUT_MS) {
+                        if(p.answered) {
+                            p.state = DONE;
+                        } else if(++p.tries < PROBE_TRIES) {
+                            probe(p, now);
+                        } else {
+                            // a host that answered before keeps its size
+                            p.state = p.index < 0 ? LEGACY : DONE;
+                            p.probeTime = now;
+                        }
+                    }
+                    break;
+                case DONE:
+                    if(now - p.probeTime > REPROBE_MS) {
+                        p.tries = 0;
+                        probe(p, now);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return p.size;
+        }
+    }
+
+    /**
+     * Check if a host has answered a probe, meaning it runs a version that
+     * understands pieces smaller than <code>UDP_MAX_DATAGRAM_SIZE</code>
+     *
+     * @param addr address of the host
+     * @return true if it has
+     */
+    public boolean isProbed(SocketAddress addr) {
+        Peer p = peers.get(addr);
+        return p != null && p.index >= 0;
+    }
+
+    /**
+     * Report a synchronization that lost pieces. Enough of them in a row
+     * step the size down to the next candidate
+     *
+     * @param addr address of the host
+     */
+    public void onLoss(SocketAddress addr) {
+        Peer p = peers.get(addr);
+        if(p == null) {
+            return;
+        }
+        synchronized(p) {
+            if(p.index < 0 || ++p.losses < LOSS_THRESHOLD) {
+                return;
+            }
+            p.losses = 0;
+            if(p.index + 1 < p.candidates.length) {
+                p.index++;
+                p.size = p.candidates[p.index];
+                Log.d(2, "pmtu: " + UDPHost.sockAddress(addr) +
+                         " lossy, down to " + p.size);
+            }
+        }
+    }
+
+    /**
+     * Report a synchronization without loss
+     *
+     * @param addr address of the host
+     */
+    public void onAck(SocketAddress addr) {
+        Peer p = peers.get(addr);
+        if(p != null) {
+            synchronized(p) {
+                p.losses = 0;
+            }
+        }
+    }
+
+    /**
+     * Handle a probe answer. Called on the demultiplexer thread
+     */
+    void onProbeAck(SocketAddress addr, int id, int size) {
+        Peer p = peers.get(addr);
+        if(p == null) {
+            return;
+        }
+        synchronized(p) {
+            if(p.state != PROBING || id != p.probeId) {
+                return;
+            }
+            for(int i = 0; i < p.candidates.length; i++) {
+                if(p.candidates[i] != size) {
+                    continue;
+                }
+                if(!p.answered || i < p.index) {
+                    p.index = i;
+                    p.size = size;
+                    p.losses = 0;
+                }
+                p.answered = true;
+                if(i == 0) {
+                    // nothing bigger to wait for
+                    p.state = DONE;
+                }
+                Log.d(3, "pmtu: " + UDPHost.sockAddress(addr) +
+                         " answered " + size + ", using " + p.size);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Answer a probe. Called on the demultiplexer thread
+     *
+     * @param d the probe, released by this call
+     */
+    void answer(Datagram d) {
+        int id = d.getShort(3);
+        int size = d.length();
+        SocketAddress to = d.source;
+        d.buf.clear();
+        Frame.putHeader(d.buf, Frame.PROBE_ACK);
+        d.buf.putShort((short) id);
+        d.buf.putShort((short) size);
+        d.buf.flip();
+        try {
+            t.send(d.buf, to);
+        } catch(IOException ioe) {
+            Log.d(3, "pmtu: answer to " + UDPHost.sockAddress(to) + ": " + ioe);
+        } finally {
+            d.release();
+        }
+    }
+
+    private Peer peer(SocketAddress addr) {
+        Peer p = peers.get(addr);
+        if(p == null) {
+            Peer n = new Peer(addr, candidates(addr));
+            p = peers.putIfAbsent(addr, n);
+            if(p == null) {
+                p = n;
+            }
+        }
+        return p;
+    }
+
+    private void probe(Peer p, long now) {
+        p.state = PROBING;
+        p.probeTime = now;
+        p.answered = false;
+        p.probeId = random.nextInt() & 0xffff;
+        for(int size : p.candidates) {
+            Datagram d = t.pool().acquire();
+            Frame.putHeader(d.buf, Frame.PROBE);
+            d.buf.putShort((short) p.probeId);
+            d.buf.putShort((short) size);
+            // pooled buffers hold old datagrams, never send that out
+            d.buf.put(PADDING, 0, size - Frame.PROBE_HEADER_SIZE);
+            d.buf.flip();
+            try {
+                t.send(d.buf, p.addr);
+            } catch(IOException ioe) {
+                // EMSGSIZE and friends: this size does not fit
+                Log.d(3, "pmtu: probe " + size + ": " + ioe);
+            } finally {
+                d.release();
+            }
+        }
+        Log.d(3, "pmtu: probing " + UDPHost.sockAddress(p.addr) + " round " +
+                 (p.tries + 1));
+    }
+
+    /**
+     * Build the candidate datagram sizes for a host, largest first
+     */
+    private static int[] candidates(SocketAddress addr) {
+        InetAddress ia = addr instanceof InetSocketAddress ?
+                ((InetSocketAddress) addr).getAddress() : null;
+        int overhead = (ia instanceof Inet6Address ? 40 : 20) + 8;
+        int localMTU = localMTU(addr);
+        TreeSet<Integer> sizes = new TreeSet<>();
+        if(localMTU > 0) {
+            sizes.add(localMTU);
+        }
+        for(int mtu : LINK_MTUS) {
+            if(localMTU <= 0 || mtu <= localMTU) {
+                sizes.add(mtu);
+            }
+        }
+        TreeSet<Integer> ret = new TreeSet<>();
+        for(int mtu : sizes) {
+            ret.add(Math.min(mtu - overhead, SockUDP.UDP_MAX_DATAGRAM_SIZE));
+        }
+        int[] c = new int[ret.size()];
+        int i = 0;
+        for(int size : ret.descendingSet()) {
+            c[i++] = size;
+        }
+        return c;
+    }
+
+    /**
+     * Find the MTU of the interface the host is routed through. Connecting
+     * a datagram socket sends nothing but makes the system pick the local
+     * address
+     *
+     * @return the MTU or -1 if it cannot be found
+     */
+    private static int localMTU(SocketAddress addr) {
+        try(DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(addr);
+            NetworkInterface ni = NetworkInterface.getByInetAddress(
+                    probe.getLocalAddress());
+            return ni == null ? -1 : ni.getMTU();
+        } catch(IOException ioe) {
+            return -1;
+        }
+    }
+
+    private static class Peer {
+        final SocketAddress addr;
+        final int[] candidates;
+        int state = NEW;
+        int size = SockUDP.UDP_MAX_DATAGRAM_SIZE;
+
+        /**
+         * Candidate in use, -1 until the host answers a probe
+         */
+        int index = -1;
+        int tries = 0;
+        int probeId;
+        long probeTime;
+        boolean answered;
+        int losses;
+
+        Peer(SocketAddress addr, int[] candidates) {
+            this.addr = addr;
+            this.candidates = candidates;
+        }
+    }
+}
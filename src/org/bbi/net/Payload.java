@@ -15,18 +15,45 @@
  */
 package org.bbi.net;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class that wraps around a payload from UDP packet(s)
+ * <p>Class that wraps around a payload from UDP packet(s). A payload is a
+ * view of the bytes it was made from, never a copy: of an array, of a
+ * packet's buffer, or of a pooled buffer the data was received into.</p>
+ * 
+ * <p>A pooled payload holds on to its buffer until it is
+ * {@link #release() released}, after which it must not be touched again.
+ * Code that hands it on can {@link #retain() retain} it first, and the
+ * buffer goes back to the pool with the last release. Releasing is
+ * optional, a pooled payload that is never released is left to the
+ * collector like any other object, its buffer just does not go back to the
+ * pool. Releasing a payload that is not pooled does nothing.</p>
  *
  * @author wira
  */
 public class Payload {
-    private final byte[] payload;
+    private final ByteBuffer data;
     private final SocketAddress socketAddress;
+    private final Datagram pooled;
+    private final AtomicInteger refs;
+    
+    /**
+     * Array returned by {@link #get()}, made on first use when the view
+     * does not cover a whole array
+     */
+    private byte[] array;
+    
+    /**
+     * String returned by {@link #decode()}, made on first use
+     */
+    private String text;
     
     /**
      * Create a payload object with provided data and source address
@@ -35,23 +62,21 @@ public class Payload {
      * @param s address of where this data originated from
      */
     public Payload(byte[] p, SocketAddress s) {
-        this.payload = p;
-        this.socketAddress = s;
+        this(p, 0, p.length, s);
     }
     
     /**
-     * Create a payload object with provided data and source address
+     * Create a payload object that is a view of a packet's data. The
+     * packet's buffer must not be reused while the payload is in use
      * 
      * @param p data packet
      */
     public Payload(DatagramPacket p) {
-        this.payload = new byte[p.getLength()];
-        System.arraycopy(p.getData(), 0, this.payload, 0, p.getLength());
-        this.socketAddress = p.getSocketAddress();
+        this(p.getData(), p.getOffset(), p.getLength(), p.getSocketAddress());
     }
     
     /**
-     * Create a payload object with provided data and source address
+     * Create a payload object that is a view of part of an array
      * 
      * @param p data packet
      * @param off offset into the data
@@ -59,27 +84,186 @@ public class Payload {
      * @param s address of where this data originated from
      */
     public Payload(byte[] p, int off, int len, SocketAddress s) {
-        this.payload = new byte[len];
-        System.arraycopy(p, off, this.payload, 0, len);
+        this.data = ByteBuffer.wrap(p, off, len).slice();
         this.socketAddress = s;
+        this.pooled = null;
+        this.refs = null;
     }
     
     /**
-     * Get data as byte array
+     * Create a payload object that is a view of a pooled datagram, from an
+     * offset to its end. Takes ownership of the datagram
+     * 
+     * @param d the datagram
+     * @param off offset of the data in the datagram
+     */
+    Payload(Datagram d, int off) {
+        d.buf.position(off);
+        this.data = d.buf.slice();
+        d.buf.position(0);
+        this.socketAddress = d.source;
+        this.pooled = d;
+        this.refs = new AtomicInteger(1);
+    }
+    
+    /**
+     * Get data as byte array. This is the array the payload was made from
+     * when it covers all of it, otherwise a copy made on the first call
      * 
      * @return data as byte array
      */
     public byte[] get() {
-        return payload;
+        byte[] a = array;
+        if(a == null) {
+            if(data.hasArray() && data.arrayOffset() == 0 && 
+                    data.array().length == data.limit() && pooled == null) {
+                a = data.array();
+            } else {
+                a = new byte[data.limit()];
+                data.duplicate().get(a);
+            }
+            array = a;
+        }
+        return a;
+    }
+    
+    /**
+     * Get the length of the data
+     * 
+     * @return number of bytes
+     */
+    public int length() {
+        return data.limit();
+    }
+    
+    /**
+     * Get a byte of the data
+     * 
+     * @param index index of the byte
+     * @return the byte
+     */
+    public byte byteAt(int index) {
+        return data.get(index);
+    }
+    
+    /**
+     * Get a read-only view of the data, from position 0 to the limit
+     * 
+     * @return the view, valid as long as the payload is
+     */
+    public ByteBuffer buffer() {
+        return data.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Copy the data into an array
+     * 
+     * @param dst destination array
+     * @param off offset into the destination
+     */
+    public void copyTo(byte[] dst, int off) {
+        copyTo(0, dst, off, data.limit());
+    }
+    
+    /**
+     * Copy part of the data into an array
+     * 
+     * @param off offset into the data
+     * @param dst destination array
+     * @param dstOff offset into the destination
+     * @param len number of bytes
+     */
+    public void copyTo(int off, byte[] dst, int dstOff, int len) {
+        if(data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + off, 
+                             dst, dstOff, len);
+        } else {
+            ByteBuffer b = data.duplicate();
+            b.position(off);
+            b.get(dst, dstOff, len);
+        }
+    }
+    
+    /**
+     * Write part of the data to a stream, straight from the array it is
+     * held in when there is one
+     * 
+     * @param out the stream
+     * @param off offset into the data
+     * @param len number of bytes
+     * @throws IOException if writing failed
+     */
+    public void writeTo(OutputStream out, int off, int len) throws IOException {
+        if(data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + off, len);
+        } else {
+            byte[] b = new byte[Math.min(len, 8192)];
+            for(int done = 0; done < len; done += b.length) {
+                int n = Math.min(b.length, len - done);
+                copyTo(off + done, b, 0, n);
+                out.write(b, 0, n);
+            }
+        }
+    }
+    
+    /**
+     * Check if the data starts with the given bytes, without copying or
+     * decoding anything
+     * 
+     * @param prefix bytes to look for
+     * @return true if the data starts with them
+     */
+    public boolean startsWith(byte[] prefix) {
+        if(prefix.length > data.limit()) {
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++) {
+            if(data.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Check if the data is exactly the given bytes, without copying or
+     * decoding anything
+     * 
+     * @param b bytes to compare with
+     * @return true if they are the same
+     */
+    public boolean contentEquals(byte[] b) {
+        return b.length == data.limit() && startsWith(b);
+    }
+    
+    /**
+     * Check if the data holds the given array
+     * 
+     * @param a the array
+     * @return true if the payload is a view of that array
+     */
+    boolean isViewOf(byte[] a) {
+        return data.hasArray() && data.array() == a;
     }
     
     /**
-     * Assume the data is encoded in UTF-8 and return it as <code>String</code>
+     * Assume the data is encoded in UTF-8 and return it as <code>String</code>.
+     * The string is made once and kept
      * 
      * @return decoded data
      */
     public String decode() {
-        return new String(payload, StandardCharsets.UTF_8);
+        String s = text;
+        if(s == null) {
+            if(data.hasArray()) {
+                s = new String(data.array(), data.arrayOffset(), data.limit(),
+                               StandardCharsets.UTF_8);
+            } else {
+                s = StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+            }
+            text = s;
+        }
+        return s;
     }
     
     /**
@@ -98,7 +282,54 @@ public class Payload {
      * @return true if it is a match
      */
     public boolean sourceEquals(Payload p) {
-        return UDPHost.sockAddress(socketAddress).equals(
-                UDPHost.sockAddress(p.getRemote()));
+        return PeerKey.equal(PeerKey.of(socketAddress), socketAddress,
+                             PeerKey.of(p.getRemote()), p.getRemote());
+    }
+    
+    /**
+     * Check if the payload is a view of a pooled buffer
+     * 
+     * @return true if it is
+     */
+    public boolean isPooled() {
+        return pooled != null;
+    }
+    
+    /**
+     * Take one more reference to a pooled payload, to be given back with
+     * {@link #release() release}
+     * 
+     * @return this payload
+     * @throws IllegalStateException if it has already been released
+     */
+    public Payload retain() {
+        if(refs != null) {
+            int r;
+            do {
+                r = refs.get();
+                if(r <= 0) {
+                    throw new IllegalStateException("payload released");
+                }
+            } while(!refs.compareAndSet(r, r + 1));
+        }
+        return this;
+    }
+    
+    /**
+     * Give back a reference to a pooled payload. The last one returns its
+     * buffer to the pool
+     * 
+     * @throws IllegalStateException if it has already been released
+     */
+    public void release() {
+        if(refs == null) {
+            return;
+        }
+        int r = refs.decrementAndGet();
+        if(r == 0) {
+            pooled.release();
+        } else if(r < 0) {
+            throw new IllegalStateException("payload released");
+        }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+
+/**
+ * <p>Socket addresses packed into a <code>long</code>, to match and look up
+ * peers without formatting "ip:port" strings. An IPv4 address and port
+ * take the low 48 bits as they are. An IPv6 address is hashed to 47 bits,
+ * which go above the port with the top bit set, so the two never
+ * collide.</p>
+ *
+ * <p>Making the key of an IPv4 address allocates nothing, and keeps
+ * nothing. IPv6 keys are not kept either, so a sender going through the
+ * addresses of its /64 costs no memory. The hash is seeded at random per
+ * process, so which IPv6 addresses share a key cannot be worked out from
+ * outside, but two of them still can: anything matching peers by IPv6 key
+ * has to compare the addresses too, see
+ * {@link #equal(long, SocketAddress, long, SocketAddress) equal}.</p>
+ *
+ * @author wira
+ */
+public class PeerKey {
+    private static final long IPV6 = 1L << 63;
+
+    private static final long SEED = new SecureRandom().nextLong();
+
+    private PeerKey() {
+
+    }
+
+    /**
+     * Get the key of a socket address
+     *
+     * @param socket the address, an <code>InetSocketAddress</code>
+     * @return the key
+     */
+    public static long of(SocketAddress socket) {
+        InetSocketAddress s = (InetSocketAddress) socket;
+        return of(s.getAddress(), s.getPort());
+    }
+
+    /**
+     * Get the key of an address and port
+     *
+     * @param addr the address
+     * @param port the port
+     * @return the key
+     */
+    public static long of(InetAddress addr, int port) {
+        if(addr instanceof Inet4Address) {
+            // the hash code of an IPv4 address is the address itself
+            return ((addr.hashCode() & 0xffffffffL) << 16) | port;
+        }
+        byte[] b = addr.getAddress();
+        long hi = 0;
+        long lo = 0;
+        for(int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (b[i] & 0xff);
+            lo = (lo << 8) | (b[i + 8] & 0xff);
+        }
+        long h = mix(mix(SEED ^ hi) ^ lo);
+        return IPV6 | ((h >>> 17) << 16) | port;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, every input bit affects every output bit
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Check whether two keyed addresses are the same. The keys are compared
+     * first, and the addresses only when both are IPv6 keys that match
+     *
+     * @param key key of the first address
+     * @param addr the first address
+     * @param otherKey key of the second address
+     * @param other the second address
+     * @return true if they are the same
+     */
+    public static boolean equal(long key, SocketAddress addr,
+                                long otherKey, SocketAddress other) {
+        return key == otherKey && (!isIPv6(key) || addr.equals(other));
+    }
+
+    /**
+     * Get the port of a key
+     *
+     * @param key the key
+     * @return port number
+     */
+    public static int port(long key) {
+        return (int) (key & 0xffff);
+    }
+
+    /**
+     * Check whether a key is of an IPv6 address
+     *
+     * @param key the key
+     * @return true for IPv6
+     */
+    public static boolean isIPv6(long key) {
+        return (key & IPV6) != 0;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.bbi.tools.CoarseClock;
+import org.bbi.tools.Log;
+import org.bbi.tools.TokenBucket;
+
+/**
+ * <p>Forwards datagrams between the two hosts of a session, for peers that
+ * cannot reach each other directly. A host sends a
+ * {@link Frame#RELAY RELAY} frame carrying the session number, and the
+ * frame goes out unchanged to the other host of the session, straight from
+ * the pooled buffer it was received into. Nothing is decoded or copied, and
+ * looking up the session allocates nothing.</p>
+ *
+ * <p>Each session is held to {@link #BYTES_PER_SEC} and
+ * {@link #PACKETS_PER_SEC} by token buckets that can save up one second
+ * worth, and datagrams over the limit are dropped.</p>
+ *
+ * <p>A relay is installed on a socket with
+ * {@link SockUDP#setRelay(Relay) setRelay}, and can serve several sockets
+ * at once.</p>
+ *
+ * @author wira
+ */
+public class Relay {
+    /**
+     * Bytes a session may forward per second
+     */
+    public static long BYTES_PER_SEC = 1 << 20;
+
+    /**
+     * Datagrams a session may forward per second
+     */
+    public static long PACKETS_PER_SEC = 2000;
+
+    /**
+     * Most sessions open at once, the low 16 bits of a session number
+     */
+    private static final int SLOTS = 1 << 16;
+
+    private final AtomicReferenceArray<Session> slots =
+            new AtomicReferenceArray<>(SLOTS);
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong forwardedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Open a session between two hosts
+     *
+     * @param a address of one host
+     * @param b address of the other
+     * @return session number
+     * @throws IOException if every session is taken
+     */
+    public int open(SocketAddress a, SocketAddress b) throws IOException {
+        for(int i = 0; i < SLOTS; i++) {
+            int slot = cursor.getAndIncrement() & (SLOTS - 1);
+            if(slots.get(slot) != null) {
+                continue;
+            }
+            int gen = generation.incrementAndGet() & 0xffff;
+            if(gen == 0) {
+                gen = 1;
+            }
+            Session s = new Session((gen << 16) | slot, a, b);
+            if(slots.compareAndSet(slot, null, s)) {
+                return s.id;
+            }
+        }
+        throw new IOException("no relay session left");
+    }
+
+    /**
+     * Close a session
+     *
+     * @param session session number
+     */
+    public void close(int session) {
+        Session s = session(session);
+        if(s != null) {
+            slots.compareAndSet(session & (SLOTS - 1), s, null);
+        }
+    }
+
+    /**
+     * Get the time since a session last forwarded a datagram, or since it
+     * was opened
+     *
+     * @param session session number
+     * @return time in milliseconds, -1 if there is no such session
+     */
+    public long getIdleTime(int session) {
+        Session s = session(session);
+        return s == null ? -1 : CoarseClock.millis() - s.lastActive;
+    }
+
+    private Session session(int session) {
+        Session s = slots.get(session & (SLOTS - 1));
+        return s != null && s.id == session ? s : null;
+    }
+
+    /**
+     * Forward a relay frame to the other host of its session. Called on the
+     * demultiplexer thread
+     *
+     * @param t transport the frame arrived on
+     * @param d the frame, released by this call
+     */
+    void forward(DatagramTransport t, Datagram d) {
+        try {
+            Session s = session((int) d.getInt(3));
+            SocketAddress to = null;
+            if(s != null) {
+                long from = PeerKey.of(d.source);
+                to = PeerKey.equal(from, d.source, s.keyA, s.a) ? s.b :
+                     PeerKey.equal(from, d.source, s.keyB, s.b) ? s.a : null;
+            }
+            if(to == null || !s.admit(d.length())) {
+                dropped.incrementAndGet();
+                return;
+            }
+            t.send(d.buf, to);
+            forwarded.incrementAndGet();
+            forwardedBytes.addAndGet(d.length());
+        } catch(IOException ioe) {
+            Log.d(3, "relay: " + ioe);
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Get the number of datagrams forwarded
+     *
+     * @return number of datagrams
+     */
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    /**
+     * Get the number of bytes forwarded, relay headers included
+     *
+     * @return number of bytes
+     */
+    public long getForwardedBytes() {
+        return forwardedBytes.get();
+    }
+
+    /**
+     * Get the number of datagrams dropped for being over the rate limits,
+     * of an unknown session, or from a host not in their session
+     *
+     * @return number of datagrams
+     */
+    public long getDropCount() {
+        return dropped.get();
+    }
+
+    private static class Session {
+        final int id;
+        final SocketAddress a;
+        final SocketAddress b;
+        final long keyA;
+        final long keyB;
+        volatile long lastActive;
+        private final TokenBucket bytes =
+                new TokenBucket(BYTES_PER_SEC, BYTES_PER_SEC);
+        private final TokenBucket packets =
+                new TokenBucket(PACKETS_PER_SEC, PACKETS_PER_SEC);
+
+        Session(int id, SocketAddress a, SocketAddress b) {
+            this.id = id;
+            this.a = a;
+            this.b = b;
+            keyA = PeerKey.of(a);
+            keyB = PeerKey.of(b);
+            lastActive = CoarseClock.millis();
+        }
+
+        /**
+         * Take a datagram out of the token buckets
+         *
+         * @return false if it is over the limits
+         */
+        boolean admit(int len) {
+            if(!packets.take(1) || !bytes.take(len)) {
+                return false;
+            }
+            lastActive = CoarseClock.millis();
+            return true;
+        }
+    }
+}
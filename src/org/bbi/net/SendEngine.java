@@ -0,0 +1,359 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.bbi.net.cc.Pacer;
+import org.bbi.tools.Log;
+import org.bbi.tools.RingQueue;
+
+/**
+ * <p>The send side of a socket as a single thread. Senders drop their
+ * datagrams into a lock-free queue and go on, and the engine thread is the
+ * only one that touches the socket, so senders never contend for it.</p>
+ *
+ * <p>The engine drains the queue in batches into a queue per host and
+ * serves the hosts round robin, each getting <code>QUANTUM</code> bytes per
+ * round (deficit round robin), so a host with a deep backlog cannot starve
+ * the others. Datagrams of senders with a congestion controller get their
+ * pacing slot when they reach the head of their host's queue, and a host
+ * whose next slot has not come yet is skipped instead of holding up the
+ * rest. Control datagrams bypass all of this and go out before anything
+ * else.</p>
+ *
+ * <p>There is one instance per socket, shared by every {@link SockUDP}
+ * wrapping it, with its thread started on first use.</p>
+ *
+ * @author wira
+ */
+public class SendEngine implements Runnable {
+    /**
+     * Number of datagrams that can be queued before senders have to wait
+     */
+    public static int QUEUE_SIZE = 16384;
+
+    /**
+     * Bytes a host may send per round robin turn
+     */
+    public static int QUANTUM = SockUDP.UDP_MAX_DATAGRAM_SIZE;
+
+    /**
+     * Longest time the idle engine sleeps before checking whether the
+     * socket was closed
+     */
+    private static final long IDLE_NS = 1000000000L;
+
+    private final DatagramTransport t;
+    private final SendLanes lanes;
+    private final RingQueue<Datagram> in = new RingQueue<>(QUEUE_SIZE);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean idle;
+    private volatile boolean closed;
+    private Thread thread;
+
+    // only touched by the engine thread
+    private final ArrayDeque<Datagram> control = new ArrayDeque<>();
+    private final HashMap<SocketAddress, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+
+    SendEngine(DatagramTransport t, SendLanes lanes) {
+        this.t = t;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Queue a datagram. Blocks only while the queue is full
+     *
+     * @param addr destination address
+     * @param d the datagram, owned by the engine from now on
+     * @param control true to send it ahead of everything else
+     * @param pacer pacer to get a send slot from, <code>null</code> to send
+     * as soon as it is the host's turn
+     * @param f completion to count the datagram in, can be
+     * <code>null</code>
+     * @throws IOException if the socket is closed
+     */
+    void submit(SocketAddress addr, Datagram d, boolean control, Pacer pacer,
+                SendFuture f) throws IOException {
+        if(closed) {
+            d.release();
+            throw closedException();
+        }
+        start();
+        d.target = addr;
+        d.control = control;
+        d.pacer = pacer;
+        d.future = f;
+        if(f != null) {
+            f.add();
+        }
+        while(!in.offer(d)) {
+            if(closed) {
+                d.release();
+                if(f != null) {
+                    f.sent(closedException());
+                }
+                throw closedException();
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(Pacer.SPIN_THRESHOLD_NS);
+        }
+        if(closed) {
+            // the engine thread is gone, nobody else will
+            failQueued();
+        } else if(idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void start() {
+        if(thread == null) {
+            thread = new Thread(this, "SendEngine[" + t.getLocalPort() + "]");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(1, this + ": run");
+        try {
+            while(!t.isClosed()) {
+                drain();
+                long wait = sendSome();
+                if(wait == 0) {
+                    continue;
+                }
+                if(wait > 0 && wait < Pacer.SPIN_THRESHOLD_NS) {
+                    // parking would overshoot the slot
+                    Thread.yield();
+                    continue;
+                }
+                idle = true;
+                if(in.isEmpty()) {
+                    LockSupport.parkNanos(this, wait > 0 ? wait : IDLE_NS);
+                }
+                idle = false;
+            }
+        } finally {
+            closed = true;
+            failQueued();
+            IOException e = closedException();
+            for(Datagram d : control) {
+                fail(d, e);
+            }
+            for(Flow f : active) {
+                for(Datagram d : f.queue) {
+                    fail(d, e);
+                }
+            }
+            control.clear();
+            active.clear();
+            flows.clear();
+        }
+        Log.d(1, this + ": exit");
+    }
+
+    /**
+     * Move everything submitted so far to the control queue or the queue of
+     * its host
+     */
+    private void drain() {
+        Datagram d;
+        while((d = in.poll()) != null) {
+            if(d.control) {
+                control.add(d);
+                continue;
+            }
+            Flow f = flows.get(d.target);
+            if(f == null) {
+                f = new Flow(d.target);
+                flows.put(d.target, f);
+                active.add(f);
+            }
+            f.queue.add(d);
+        }
+    }
+
+    /**
+     * Give every host with queued datagrams one turn, sending the control
+     * queue first and again whenever something new was submitted
+     *
+     * @return 0 if anything was sent, otherwise the time in nanoseconds
+     * until the earliest pacing slot, or -1 if nothing is queued
+     */
+    private long sendSome() {
+        boolean progress = sendControl();
+        long earliest = Long.MAX_VALUE;
+        int n = active.size();
+        for(int i = 0; i < n; i++) {
+            Flow f = active.poll();
+            f.deficit += QUANTUM;
+            Datagram d;
+            while((d = f.queue.peek()) != null) {
+                if(d.pacer != null && !d.reserved) {
+                    d.slot = d.pacer.reserve(d.length());
+                    d.reserved = true;
+                }
+                long now = System.nanoTime();
+                if(d.pacer != null && d.slot - now > 0) {
+                    earliest = Math.min(earliest, d.slot - now);
+                    // a paced host does not save up turns while it waits
+                    f.deficit = Math.min(f.deficit, QUANTUM);
+                    break;
+                }
+                if(d.length() > f.deficit) {
+                    break;
+                }
+                f.deficit -= d.length();
+                f.queue.poll();
+                send(d);
+                progress = true;
+                if(!in.isEmpty()) {
+                    drain();
+                    sendControl();
+                }
+            }
+            if(f.queue.isEmpty()) {
+                flows.remove(f.addr);
+            } else {
+                active.add(f);
+            }
+        }
+        if(progress) {
+            return 0;
+        }
+        return active.isEmpty() ? -1 : Math.max(1, earliest == Long.MAX_VALUE ?
+                                                   1 : earliest);
+    }
+
+    private boolean sendControl() {
+        boolean progress = false;
+        Datagram d;
+        while((d = control.poll()) != null) {
+            if(d.pacer != null) {
+                // take the next slot but do not wait for it
+                d.pacer.reserve(d.length());
+            }
+            send(d);
+            progress = true;
+        }
+        return progress;
+    }
+
+    private void send(Datagram d) {
+        SendFuture f = d.future;
+        IOException error = null;
+        try {
+            if(d.control) {
+                lanes.sendControl(d.buf, d.target);
+            } else {
+                lanes.sendBulk(d.buf, d.target);
+            }
+            sent.incrementAndGet();
+        } catch(IOException ioe) {
+            error = ioe;
+            failed.incrementAndGet();
+            if(f == null) {
+                Log.d(3, this + ": " + UDPHost.sockAddress(d.target) +
+                         ": " + ioe);
+            }
+        } finally {
+            d.release();
+        }
+        if(f != null) {
+            f.sent(error);
+        }
+    }
+
+    /**
+     * Fail everything still in the submission queue after the engine thread
+     * exited
+     */
+    private void failQueued() {
+        IOException e = closedException();
+        Datagram d;
+        while((d = in.poll()) != null) {
+            fail(d, e);
+        }
+    }
+
+    private void fail(Datagram d, IOException e) {
+        SendFuture f = d.future;
+        d.release();
+        failed.incrementAndGet();
+        if(f != null) {
+            f.sent(e);
+        }
+    }
+
+    private static IOException closedException() {
+        return new SocketException("Socket is closed");
+    }
+
+    /**
+     * Get the number of datagrams the engine has put on the wire
+     *
+     * @return number of datagrams
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Get the number of datagrams that could not be sent
+     *
+     * @return number of datagrams
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of datagrams submitted but not yet taken by the engine
+     * thread
+     *
+     * @return number of datagrams
+     */
+    public int getQueued() {
+        return in.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SendEngine[" + t.getLocalPort() + "]";
+    }
+
+    /**
+     * Queued datagrams of one host
+     */
+    private static class Flow {
+        final SocketAddress addr;
+        final ArrayDeque<Datagram> queue = new ArrayDeque<>();
+        int deficit;
+
+        Flow(SocketAddress addr) {
+            this.addr = addr;
+        }
+    }
+}
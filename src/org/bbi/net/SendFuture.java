@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a message queued in a {@link SendEngine}. Every datagram of
+ * the message is counted in before it is queued and counted out once it is
+ * on the wire, and the message is done when it is {@link #seal() sealed}
+ * and nothing is left, or as soon as one of its datagrams fails
+ *
+ * @author wira
+ */
+class SendFuture implements Future<Void> {
+    private int pending;
+    private boolean sealed;
+    private boolean done;
+    private IOException error;
+
+    synchronized void add() {
+        pending++;
+    }
+
+    /**
+     * Mark the end of the message, no more datagrams are added after this
+     */
+    synchronized void seal() {
+        sealed = true;
+        if(pending == 0) {
+            finish(null);
+        }
+    }
+
+    /**
+     * Count a datagram out
+     *
+     * @param e why it could not be sent, <code>null</code> if it was
+     */
+    synchronized void sent(IOException e) {
+        pending--;
+        if(e != null) {
+            finish(e);
+        } else if(sealed && pending == 0) {
+            finish(null);
+        }
+    }
+
+    private void finish(IOException e) {
+        if(!done) {
+            done = true;
+            error = e;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the message is on the wire
+     *
+     * @throws IOException the reason a datagram could not be sent
+     */
+    synchronized void await() throws IOException {
+        try {
+            while(!done) {
+                wait();
+            }
+        } catch(InterruptedException ie) {
+            throw new InterruptedIOException("send interrupted");
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Queued datagrams cannot be taken back
+     *
+     * @return always false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException,
+                                          ExecutionException {
+        while(!done) {
+            wait();
+        }
+        if(error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!done) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if(error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.bbi.net.cc.Pacer;
+
+/**
+ * Strict priority between the control and the bulk lane of a socket's send
+ * side. Control datagrams go to the socket as soon as their sender gets
+ * there, while bulk senders hold back as long as a control datagram is
+ * waiting. A control datagram is never behind more than the bulk datagrams
+ * already being handed to the kernel, however many threads are sending
+ *
+ * @author wira
+ */
+class SendLanes {
+    /**
+     * Number of times a held back bulk sender yields before it starts
+     * parking, for a control send that blocks in the kernel
+     */
+    private static final int YIELDS = 100;
+
+    private final DatagramTransport t;
+    private final AtomicInteger controlWaiting = new AtomicInteger();
+    private final AtomicLong controlSent = new AtomicLong();
+    private final AtomicLong bulkHeld = new AtomicLong();
+
+    SendLanes(DatagramTransport t) {
+        this.t = t;
+    }
+
+    /**
+     * Send a datagram ahead of any bulk datagram that is not on its way yet
+     *
+     * @param src datagram contents
+     * @param target destination address
+     * @throws IOException if the datagram could not be sent
+     */
+    void sendControl(ByteBuffer src, SocketAddress target) throws IOException {
+        controlWaiting.incrementAndGet();
+        try {
+            t.send(src, target);
+            controlSent.incrementAndGet();
+        } finally {
+            controlWaiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send a datagram once no control datagram is waiting
+     *
+     * @param src datagram contents
+     * @param target destination address
+     * @throws IOException if the datagram could not be sent
+     */
+    void sendBulk(ByteBuffer src, SocketAddress target) throws IOException {
+        if(controlWaiting.get() > 0) {
+            bulkHeld.incrementAndGet();
+            for(int i = 0; controlWaiting.get() > 0; i++) {
+                if(i < YIELDS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(Pacer.SPIN_THRESHOLD_NS);
+                }
+            }
+        }
+        t.send(src, target);
+    }
+
+    /**
+     * Get the number of datagrams sent on the control lane
+     *
+     * @return number of datagrams
+     */
+    long getControlCount() {
+        return controlSent.get();
+    }
+
+    /**
+     * Get the number of bulk datagrams that had to wait for the control
+     * lane
+     *
+     * @return number of datagrams
+     */
+    long getHeldCount() {
+        return bulkHeld.get();
+    }
+}
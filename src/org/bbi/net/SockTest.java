@@ -18,6 +18,8 @@ package org.bbi.net;
 import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.DatagramSocket;
@@ -25,6 +27,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.util.concurrent.ExecutorService;
@@ -64,6 +67,31 @@ public class SockTest {
             SockUDP.PIECE_SEND_DELAY_MS = Integer.parseInt(env);
             Log.d(0, "UDP_PIECE_SEND_DELAY_MS set to " + SockUDP.PIECE_SEND_DELAY_MS);
         }
+        if((env = System.getenv("UDP_CONGESTION_CONTROL")) != null) {
+            // aimd, cubic or delay
+            SockUDP.DEFAULT_CONGESTION_CONTROL = env;
+            Log.d(0, "UDP_CONGESTION_CONTROL set to " + env);
+        }
+        if((env = System.getenv("UDP_FEC")) != null) {
+            SockUDP.DEFAULT_FEC = env.equals("1");
+            Log.d(0, "UDP_FEC set to " + SockUDP.DEFAULT_FEC);
+        }
+        if((env = System.getenv("UDP_PMTU")) != null) {
+            SockUDP.DEFAULT_PATH_MTU_DISCOVERY = env.equals("1");
+            Log.d(0, "UDP_PMTU set to " + SockUDP.DEFAULT_PATH_MTU_DISCOVERY);
+        }
+        if((env = System.getenv("UDP_LANES")) != null) {
+            SockUDP.DEFAULT_PRIORITY_LANES = env.equals("1");
+            Log.d(0, "UDP_LANES set to " + SockUDP.DEFAULT_PRIORITY_LANES);
+        }
+        if((env = System.getenv("UDP_BUNDLING")) != null) {
+            SockUDP.DEFAULT_BUNDLING = env.equals("1");
+            Log.d(0, "UDP_BUNDLING set to " + SockUDP.DEFAULT_BUNDLING);
+        }
+        if((env = System.getenv("UDP_SEND_ENGINE")) != null) {
+            SockUDP.DEFAULT_SEND_ENGINE = env.equals("1");
+            Log.d(0, "UDP_SEND_ENGINE set to " + SockUDP.DEFAULT_SEND_ENGINE);
+        }
         
         if(args.length == 3 && args[0].equals("serve")) {
             serve(args);
@@ -87,7 +115,7 @@ public class SockTest {
             udpsendfile(args);
         } else if(args.length == 3 && args[0].equals("udprecvfile")) {
             udprecvfile(args);
-        } else if(args.length == 2 && args[0].equals("udppunchholeserver")) {
+        } else if(args.length >= 2 && args[0].equals("udppunchholeserver")) {
             udppunchholeserver(args);
         } else if(args.length == 3 && args[0].equals("udppunchholeclient")) {
             udppunchholeclient(args);
@@ -287,7 +315,9 @@ public class SockTest {
             int port = Integer.parseInt(tokens[1]);
             InetSocketAddress addr = new InetSocketAddress(host, port);
             Log.d(0, "sending " + args[2] + " to " + UDPHost.sockAddress(addr));
-            sock.put(addr, Files7.readAllBytes(args[2]), null);
+            try (FileChannel in = new FileInputStream(args[2]).getChannel()) {
+                sock.putStream(addr, in, in.size(), null);
+            }
             ss.close();
         } catch(Exception e) {
             Log.err("exception: " + e);
@@ -305,7 +335,9 @@ public class SockTest {
             ProgressUpdater pUpdater = new ProgressUpdater(pFrame);
             pool.execute(pUpdater);
             // SockUDP.getf(ss, args[2], p);
-            Files7.write(args[2], sock.get(null, p).get());
+            try (FileChannel out = new FileOutputStream(args[2]).getChannel()) {
+                sock.getStream(null, out, 0, p);
+            }
             ss.close();
             pUpdater.stop();
             pFrame.dispose();
@@ -317,7 +349,8 @@ public class SockTest {
     
     public static void udppunchholeserver(String...args) {
         try {
-            UDPServer s = new UDPServer(Integer.parseInt(args[1]));
+            UDPServer s = new UDPServer(Integer.parseInt(args[1]),
+                    args.length > 2 ? Integer.parseInt(args[2]) : 1);
             pool.execute(s);
         } catch(Exception e) {
             e.printStackTrace();
@@ -15,6 +15,7 @@
  */
 package org.bbi.net;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -22,13 +23,33 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bbi.net.cc.AbstractCongestionControl;
+import org.bbi.net.cc.CongestionControl;
+import org.bbi.net.cc.Pacer;
+import org.bbi.net.fec.FECPolicy;
+import org.bbi.net.fec.FECReassembler;
+import org.bbi.net.fec.ReedSolomon;
 import org.bbi.tools.FileEntry;
 import org.bbi.tools.Log;
+import org.bbi.tools.LongHashMap;
 
 /**
  * Some tools to transfer data and files over UDP
@@ -37,14 +58,30 @@ import org.bbi.tools.Log;
  */
 public class SockUDP {
     /**
-     * The UDP socket we're working on
+     * The UDP socket or channel we're working on
      */
-    private DatagramSocket s;
+    private final DatagramTransport t;
     
     /**
-     * The last time the buffer was accessed
+     * Receive side of the socket, created on the first read
      */
-    private long lastBufferAccess;
+    private volatile Demultiplexer demux;
+    
+    /**
+     * Stream this instance sends and receives on, 0 for the plain framing
+     */
+    private final int stream;
+    
+    /**
+     * Relay server this instance sends through, <code>null</code> to send
+     * directly
+     */
+    private SocketAddress relayServer;
+    
+    /**
+     * Relay session this instance sends on
+     */
+    private int relaySession;
     
     /**
      * Size of the buffer used to read file from disk
@@ -63,14 +100,130 @@ public class SockUDP {
     private static int UDP_PUT_BUFFER_SIZE = 2*(UDP_MAX_DATAGRAM_SIZE-4); 
     
     /**
-     * Delay between broken up data pieces
+     * Delay between broken up data pieces. Only used when no congestion
+     * controller is set
      */
     public static int PIECE_SEND_DELAY_MS = 0;
     
     /**
-     * Temporary buffer of unclaimed UDP packets
+     * Name of the congestion controller new instances start with
+     * (<code>aimd</code>, <code>cubic</code> or <code>delay</code>), 
+     * <code>null</code> for none
+     */
+    public static String DEFAULT_CONGESTION_CONTROL = null;
+    
+    /**
+     * Congestion controller that sets the send rate, <code>null</code> if
+     * pieces are sent back to back
+     */
+    private CongestionControl cc;
+    
+    /**
+     * Schedules piece transmission at the controller's pacing rate
+     */
+    private Pacer pacer;
+    
+    /**
+     * Whether new instances protect SEND with forward error correction
+     */
+    public static boolean DEFAULT_FEC = false;
+    
+    /**
+     * Parity policy when SEND adds FEC parity pieces, <code>null</code> to
+     * send plain pieces
+     */
+    private FECPolicy fec;
+    
+    /**
+     * Whether new instances probe the path MTU of the hosts they send to
+     */
+    public static boolean DEFAULT_PATH_MTU_DISCOVERY = false;
+    
+    /**
+     * Whether SEND sizes pieces by the probed path MTU of the remote host
+     */
+    private boolean pmtu;
+    
+    /**
+     * Whether new instances send small messages on the control lane
+     */
+    public static boolean DEFAULT_PRIORITY_LANES = false;
+    
+    /**
+     * Largest message, in bytes, sent on the control lane when priority
+     * lanes are enabled. Control messages always go in a single datagram, so
+     * keep this well below the smallest path MTU
+     */
+    public static int CONTROL_MESSAGE_SIZE = 512;
+    
+    /**
+     * Whether small messages and WRITE go on the control lane
+     */
+    private boolean lanes;
+    
+    /**
+     * Whether new instances bundle small datagrams
+     */
+    public static boolean DEFAULT_BUNDLING = false;
+    
+    /**
+     * Whether small datagrams go through the socket's {@link Bundler}
+     */
+    private boolean bundling;
+    
+    /**
+     * Whether new instances send through the socket's {@link SendEngine}
+     */
+    public static boolean DEFAULT_SEND_ENGINE = false;
+    
+    /**
+     * Whether every datagram goes through the socket's send engine
+     */
+    private boolean engine;
+    
+    /**
+     * Number of the next FEC protected message or stream. Shared by all 
+     * instances so instances sharing a socket never reuse a number, and 
+     * started at a random value so a restarted peer is unlikely to collide 
+     * with numbers the remote host has just seen
+     */
+    private static final AtomicInteger MESSAGE = 
+            new AtomicInteger(new Random().nextInt());
+    
+    /**
+     * Number of recently completed messages remembered per source
+     */
+    private static final int MESSAGE_HISTORY = 8;
+    
+    /**
+     * Number of sources whose completed messages are remembered
      */
-    private final List<DatagramPacket> RECV_BUFFER = new ArrayList<>();
+    private static final int HISTORY_SOURCES = 1024;
+    
+    /**
+     * Recently completed FEC messages and streams per source, by 
+     * {@link PeerKey}, used to drop parity or duplicates that arrive after
+     * their message was completed
+     */
+    private final LongHashMap<History> history = new LongHashMap<>();
+    
+    /**
+     * Number of the last history access, to find the least recently used
+     * source when the history is full
+     */
+    private int historyTick;
+    
+    /**
+     * Sequencing state of timed messages per source
+     */
+    private final Map<SocketAddress, TimedReceiver> timed = 
+            new LinkedHashMap<SocketAddress, TimedReceiver>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<SocketAddress, TimedReceiver> e) {
+                    return size() > 1024;
+                }
+            };
     
     /**
      * Provide a socket handle to initiate the class
@@ -78,8 +231,456 @@ public class SockUDP {
      * @param s socket handle to use
      */
     public SockUDP(DatagramSocket s) {
-        this.s = s;
-        lastBufferAccess = System.currentTimeMillis();
+        this(new SocketTransport(s));
+    }
+    
+    /**
+     * <p>Provide an NIO channel to initiate the class. Datagrams are sent and
+     * received through pooled direct buffers, so once the pool has warmed up
+     * moving pieces around allocates nothing and the kernel copies straight
+     * into and out of the pool.</p>
+     * 
+     * <p>The channel must be in blocking mode. A channel and its
+     * <code>socket()</code> adaptor must not be wrapped at the same time,
+     * they would have a receive thread each.</p>
+     * 
+     * @param ch channel to use
+     * @throws IOException if the channel is not in blocking mode
+     */
+    public SockUDP(DatagramChannel ch) throws IOException {
+        this(new ChannelTransport(ch));
+    }
+    
+    private SockUDP(DatagramTransport t) {
+        this.t = t;
+        this.stream = 0;
+        if(DEFAULT_CONGESTION_CONTROL != null) {
+            setCongestionControl(AbstractCongestionControl.create(
+                    DEFAULT_CONGESTION_CONTROL, UDP_MAX_DATAGRAM_SIZE));
+        }
+        if(DEFAULT_FEC) {
+            setFEC(new FECPolicy());
+        }
+        pmtu = DEFAULT_PATH_MTU_DISCOVERY;
+        lanes = DEFAULT_PRIORITY_LANES;
+        bundling = DEFAULT_BUNDLING;
+        engine = DEFAULT_SEND_ENGINE;
+    }
+    
+    private SockUDP(SockUDP parent, int stream) {
+        this.t = parent.t;
+        this.demux = parent.demux;
+        this.stream = stream;
+        this.cc = parent.cc;
+        this.pacer = parent.pacer;
+        this.fec = parent.fec;
+        this.pmtu = parent.pmtu;
+        this.lanes = parent.lanes;
+        this.bundling = parent.bundling;
+        this.engine = parent.engine;
+        this.relayServer = parent.relayServer;
+        this.relaySession = parent.relaySession;
+    }
+    
+    /**
+     * <p>Get a view of this socket that sends and receives on its own
+     * stream. Every datagram sent through the view is wrapped in a
+     * {@link Frame#STREAM STREAM} frame carrying the stream number, and the
+     * receiving side queues it apart from every other stream of the same
+     * host. Messages on different streams can be in flight at the same time
+     * without corrupting each other, and each stream synchronizes its own
+     * PUT/GET chunks, so a stalled transfer does not hold up the others.</p>
+     * 
+     * <p>The view starts with this instance's congestion controller, FEC
+     * policy, path MTU, priority lane, bundling and send engine settings.
+     * The congestion controller is shared, as all streams go over the same
+     * path. Stream 0 is the plain framing that hosts without stream support
+     * understand, the remote host must support streams for any other.</p>
+     * 
+     * @param id stream number, 0 to 65535
+     * @return the view
+     */
+    public SockUDP stream(int id) {
+        if(id < 0 || id > 0xffff) {
+            throw new IllegalArgumentException("stream " + id);
+        }
+        return new SockUDP(this, id);
+    }
+    
+    /**
+     * <p>Get a view of this socket that reaches a peer through a relay
+     * server, for when the two cannot reach each other directly. Every
+     * datagram sent through the view, to any address, is wrapped in a
+     * {@link Frame#RELAY RELAY} frame carrying the session number and sent
+     * to the server, which forwards it to the peer. What the peer sends on
+     * the session is received from the peer's address, as if it came
+     * directly.</p>
+     * 
+     * <p>The view starts with this instance's settings except bundling,
+     * which is off as the server only forwards single frames. Path MTU
+     * probes and connectivity checks do not go through the relay. The peer
+     * must send through a view of the same session.</p>
+     * 
+     * @param server address of the relay server
+     * @param session session number the server opened
+     * @param peer address the peer is known by
+     * @return the view
+     */
+    public SockUDP relay(SocketAddress server, int session, 
+                         SocketAddress peer) {
+        demux().addRelaySession(session, server, peer);
+        SockUDP s = new SockUDP(this, stream);
+        s.relayServer = server;
+        s.relaySession = session;
+        s.bundling = false;
+        return s;
+    }
+    
+    /**
+     * Stop taking in datagrams from a relay session
+     * 
+     * @param session session number
+     */
+    public void closeRelay(int session) {
+        demux().removeRelaySession(session);
+    }
+    
+    /**
+     * <p>Forward the {@link Frame#RELAY RELAY} frames arriving at this 
+     * socket through a relay, as a relay server. Relay frames are then no
+     * longer taken in as a peer.</p>
+     * 
+     * @param r the relay, <code>null</code> to stop forwarding
+     */
+    public void setRelay(Relay r) {
+        demux().setRelay(r);
+    }
+    
+    /**
+     * Send a {@link Frame#KEEPALIVE KEEPALIVE} frame to hold the NAT binding
+     * of the path to a host open. It goes out right away, ahead of anything
+     * paced or queued, through the relay if this is a relay view
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @throws IOException if an I/O exception occurs
+     */
+    public void keepAlive(SocketAddress addr) throws IOException {
+        Datagram d = t.pool().acquire();
+        try {
+            if(relayServer != null) {
+                Frame.putHeader(d.buf, Frame.RELAY);
+                d.buf.putInt(relaySession);
+            }
+            Frame.putHeader(d.buf, Frame.KEEPALIVE);
+            d.buf.flip();
+            t.send(d.buf, route(addr));
+        } finally {
+            d.release();
+        }
+    }
+    
+    /**
+     * Get the number for a new FEC protected message or stream
+     * 
+     * @return message number
+     */
+    static int nextMessage() {
+        return MESSAGE.incrementAndGet() & 0xffff;
+    }
+    
+    /**
+     * Get the stream this instance sends and receives on
+     * 
+     * @return stream number, 0 for the plain framing
+     */
+    public int getStreamId() {
+        return stream;
+    }
+    
+    /**
+     * Get an empty pooled datagram, with the stream frame header already in
+     * place when sending on a stream
+     * 
+     * @return the datagram
+     */
+    Datagram datagram() {
+        return datagram(false);
+    }
+    
+    /**
+     * Get an empty pooled datagram with the frame headers already in place,
+     * the relay header outermost
+     * 
+     * @param control true to send it on the control lane
+     * @return the datagram
+     */
+    private Datagram datagram(boolean control) {
+        Datagram d = t.pool().acquire();
+        if(relayServer != null) {
+            Frame.putHeader(d.buf, Frame.RELAY);
+            d.buf.putInt(relaySession);
+        }
+        if(control) {
+            Frame.putHeader(d.buf, Frame.CONTROL);
+        }
+        if(stream != 0) {
+            Frame.putHeader(d.buf, Frame.STREAM);
+            d.buf.putShort((short) stream);
+        }
+        return d;
+    }
+    
+    /**
+     * <p>Enable path MTU discovery. Each remote host is probed once (and 
+     * again every <code>PathMTU.REPROBE_MS</code>) for the largest datagram
+     * that gets through without IP fragmentation, and SEND, PUTSTREAM and
+     * FEC pieces are cut to that size. Until the host answers, and for hosts
+     * that never do, pieces stay <code>UDP_MAX_DATAGRAM_SIZE</code>.</p>
+     * 
+     * <p>Probes are extended frames, so like FEC this must only be enabled
+     * when the remote host runs a version that understands them.</p>
+     * 
+     * @param enable true to size pieces by the path MTU
+     */
+    public void setPathMTUDiscovery(boolean enable) {
+        this.pmtu = enable;
+    }
+    
+    public boolean isPathMTUDiscovery() {
+        return pmtu;
+    }
+    
+    /**
+     * Get the datagram size to use for a host
+     * 
+     * @param addr address of the host
+     * @return size in bytes, including headers
+     */
+    int datagramSize(SocketAddress addr) {
+        int size = pmtu ? demux().getPathMTU().getDatagramSize(addr) : 
+                          UDP_MAX_DATAGRAM_SIZE;
+        if(relayServer != null) {
+            size -= Frame.RELAY_HEADER_SIZE;
+        }
+        return stream != 0 ? size - Frame.STREAM_HEADER_SIZE : size;
+    }
+    
+    /**
+     * <p>Enable priority lanes. Messages of up to 
+     * <code>CONTROL_MESSAGE_SIZE</code> bytes, such as the PUT/GET
+     * synchronization lines and command replies, and everything sent with
+     * WRITE go on the control lane: they are not held by the pacer, they 
+     * go to the socket ahead of bulk pieces waiting to be sent by other 
+     * threads, and they are sent in a {@link Frame#CONTROL CONTROL} frame
+     * that the receiving demultiplexer queues ahead of the bulk data of the
+     * same host and stream. Control messages skip FEC.</p>
+     * 
+     * <p>A control message may therefore overtake bulk data sent before it
+     * to the same host and stream. PUT, GET and their file and stream 
+     * variants never have both in flight. The remote host must run a 
+     * version that understands the frame.</p>
+     * 
+     * @param enable true to send small messages on the control lane
+     */
+    public void setPriorityLanes(boolean enable) {
+        this.lanes = enable;
+    }
+    
+    public boolean isPriorityLanes() {
+        return lanes;
+    }
+    
+    /**
+     * <p>Enable bundling of small datagrams. Datagrams of up to
+     * <code>Bundler.MESSAGE_SIZE</code> bytes, such as WRITE lines, 
+     * synchronization lines and short messages, are held for up to
+     * <code>Bundler.FLUSH_DELAY_US</code> and packed with whatever else is
+     * sent to the same host in the meantime into one 
+     * {@link Frame#BUNDLE BUNDLE} frame. Anything bigger flushes the bundle
+     * of its host first, so datagrams to a host still leave in order, and 
+     * so does waiting for a datagram from a host, so a request is never
+     * held back while its sender waits for the reply. Bundled datagrams are
+     * not paced.</p>
+     * 
+     * <p>The remote host must run a version that understands the
+     * frame.</p>
+     * 
+     * @param enable true to bundle small datagrams
+     */
+    public void setBundling(boolean enable) {
+        this.bundling = enable;
+    }
+    
+    public boolean isBundling() {
+        return bundling;
+    }
+    
+    /**
+     * Send whatever is waiting in the bundle of a host right away
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @throws IOException if an I/O exception occurs 
+     */
+    public void flush(SocketAddress addr) throws IOException {
+        if(bundling) {
+            demux().getBundler().flush(addr);
+        }
+    }
+    
+    /**
+     * <p>Send through the socket's {@link SendEngine}. Datagrams are handed
+     * to the engine thread, which is the only one writing to the socket,
+     * paces them and shares the socket fairly between the hosts they go
+     * to. SEND and WRITE still return once their datagrams are on the wire,
+     * PUTSTREAM returns once its last chunk is acknowledged as before, and
+     * {@link #sendAsync(SocketAddress, byte[], Progress) sendAsync} returns
+     * right away.</p>
+     * 
+     * <p>Datagrams sent through the engine are not bundled. Nothing changes
+     * on the wire, the remote host does not need to know.</p>
+     * 
+     * @param enable true to send through the engine
+     */
+    public void setSendEngine(boolean enable) {
+        this.engine = enable;
+    }
+    
+    public boolean isSendEngine() {
+        return engine;
+    }
+    
+    /**
+     * <p>Enable forward error correction for SEND. Every block of pieces is
+     * followed by Reed-Solomon parity pieces so RECV can rebuild lost pieces
+     * without a round trip. The amount of parity follows the loss rate the
+     * receiver reports on PUT/GET synchronization.</p>
+     * 
+     * <p>Only the sender needs to enable this, RECV always understands FEC
+     * protected messages. The remote host must be running a version that
+     * does, though.</p>
+     * 
+     * @param policy parity policy, <code>null</code> to disable FEC
+     */
+    public void setFEC(FECPolicy policy) {
+        this.fec = policy;
+    }
+    
+    /**
+     * Get the FEC parity policy in use
+     * 
+     * @return the policy or <code>null</code> if FEC is disabled
+     */
+    public FECPolicy getFEC() {
+        return fec;
+    }
+    
+    /**
+     * Set the congestion controller used to pace outgoing pieces. The
+     * controller is fed with round trip times measured on the PUT/GET 
+     * synchronization, and a synchronization that takes longer than the 
+     * controller's timeout estimate counts as a loss
+     * 
+     * @param cc the congestion controller, <code>null</code> to send pieces
+     * back to back (with <code>PIECE_SEND_DELAY_MS</code> between them)
+     */
+    public void setCongestionControl(CongestionControl cc) {
+        this.cc = cc;
+        this.pacer = cc == null ? null : new Pacer(cc);
+    }
+    
+    /**
+     * Get the congestion controller in use
+     * 
+     * @return the congestion controller or <code>null</code> if none is set
+     */
+    public CongestionControl getCongestionControl() {
+        return cc;
+    }
+    
+    /**
+     * Check a chunk synchronization reply. A receiver of FEC protected data
+     * appends its loss report ("next LOST TOTAL"), which is fed to the FEC
+     * policy, the congestion controller and the path MTU table
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param reply the synchronization line
+     * @param bytes size of the chunk
+     * @param startTime <code>System.nanoTime</code> when the last piece of
+     * the chunk was sent
+     * @return true if this is a valid "next" line
+     */
+    boolean sync(SocketAddress addr, String reply, long bytes, 
+                         long startTime) {
+        String[] tokens = reply.split(" ");
+        if(!tokens[0].equals("next")) {
+            return false;
+        }
+        boolean lossy = !acknowledge(bytes, startTime);
+        if(tokens.length == 3) {
+            try {
+                int lost = Integer.parseInt(tokens[1]);
+                int total = Integer.parseInt(tokens[2]);
+                FECPolicy f = fec;
+                if(f != null) {
+                    f.onFeedback(lost, total);
+                }
+                CongestionControl c = cc;
+                if(c != null && lost > 0) {
+                    c.onLoss(bytes * lost / total);
+                }
+                lossy |= lost > 0;
+            } catch(NumberFormatException | ArithmeticException e) {
+                return false;
+            }
+        }
+        if(pmtu) {
+            if(lossy) {
+                demux().getPathMTU().onLoss(addr);
+            } else {
+                demux().getPathMTU().onAck(addr);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Build a chunk synchronization reply, with a loss report if the chunk
+     * was FEC protected
+     * 
+     * @param loss rebuilt and total piece counts, reset by this call
+     * @return the line to send
+     */
+    private static String syncLine(int[] loss) {
+        String ret = loss[1] > 0 ? "next " + loss[0] + " " + loss[1] : "next";
+        loss[0] = 0;
+        loss[1] = 0;
+        return ret;
+    }
+    
+    /**
+     * Report the completion of a synchronized chunk to the congestion
+     * controller
+     * 
+     * @param bytes size of the chunk
+     * @param startTime <code>System.nanoTime</code> when the last piece of
+     * the chunk was sent
+     * @return false if the synchronization came too late and counts as a
+     * loss
+     */
+    private boolean acknowledge(long bytes, long startTime) {
+        CongestionControl c = cc;
+        if(c == null) {
+            return true;
+        }
+        long rtt = System.nanoTime() - startTime;
+        if(rtt > c.getRTO()) {
+            Log.d(3, "udpsync: late by " + (rtt - c.getRTO()) / 1000 + "us, " +
+                     c);
+            c.onLoss(bytes);
+            return false;
+        }
+        c.onAck(bytes, rtt);
+        return true;
     }
 
     /**
@@ -108,142 +709,84 @@ public class SockUDP {
     }
     
     /**
-     * Inspect arrived packets to see if it came from the given source. If
-     * no previous source-matched packets were found, block and receive on the
-     * socket and check again. If the new packet still does not match, return
-     * <code>null</code> to signify the caller that its packet has not arrived
-     * but should check again in the future. Returning <code>null</code>
-     * also allows waiting threads to access the buffer
+     * Get the receive side of the socket. All instances wrapping the same
+     * socket share it
      * 
-     * @param addr host address to match to
-     * @return first matching payload in the buffer, or <code>null</code> if
-     * none is found
-     * @throws IOException if an I/O exception occurs
+     * @return the demultiplexer of the socket
      */
-    private synchronized DatagramPacket inspect(SocketAddress addr) 
-            throws IOException {        
-        Log.d(5, "--> inspect: looking for packets from " + UDPHost.sockAddress(addr));
-        String sockAddress = UDPHost.sockAddress(addr);
-        DatagramPacket p = consume(addr);
-        if(p != null) {
-            Log.d(5, "<-- inspect: found by consume");
-            return p;
-        }
-        // let other threads the chance to consume the buffer
-        if(!RECV_BUFFER.isEmpty()) {
-            Log.d(5, "<-- inspect: yield (buffer not empty)");
-            return null;
-        }
-        
-        // buffer is actually empty, block and receive. At this point if 
-        // multiple threads are waiting a packet, they will be blocked
-        Log.d(5, "    inspect: block");
-        p = read();
-        lastBufferAccess = System.currentTimeMillis();
-        
-        // check if this is the one before giving up
-        if(UDPHost.sockAddress(p.getSocketAddress()).equals(sockAddress)) {
-            Log.d(5, "<-- inspect: fresh off the wire");
-            return p;
+    private Demultiplexer demux() {
+        Demultiplexer d = demux;
+        if(d == null) {
+            d = Demultiplexer.of(t);
+            demux = d;
         }
-        
-        // if not, yield and try again later
-        Log.d(5, "    --- RECV_BUFFER.add(" + RECV_BUFFER.size() + "): " + 
-                 UDPHost.sockAddress(addr) + " " +
-                 (new Payload(p)).decode());
-        RECV_BUFFER.add(p);       
-        Log.d(5, "<-- inspect: nope, to buffer you go");
-        return null;
+        return d;
     }
     
     /**
-     * See if there is a packet in the buffer that matches the source address.
-     * If there is, return the oldest packet. If there is none, return 
-     * <code>null</code>
+     * Get the read timeout, which is the timeout set on the socket (or on the
+     * channel's socket)
      * 
-     * @param addr host address to match to
-     * @return first matching payload in the buffer, or <code>null</code> if
-     * none is found
+     * @return timeout in milliseconds, 0 for none
+     * @throws IOException if an I/O exception occurs
      */
-    private synchronized DatagramPacket consume(SocketAddress addr) {
-        Log.d(5, "--> consume: looking for packets from " + UDPHost.sockAddress(addr));
-        String sockAddress = UDPHost.sockAddress(addr);
-        lastBufferAccess = System.currentTimeMillis();
-        Iterator<DatagramPacket> it = RECV_BUFFER.iterator();
-        while(it.hasNext()) {
-            DatagramPacket pp = it.next();
-            if(UDPHost.sockAddress(pp.getSocketAddress()).equals(sockAddress)) {
-                it.remove();
-                Log.d(5, "    --- RECV_BUFFER.remove(" + RECV_BUFFER.size() + "): " + 
-                         UDPHost.sockAddress(addr) + " " +
-                         (new Payload(pp)).decode());
-                Log.d(5, "<-- consume: found one"); 
-                return pp;
-            }
-        }
-        Log.d(5, "<-- consume: nope");
-        return null;
+    int timeout() throws IOException {
+        return t.getSoTimeout();
     }
     
     /**
      * Listen for a packet not coming from the listed addresses (i.e. a new
-     * connection). Packets coming from known hosts will be added to the buffer
-     * and <code>null</code> will be returned
+     * connection). Packets coming from the listed hosts stay queued for 
+     * whoever reads from them. Blocks until a packet from a new host arrives
+     * or the socket timeout expires
      * 
      * @param addresses list of socket addresses to ignore (<code>null</code> to
      * capture a packet from <em>any</em> source)
-     * @return a packet belonging to a new host or <code>null</code>
+     * @return a packet belonging to a new host or <code>null</code> if the
+     * socket timeout expired
      * @throws IOException if an I/O exception occurs
      */
-    public synchronized DatagramPacket listen(List<SocketAddress> addresses)
+    public DatagramPacket listen(List<SocketAddress> addresses)
             throws IOException {
-        DatagramPacket p;
-        boolean fetch = RECV_BUFFER.isEmpty();
-        Log.d(3, "--> listen: port " + s.getLocalPort() + " bufsize=" + 
-                RECV_BUFFER.size());
-        if(fetch) {
-            Log.d(3, "    listen: block");
-            p = read();
-            lastBufferAccess = System.currentTimeMillis();
-            if(addresses != null) {
-                for(SocketAddress addr : addresses) {
-                    if(UDPHost.sockAddress(addr).equals(
-                            UDPHost.sockAddress(p.getSocketAddress()))) {
-                        Log.d(5, "    --- RECV_BUFFER.add(" + RECV_BUFFER.size() + "): " + 
-                                 UDPHost.sockAddress(addr) + " " +
-                                 (new Payload(p)).decode());
-                        RECV_BUFFER.add(p);
-                        Log.d(5, "<-- listen: nope, to buffer");
-                        return null;
-                    }
-                }
-            }
-            Log.d(5, "<-- listen: fresh off the wire!");
-            return p;
-        } else {
-            lastBufferAccess = System.currentTimeMillis();
-            Iterator<DatagramPacket> it = RECV_BUFFER.iterator();
-            while(it.hasNext()) {
-                p = it.next();
-                if(addresses != null) {
-                    for(SocketAddress addr : addresses) {
-                        if(UDPHost.sockAddress(addr).equals(
-                                UDPHost.sockAddress(p.getSocketAddress()))) {
-                            Log.d(5, "<-- listen: nope, to buffer");
-                            return null;
-                        }
-                    }
-                }
-                Log.d(5, "    --- RECV_BUFFER.remove(" + RECV_BUFFER.size() + "): " + 
-                         UDPHost.sockAddress(p.getSocketAddress()) + " " +
-                         (new Payload(p)).decode());
-                it.remove();
-                Log.d(5, "<-- listen: found one");
-                return p;
-            }
-            Log.d(5, "<-- listen: nope");
-            return null;
-        }
+        return listenExcept(addresses == null ? null : 
+                            new HashSet<>(addresses));
+    }
+    
+    /**
+     * Listen for a packet not coming from a set of addresses, like
+     * {@link #listen(List) listen} but without copying the addresses. The
+     * set is only looked up, so it can be a live view of a concurrent map
+     * that changes while this waits
+     * 
+     * @param exclude set of socket addresses to ignore (<code>null</code> to
+     * capture a packet from <em>any</em> source)
+     * @return a packet belonging to a new host or <code>null</code> if the
+     * socket timeout expired
+     * @throws IOException if an I/O exception occurs
+     */
+    public DatagramPacket listenExcept(Set<SocketAddress> exclude)
+            throws IOException {
+        Log.d(3, "--> listen: port " + t.getLocalPort() + " known=" + 
+                 (exclude == null ? 0 : exclude.size()));
+        DatagramPacket p = demux().take(exclude, stream, timeout());
+        Log.d(3, "<-- listen: " + (p == null ? "timed out" :
+                 UDPHost.sockAddress(p.getSocketAddress())));
+        return p;
+    }
+    
+    /**
+     * Check which of the candidate addresses of a peer can be reached
+     * through this socket, for hole punching. All candidates are probed at
+     * once, and the one with the lowest round trip time is selected. The
+     * peer should check toward this socket at the same time
+     * 
+     * @param candidates addresses the peer may be reached at
+     * @return the check, to wait on for the selected address
+     * @see ConnectivityEngine
+     */
+    public ConnectivityEngine.Check checkConnectivity(
+            List<SocketAddress> candidates) {
+        return demux().getConnectivityEngine().check(candidates);
     }
     
     /**
@@ -253,8 +796,8 @@ public class SockUDP {
      * 
      * @return timestamp in milliseconds
      */
-    public synchronized long getTimeLastBufferAccess() {
-        return lastBufferAccess;
+    public long getTimeLastBufferAccess() {
+        return demux().getTimeLastAccess();
     }
     
     /**
@@ -262,15 +805,8 @@ public class SockUDP {
      * 
      * @return list of contents in string array
      */
-    public synchronized String[] dumpBuffer() {
-        String[] ret = new String[RECV_BUFFER.size()];
-        int i = 0;
-        for(DatagramPacket p : RECV_BUFFER) {
-            ret[i] = UDPHost.sockAddress(p.getSocketAddress()) + " len=" +
-                                         p.getLength();
-            i++;
-        }
-        return ret;
+    public String[] dumpBuffer() {
+        return demux().dump();
     }
     
     /**
@@ -281,15 +817,26 @@ public class SockUDP {
      * touched
      * @return true if buffer is cleared, false otherwise
      */
-    public synchronized boolean clearBuffer(long time) {
-        if(System.currentTimeMillis() - lastBufferAccess > time) {
-            Log.d(5, "    --- RECV_BUFFER.clear");
-            RECV_BUFFER.clear();
+    public boolean clearBuffer(long time) {
+        Demultiplexer d = demux();
+        if(System.currentTimeMillis() - d.getTimeLastAccess() > time) {
+            Log.d(5, "    --- receive buffer clear");
+            d.clear();
             return true;
         }
         return false;
     }
     
+    /**
+     * Get the number of received packets that were dropped because their
+     * source had too much data waiting to be read
+     * 
+     * @return number of packets
+     */
+    public long getDropCount() {
+        return demux().getDropCount();
+    }
+    
     /**
      * Recursively transfer files to a client using a UDP socket. If the file
      * is a directory, the directory will be traversed and all files found
@@ -364,12 +911,14 @@ public class SockUDP {
                         System.arraycopy(fileReadBuffer, 0, putBuf, putBufOffset, 
                                 lastBytes);
                         send(addr, putBuf, null);
+                        long syncStart = System.nanoTime();
                         // reset
                         putBufOffset = 0 + nextBytes;
                         System.arraycopy(fileReadBuffer, lastBytes, putBuf, 0, 
                                 nextBytes);
                         // sync with client
-                        if(!(d = recv(addr, null)).decode().equals("next")) {
+                        d = recv(addr, null);
+                        if(!sync(addr, d.decode(), UDP_PUT_BUFFER_SIZE, syncStart)) {
                             Log.err("illegal chunk termination line: " + d.decode());
                         }
                     }
@@ -411,6 +960,7 @@ public class SockUDP {
             throws IOException {       
         long startTime = System.nanoTime();
         String[] tokens;
+        int[] loss = new int[2];
         long currentFileCopiedBytes;
         long transferFrame;
         FileOutputStream out;
@@ -493,12 +1043,11 @@ public class SockUDP {
                 }                
             }
             while(currentFileCopiedBytes < fileSizes[i] && 
-                    (payload = recv(source, null)) != null) {
-                byte[] receiveBuffer = payload.get();
-                nr = receiveBuffer.length;
+                    (payload = recv(source, null, loss)) != null) {
+                nr = payload.length();
                 if(currentFileCopiedBytes + nr <= fileSizes[i]) {
                     Log.d(3, "udpgetf: nr=" + nr + " copied=" + currentFileCopiedBytes);
-                    out.write(receiveBuffer, 0 , nr);
+                    payload.writeTo(out, 0, nr);
                     currentFileCopiedBytes += nr;
                 } else {
                     // we're done with this file but there's a piece of the
@@ -508,17 +1057,17 @@ public class SockUDP {
                     Log.d(3, "udpgetf: cutoff nr=" + nr + 
                             " copied=" + currentFileCopiedBytes + " remainingBytes=" + 
                             remainingBytes);
-                    out.write(receiveBuffer, 0, remainingBytes);
+                    payload.writeTo(out, 0, remainingBytes);
                     currentFileCopiedBytes = fileSizes[i];
                     overflowBuffer = new byte[nextBytes];
-                    System.arraycopy(receiveBuffer, remainingBytes,
-                            overflowBuffer, 0, nextBytes);
+                    payload.copyTo(remainingBytes, overflowBuffer, 0, nextBytes);
                 }                
+                payload.release();
                 totalCopiedBytes += nr;
                 transferFrame += nr;
                 if(transferFrame == UDP_PUT_BUFFER_SIZE) {
                     // we're ready for next PUT chunk
-                    sendUTF8(remote, "next");
+                    sendUTF8(remote, syncLine(loss));
                     transferFrame = 0;
                 }
                 if(p != null) {
@@ -571,46 +1120,330 @@ public class SockUDP {
             byte[] buf = new byte[sendSize];
             System.arraycopy(data, off, buf, 0, sendSize);
             send(addr, buf, p);
+            long syncStart = System.nanoTime();
             off += sendSize;
-            if(!(d = new Payload(read(addr))).decode().equals("next")) {
+            d = new Payload(read(addr));
+            if(!sync(addr, d.decode(), sendSize, syncStart)) {
                 Log.err("illegal chunk termination line: " + d.decode());
             }
         }
     }
-       
+       
+    /**
+     * A wrapper for {@link #recv(DatagramSocket, Progress) recv}. 
+     * Counterpart of
+     * {@link #put(DatagramSocket, SocketAddress, byte[], Progress) putf}
+     * 
+     * @param source address to match, <code>null</code> to match all
+     * packets (dangerous)
+     * @param p progress handle to use (can be null)
+     * @return Received data
+     * @throws IOException if an I/O exception occurs
+     */
+    public Payload get(SocketAddress source, Progress p) 
+            throws IOException {
+        Log.d(3, "udpget: " + (source != null ? UDPHost.sockAddress(source) :
+                "source unknown (waiting)"));
+        int[] loss = new int[2];
+        Payload payload = recv(source, null);
+        int len;
+        try {
+            len = Integer.parseInt(payload.decode());
+        } finally {
+            payload.release();
+        }
+        byte[] data = new byte[len];
+        int n = (len-1) / UDP_PUT_BUFFER_SIZE + 1;
+        Log.d(3, "udpget: " + UDPHost.sockAddress(payload.getRemote()) +
+                 "len=" + len + " n=" + n);
+        int off = 0;
+        if(p != null) {
+            p.totalBytes = len;
+        }
+        for(int i = 0; i < n; i++) {
+            // pieces go straight to their place in the message
+            int chunk = Math.min(UDP_PUT_BUFFER_SIZE, data.length - off);
+            payload = recv(source, p, loss, data, off, chunk);
+            if(!payload.isViewOf(data)) {
+                if(payload.length() != chunk) {
+                    throw new IOException("received " + payload.length() + 
+                                          " of " + chunk + " bytes");
+                }
+                payload.copyTo(data, off);
+            }
+            off += chunk;
+            write(payload.getRemote(), syncLine(loss));
+        }
+        return new Payload(data, payload.getRemote());
+    }
+    
+    /**
+     * <p>Send a stream of any length to a host calling
+     * {@link #getStream(SocketAddress, WritableByteChannel, Progress) 
+     * getStream}. Every piece carries its 64-bit offset in the stream, so
+     * neither side ever holds more than a chunk of
+     * <code>UDP_PUT_BUFFER_SIZE</code> bytes, and the host synchronizes after
+     * every chunk like {@link #put(SocketAddress, byte[], Progress) put}.</p>
+     * 
+     * <p>Pieces are read from the channel straight into pooled buffers. To
+     * send part of a file, position the <code>FileChannel</code> first.</p>
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param in channel to read the stream from
+     * @param length number of bytes to send
+     * @param p progress handle to use (can be null)
+     * @throws EOFException if the channel ends before <code>length</code>
+     * bytes
+     * @throws IOException if an I/O exception occurs
+     */
+    public void putStream(SocketAddress addr, 
+                          ReadableByteChannel in, 
+                          long length, 
+                          Progress p) throws IOException {
+        int msg = nextMessage();
+        Log.d(3, "udpputstream: " + UDPHost.sockAddress(addr) + " msg=" + msg +
+                 " len=" + length);
+        if(p != null) {
+            p.totalBytes = length;
+        }
+        long off = 0;
+        do {
+            long chunkStart = off;
+            long chunkEnd = Math.min(length, off + UDP_PUT_BUFFER_SIZE);
+            int pieceSize = datagramSize(addr) - Frame.STREAM_DATA_HEADER_SIZE;
+            do {
+                int n = (int) Math.min(pieceSize, chunkEnd - off);
+                sendDatagram(addr, streamPiece(in, msg, length, off, chunkEnd, n));
+                off += n;
+                if(p != null) {
+                    p.copiedTotalBytes += n;
+                }
+            } while(off < chunkEnd);
+            long syncStart = System.nanoTime();
+            Payload r = new Payload(read(addr));
+            if(!sync(addr, r.decode(), chunkEnd - chunkStart, syncStart)) {
+                Log.err("illegal chunk termination line: " + r.decode());
+            }
+        } while(off < length);
+    }
+    
+    /**
+     * Read a stream piece from a channel into a pooled datagram
+     * 
+     * @param in channel to read the stream from
+     * @param msg stream message number
+     * @param length length of the stream
+     * @param off stream offset of the piece
+     * @param chunkEnd end of the chunk the piece belongs to
+     * @param n number of bytes in the piece
+     * @return the datagram, ready to send
+     * @throws EOFException if the channel ends before the piece is full
+     * @throws IOException if an I/O exception occurs
+     */
+    Datagram streamPiece(ReadableByteChannel in, int msg, long length, 
+                         long off, long chunkEnd, int n) throws IOException {
+        Datagram d = datagram();
+        Frame.putHeader(d.buf, Frame.STREAM_DATA);
+        d.buf.putShort((short) msg);
+        d.buf.putLong(length);
+        d.buf.putLong(off);
+        d.buf.putLong(chunkEnd);
+        d.buf.limit(d.buf.position() + n);
+        try {
+            while(d.buf.hasRemaining()) {
+                if(in.read(d.buf) < 0) {
+                    throw new EOFException("stream ended at " + 
+                            (off + n - d.buf.remaining()) + 
+                            " of " + length + " bytes");
+                }
+            }
+        } catch(IOException ioe) {
+            d.release();
+            throw ioe;
+        }
+        d.buf.flip();
+        return d;
+    }
+    
+    /**
+     * Receive a stream sent with
+     * {@link #putStream(SocketAddress, ReadableByteChannel, long, Progress)
+     * putStream} and write it to a channel in order. Pieces that arrive
+     * ahead of a gap wait in their pooled buffers, so memory use is bounded
+     * by the sender's chunk size, not by the stream length
+     * 
+     * @param source address to match, <code>null</code> to take the first
+     * stream from any host
+     * @param out channel to write the stream to
+     * @param p progress handle to use (can be null)
+     * @return length of the stream
+     * @throws IOException if an I/O exception occurs
+     */
+    public long getStream(SocketAddress source, 
+                          WritableByteChannel out, 
+                          Progress p) throws IOException {
+        return getStream(source, new StreamReassembler(out), p);
+    }
+    
+    /**
+     * Receive a stream sent with
+     * {@link #putStream(SocketAddress, ReadableByteChannel, long, Progress)
+     * putStream} into a file. Every piece is written at its place as soon as
+     * it arrives, so nothing is held in memory
+     * 
+     * @param source address to match, <code>null</code> to take the first
+     * stream from any host
+     * @param out file to write the stream to
+     * @param position file position of the first byte of the stream
+     * @param p progress handle to use (can be null)
+     * @return length of the stream
+     * @throws IOException if an I/O exception occurs
+     */
+    public long getStream(SocketAddress source, 
+                          FileChannel out, 
+                          long position, 
+                          Progress p) throws IOException {
+        return getStream(source, new StreamReassembler(out, position), p);
+    }
+    
+    private long getStream(SocketAddress source, 
+                           StreamReassembler r, 
+                           Progress p) throws IOException {
+        int msg = -1;
+        long total = 0;
+        long chunkEnd = 0;
+        try {
+            while(true) {
+                Datagram d = receive(source);
+                if(!isStream(d) || (msg < 0 ? isStale(d) : d.getShort(3) != msg)) {
+                    Log.d(3, "<<< udpgetstream: dropping frame from " +
+                             UDPHost.sockAddress(d.source));
+                    d.release();
+                    continue;
+                }
+                if(msg < 0) {
+                    msg = d.getShort(3);
+                    total = d.getLong(5);
+                    source = d.source;
+                    Log.d(3, "udpgetstream: " + UDPHost.sockAddress(source) + 
+                             " msg=" + msg + " len=" + total);
+                    if(p != null) {
+                        p.totalBytes = total;
+                    }
+                }
+                long offset = d.getLong(13);
+                chunkEnd = Math.max(chunkEnd, d.getLong(21));
+                int n = r.add(d, Frame.STREAM_DATA_HEADER_SIZE, offset);
+                if(p != null) {
+                    p.copiedTotalBytes += n;
+                }
+                if((n > 0 || total == 0) && r.getReceived() == chunkEnd) {
+                    write(source, "next");
+                    if(chunkEnd == total) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            r.clear();
+        }
+        remember(source, msg);
+        return total;
+    }
+    
+    /**
+     * Check if a datagram is a stream piece
+     * 
+     * @param d the datagram
+     * @return true if it is
+     */
+    static boolean isStream(Datagram d) {
+        return Frame.isExtended(d.buf) && 
+               Frame.type(d.buf) == Frame.STREAM_DATA &&
+               d.length() >= Frame.STREAM_DATA_HEADER_SIZE;
+    }
+    
+    /**
+     * <p>Send a message that is only worth delivering within a deadline,
+     * for data like telemetry or media where stale data is better dropped
+     * than waited for. The message goes out as a single
+     * {@link Frame#MSG MSG} datagram, is sent again if it is not
+     * acknowledged in time, at most <code>retransmits</code> times, and is
+     * abandoned at its deadline whether it got through or not. Returns as
+     * soon as the message is on the wire.</p>
+     * 
+     * <p>Messages to a host are numbered in sequence per stream, to be
+     * received in order with 
+     * {@link #recvTimed(SocketAddress, long) recvTimed}. Timed frames are
+     * extended frames, the remote host must run a version that understands
+     * them.</p>
+     * 
+     * @param addr address of the host to send the message to
+     * @param data the message, small enough to fit a datagram with its
+     * header
+     * @param deadline time in milliseconds from now the message is worth
+     * delivering, up to <code>TimedDelivery.MAX_DEADLINE_MS</code>
+     * @param retransmits maximum number of times to send it again, 0 for
+     * a single try
+     * @throws IOException if the message is too large or could not be sent
+     */
+    public void sendTimed(SocketAddress addr, byte[] data, long deadline,
+                          int retransmits) throws IOException {
+        demux().getTimedDelivery().send(this, addr, data, deadline, 
+                                        retransmits);
+    }
+    
     /**
-     * A wrapper for {@link #recv(DatagramSocket, Progress) recv}. 
-     * Counterpart of
-     * {@link #put(DatagramSocket, SocketAddress, byte[], Progress) putf}
+     * Receive the next message sent with 
+     * {@link #sendTimed(SocketAddress, byte[], long, int) sendTimed}, in
+     * sequence. Messages that were lost or abandoned are reported as a gap
+     * in their place instead of being waited for: a message that arrives
+     * after a gap is held at most until its own deadline, or until the
+     * sender reports the missing ones abandoned
      * 
-     * @param source address to match, <code>null</code> to match all
-     * packets (dangerous)
-     * @param p progress handle to use (can be null)
-     * @return Received data
-     * @throws IOException if an I/O exception occurs
+     * @param source address of the sender
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the next message or gap
+     * @throws SocketTimeoutException if nothing was delivered in time
+     * @throws IOException if an I/O exception occurs 
      */
-    public Payload get(SocketAddress source, Progress p) 
+    public TimedMessage recvTimed(SocketAddress source, long timeout) 
             throws IOException {
-        Log.d(3, "udpget: " + (source != null ? UDPHost.sockAddress(source) :
-                "source unknown (waiting)"));
-        Payload payload = recv(source, null);
-        int len = Integer.parseInt(payload.decode());
-        byte[] data = new byte[len];
-        int n = (len-1) / UDP_PUT_BUFFER_SIZE + 1;
-        Log.d(3, "udpget: " + UDPHost.sockAddress(payload.getRemote()) +
-                 "len=" + len + " n=" + n);
-        int off = 0;
-        if(p != null) {
-            p.totalBytes = len;
+        TimedReceiver r;
+        synchronized(timed) {
+            r = timed.get(source);
+            if(r == null) {
+                r = new TimedReceiver();
+                timed.put(source, r);
+            }
         }
-        for(int i = 0; i < n; i++) {
-            payload = recv(source, p);
-            len = payload.get().length;
-            System.arraycopy(payload.get(), 0, data, off, len);
-            off += len;
-            write(payload.getRemote(), "next");
+        long end = System.nanoTime() + timeout * 1000000L;
+        synchronized(r) {
+            while(true) {
+                long now = System.nanoTime();
+                TimedMessage m = r.poll(now);
+                if(m != null) {
+                    return m;
+                }
+                long wait = timeout > 0 ? end - now : 0;
+                if(timeout > 0 && wait <= 0) {
+                    throw new SocketTimeoutException("Receive timed out");
+                }
+                long due = r.nextDeadline(now);
+                if(due >= 0 && (wait == 0 || due < wait)) {
+                    wait = due;
+                }
+                if(wait == 0 && due < 0) {
+                    r.add(receive(source, 0));
+                    continue;
+                }
+                try {
+                    r.add(receive(source, Math.max(1, (wait + 999999) / 1000000)));
+                } catch(SocketTimeoutException ste) {
+                    // a deadline came or the timeout is checked above
+                }
+            }
         }
-        return new Payload(data, payload.getRemote());
     }
     
     /**
@@ -626,6 +1459,10 @@ public class SockUDP {
      * to be transmitted, it will have to be broken into multiple calls to
      * this method.</p>
      * 
+     * <p>With path MTU discovery enabled, packets are cut to the path MTU
+     * of the remote host, unless that would take more than 65535 of 
+     * them.</p>
+     * 
      * <p>Note that there is no synchronization between this method and its
      * receiving counterpart. Sending too big of data broken into many UDP
      * packets may result in dropped packets on the remote host!</p>
@@ -638,51 +1475,309 @@ public class SockUDP {
     public void send(SocketAddress addr,
                      byte[] data, 
                      Progress p) throws IOException {       
+        if(engine) {
+            ((SendFuture) sendAsync(addr, data, p)).await();
+        } else {
+            send(addr, data, p, null);
+        }
+    }
+    
+    /**
+     * {@link #send(SocketAddress, byte[], Progress) SEND} through the
+     * socket's {@link SendEngine}, without waiting for the datagrams to go
+     * out. The data is copied before this returns, so the array can be
+     * reused right away. Messages to the same host leave in the order they
+     * were sent
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param data byte array containing the data to write
+     * @param p progress handle to use (can be null), counts queued bytes
+     * @return completion of the message, failing with the 
+     * <code>IOException</code> a datagram could not be sent for
+     * @throws IOException if the socket is closed
+     */
+    public Future<Void> sendAsync(SocketAddress addr,
+                                  byte[] data,
+                                  Progress p) throws IOException {
+        SendFuture f = new SendFuture();
+        try {
+            send(addr, data, p, f);
+        } finally {
+            f.seal();
+        }
+        return f;
+    }
+    
+    /**
+     * {@link #send(SocketAddress, byte[], Progress) SEND}, queueing the
+     * datagrams in the send engine if there is a completion to count them
+     * in
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param data byte array containing the data to write
+     * @param p progress handle to use (can be null)
+     * @param f completion of the message, <code>null</code> to send
+     * directly
+     * @throws IOException if an I/O exception occurs 
+     */
+    private void send(SocketAddress addr,
+                      byte[] data, 
+                      Progress p,
+                      SendFuture f) throws IOException {       
         if(data.length == 0) {
             return;
         }
-        int n = ((data.length-1) / (UDP_MAX_DATAGRAM_SIZE-2)) + 1;
+        boolean control = lanes && data.length <= CONTROL_MESSAGE_SIZE;
+        if(fec != null && !control) {
+            sendFEC(addr, data, p, f);
+            return;
+        }
+        int max = control ? data.length + 4 : pieceSize(addr, data.length, 4);
+        int n = ((data.length-1) / (max-4)) + 1;
         int bytesSent = 0;
         if(n >= 256*256) {
             Log.err("  udpsend: too big");
             return;
         }
         int i;
-        Log.d(3, "  udpsend: dataLen=" + data.length + " n=" + n);
+        Log.d(3, "  udpsend: dataLen=" + data.length + " n=" + n + " max=" + max);
         // write(addr, String.valueOf(n));
         for(i = 0; i < n; i++) {
-            byte[] header = new byte[4];
-            // order
-            header[0] = (byte) ((i+1) / 256);
-            header[1] = (byte) ((i+1) % 256);
-            // total
-            header[2] = (byte) (n / 256);
-            header[3] = (byte) (n % 256);
-            boolean lastChunk = data.length-bytesSent+4 <= UDP_MAX_DATAGRAM_SIZE;
+            boolean lastChunk = data.length-bytesSent+4 <= max;
             int sendSize = !lastChunk ? 
-                    UDP_MAX_DATAGRAM_SIZE : data.length-bytesSent+4;
-            byte[] sendBuffer = new byte[sendSize];
-            System.arraycopy(header, 0, sendBuffer, 0, 4);
-            System.arraycopy(data, bytesSent, sendBuffer, 4, sendSize-4);
+                    max : data.length-bytesSent+4;
+            Datagram d = datagram(control);
+            // order, total
+            d.buf.putShort((short) (i+1));
+            d.buf.putShort((short) n);
+            d.buf.put(data, bytesSent, sendSize-4);
+            d.buf.flip();
             bytesSent += sendSize-4;
-            DatagramPacket packet = new DatagramPacket(sendBuffer, sendSize, 
-                    addr);
-            Log.d(3, ">>> udpsend: " + UDPHost.sockAddress(addr)
-                     + " i=" + i + " bytesSent=" + bytesSent);
-            s.send(packet);
-            if(PIECE_SEND_DELAY_MS > 0) {
-                try {
-                    Thread.sleep(PIECE_SEND_DELAY_MS);
-                } catch(Exception e) {
-                    
-                }
+            if(Log.debugLevel >= 3) {
+                Log.d(3, ">>> udpsend: " + UDPHost.sockAddress(addr)
+                         + " i=" + i + " bytesSent=" + bytesSent);
             }
+            sendDatagram(addr, d, control, f);
             if(p != null) {
                 p.copiedTotalBytes += sendSize;
             }
         }
     }
     
+    /**
+     * FEC protected variant of {@link #send(SocketAddress, byte[], Progress)
+     * send}. Pieces are grouped in blocks of up to 
+     * <code>FECPolicy.BLOCK_SIZE</code> and each block is followed by the 
+     * number of parity pieces the policy asks for
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param data byte array containing the data to write
+     * @param p progress handle to use (can be null)
+     * @param f completion of the message, <code>null</code> to send
+     * directly
+     * @throws IOException if an I/O exception occurs 
+     */
+    private void sendFEC(SocketAddress addr, 
+                         byte[] data, 
+                         Progress p,
+                         SendFuture f) throws IOException {
+        FECPolicy policy = fec;
+        int pieceSize = pieceSize(addr, data.length, Frame.FEC_PARITY_HEADER_SIZE) -
+                        Frame.FEC_PARITY_HEADER_SIZE;
+        int n = ((data.length-1) / pieceSize) + 1;
+        if(n >= 256*256) {
+            Log.err("  udpsend: too big");
+            return;
+        }
+        int msg = nextMessage();
+        Log.d(3, "  udpsend: fec msg=" + msg + " dataLen=" + data.length + 
+                 " n=" + n);
+        for(int first = 0; first < n; first += FECPolicy.BLOCK_SIZE) {
+            int k = Math.min(FECPolicy.BLOCK_SIZE, n - first);
+            int m = policy.parityFor(k);
+            byte[][] pieces = new byte[k][];
+            int[] off = new int[k];
+            int[] len = new int[k];
+            for(int j = 0; j < k; j++) {
+                int i = first + j;
+                pieces[j] = data;
+                off[j] = i * pieceSize;
+                len[j] = Math.min(pieceSize, data.length - off[j]);
+                Datagram d = datagram();
+                Frame.putHeader(d.buf, Frame.FEC_DATA);
+                d.buf.putShort((short) msg);
+                d.buf.putShort((short) (i+1));
+                d.buf.putShort((short) n);
+                d.buf.put(data, off[j], len[j]);
+                d.buf.flip();
+                if(Log.debugLevel >= 3) {
+                    Log.d(3, ">>> udpsend: " + UDPHost.sockAddress(addr)
+                             + " msg=" + msg + " i=" + i);
+                }
+                sendDatagram(addr, d, false, f);
+                if(p != null) {
+                    p.copiedTotalBytes += len[j];
+                }
+            }
+            // the first piece of a block is always the longest
+            int size = len[0];
+            ReedSolomon rs = ReedSolomon.get(k, m);
+            for(int row = 0; row < m; row++) {
+                byte[] sendBuffer = new byte[Frame.FEC_PARITY_HEADER_SIZE + size];
+                int h = Frame.putHeader(sendBuffer, 0, Frame.FEC_PARITY);
+                Frame.putShort(sendBuffer, h, msg);
+                Frame.putShort(sendBuffer, h+2, n);
+                Frame.putShort(sendBuffer, h+4, first+1);
+                sendBuffer[h+6] = (byte) k;
+                sendBuffer[h+7] = (byte) m;
+                sendBuffer[h+8] = (byte) row;
+                Frame.putShort(sendBuffer, h+9, pieceSize);
+                Frame.putInt(sendBuffer, h+11, data.length);
+                rs.encode(row, pieces, off, len, sendBuffer, 
+                          Frame.FEC_PARITY_HEADER_SIZE, size);
+                Log.d(3, ">>> udpsend: " + UDPHost.sockAddress(addr)
+                         + " msg=" + msg + " parity " + (first+1) + "/" + row);
+                sendDatagram(addr, sendBuffer, sendBuffer.length, f);
+            }
+        }
+    }
+    
+    /**
+     * Get the datagram size to cut a message into, which is the path MTU
+     * unless that would need more than 65535 pieces
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param length message length
+     * @param header size of the piece header
+     * @return datagram size including the header
+     */
+    private int pieceSize(SocketAddress addr, int length, int header) {
+        int size = datagramSize(addr);
+        if(size < UDP_MAX_DATAGRAM_SIZE && 
+                (long) (length-1) / (size-header) + 1 >= 256*256) {
+            size = Math.min(UDP_MAX_DATAGRAM_SIZE, 
+                            (length-1) / (256*256-1) + 1 + header);
+        }
+        return size;
+    }
+    
+    /**
+     * Put a single datagram on the wire, paced by the congestion controller
+     * if there is one
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param buf datagram contents
+     * @param len datagram length
+     * @param f completion to count the datagram in, can be 
+     * <code>null</code>
+     * @throws IOException if an I/O exception occurs 
+     */
+    private void sendDatagram(SocketAddress addr, byte[] buf, int len,
+                              SendFuture f) throws IOException {
+        Datagram d = datagram();
+        d.buf.put(buf, 0, len);
+        d.buf.flip();
+        sendDatagram(addr, d, false, f);
+    }
+    
+    /**
+     * Put a pooled datagram on the wire, paced by the congestion controller
+     * if there is one. The datagram is released
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param d datagram to send
+     * @throws IOException if an I/O exception occurs 
+     */
+    void sendDatagram(SocketAddress addr, Datagram d)
+            throws IOException {
+        sendDatagram(addr, d, false, null);
+    }
+    
+    /**
+     * Put a pooled datagram on the wire. Bulk datagrams are paced by the
+     * congestion controller if there is one, control datagrams go out right
+     * away and push the bulk ones back instead. With a completion, or when
+     * sending through the engine, the datagram is queued in the
+     * {@link SendEngine} which does the pacing. The datagram is released
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param d datagram to send
+     * @param control true if it is on the control lane
+     * @param f completion to count the datagram in, can be 
+     * <code>null</code>
+     * @throws IOException if an I/O exception occurs 
+     */
+    private void sendDatagram(SocketAddress addr, Datagram d, boolean control,
+                              SendFuture f) throws IOException {
+        addr = route(addr);
+        Pacer pc = pacer;
+        if(f != null || engine) {
+            demux().getSendEngine().submit(addr, d, control, pc, f);
+            return;
+        }
+        if(pc != null) {
+            if(control) {
+                // take the next slot but do not wait for it
+                pc.reserve(d.length());
+            } else {
+                pc.pace(d.length());
+            }
+        }
+        transmit(addr, d, control);
+        if(pc == null && !control && PIECE_SEND_DELAY_MS > 0) {
+            try {
+                Thread.sleep(PIECE_SEND_DELAY_MS);
+            } catch(Exception e) {
+
+            }
+        }
+    }
+    
+    /**
+     * Get the address a datagram for a host goes to, the relay server when
+     * sending through one
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @return address to send to
+     */
+    SocketAddress route(SocketAddress addr) {
+        return relayServer != null ? relayServer : addr;
+    }
+    
+    /**
+     * Hand a pooled datagram to the socket through its lane, if priority
+     * lanes are enabled, or to the bundle of its host if it is small enough
+     * and bundling is enabled. The datagram is released
+     * 
+     * @param addr <code>SocketAddress</code> of the remote host
+     * @param d datagram to send
+     * @param control true if it is on the control lane
+     * @throws IOException if an I/O exception occurs 
+     */
+    private void transmit(SocketAddress addr, Datagram d, boolean control)
+            throws IOException {
+        if(bundling) {
+            Bundler b = demux().getBundler();
+            if(Bundler.fits(d)) {
+                b.add(addr, d, control);
+                return;
+            }
+            // nothing may overtake what is already waiting for this host
+            b.flush(addr);
+        }
+        try {
+            if(!lanes) {
+                t.send(d.buf, addr);
+            } else if(control) {
+                demux().getSendLanes().sendControl(d.buf, addr);
+            } else {
+                demux().getSendLanes().sendBulk(d.buf, addr);
+            }
+        } finally {
+            d.release();
+        }
+    }
+    
     /**
      * Wrapper for {@link #send(DatagramSocket, SocketAddress, byte[]) send} to 
      * send strings that will be encoded into UTF-8
@@ -712,47 +1807,349 @@ public class SockUDP {
      */
     public Payload recv(SocketAddress source,
                         Progress p) throws IOException {
+        return recv(source, p, null);
+    }
+    
+    /**
+     * {@link #recv(SocketAddress, Progress) recv} that also counts pieces
+     * of FEC protected messages for the synchronization loss report
+     * 
+     * @param source source address to match, <code>null</code> to match all
+     * packets (dangerous)
+     * @param p progress handle to use (can be null)
+     * @param loss rebuilt and total piece counters to add to (can be null)
+     * @return payload containing reconstructed data
+     * @throws IOException if an I/O exception occurs 
+     */
+    private Payload recv(SocketAddress source,
+                         Progress p,
+                         int[] loss) throws IOException {
+        return recv(source, p, loss, null, 0, 0);
+    }
+    
+    /**
+     * <p>{@link #recv(SocketAddress, Progress, int[]) recv} that can put
+     * the pieces straight into place in the caller's array. A message of a
+     * single piece is returned as a pooled view of the datagram it arrived
+     * in, without copying it at all.</p>
+     * 
+     * <p>With a destination, the message is expected to be exactly
+     * <code>dstLen</code> bytes. Every piece but the last is as long as the
+     * first, so each goes at its own offset as it arrives and the returned
+     * payload is a view of the destination. An FEC protected message is
+     * reassembled on its own and returned as is, check with 
+     * {@link Payload#isViewOf(byte[]) isViewOf}.</p>
+     * 
+     * @param source source address to match, <code>null</code> to match all
+     * packets (dangerous)
+     * @param p progress handle to use (can be null)
+     * @param loss rebuilt and total piece counters to add to (can be null)
+     * @param dst array to receive into, <code>null</code> to allocate one
+     * @param dstOff offset into the array
+     * @param dstLen expected message length
+     * @return payload containing reconstructed data
+     * @throws IOException if an I/O exception occurs or a piece does not
+     * fit the destination
+     */
+    private Payload recv(SocketAddress source,
+                         Progress p,
+                         int[] loss,
+                         byte[] dst,
+                         int dstOff,
+                         int dstLen) throws IOException {
         int totalPackets = -1;
         int i = 0;
         int nr = 0;        
-        DatagramPacket packet;
+        Datagram d;
         SocketAddress packetSource = null;
         byte[] payload = null;
+        // piece size, known from any piece but the last
+        int stride = -1;
+        Datagram last = null;
         while(totalPackets < 0 || i < totalPackets) {
-            if(source != null) {
-                packet = read(source);
-            } else {
-                packet = read();
-            }
-            packetSource = packet.getSocketAddress();
-            byte[] data = packet.getData();
-            int len = packet.getLength();
-            int order = ((int)(data[0] << 8) & 0xff00) +
-                        ((int)(data[1])      & 0x00ff);
-            totalPackets = ((int)(data[2] << 8) & 0xff00) +
-                           ((int)(data[3])      & 0x00ff);
-            if(payload == null) {
-                payload = new byte[totalPackets * (UDP_MAX_DATAGRAM_SIZE-4)];
-            }
-            Log.d(3, "<<< udprecv: " + UDPHost.sockAddress(packetSource) + " " +
-                     "header: " + 
-                     String.format("%02X %02X %02X %02X", 
-                     data[0], data[1], data[2], data[3]) +
-                     " pieces: " + order + "/" + totalPackets + " " +
-                     (len-4) + " bytes");
-            System.arraycopy(data, 4, payload, 
-                             (order-1)*(UDP_MAX_DATAGRAM_SIZE-4),
-                             len-4);
+            d = receive(source);
+            packetSource = d.source;
+            int len = d.length();
+            if(Frame.isExtended(d.buf)) {
+                if(payload == null && last == null && i == 0 && isFEC(d) && 
+                        !isStale(d)) {
+                    return recvFEC(d, p, loss);
+                }
+                Log.d(3, "<<< udprecv: dropping extended frame type " +
+                         Frame.type(d.buf) + " from " + 
+                         UDPHost.sockAddress(packetSource));
+                d.release();
+                continue;
+            }
+            int order = d.getShort(0);
+            totalPackets = d.getShort(2);
+            if(Log.debugLevel >= 3) {
+                Log.d(3, "<<< udprecv: " + UDPHost.sockAddress(packetSource) + 
+                         " header: " + 
+                         String.format("%02X %02X %02X %02X", 
+                         d.getByte(0), d.getByte(1), d.getByte(2), d.getByte(3)) +
+                         " pieces: " + order + "/" + totalPackets + " " +
+                         (len-4) + " bytes");
+            }
             nr += (len-4);
             if(p != null) {
                 p.copiedTotalBytes += (len-4);
             }
             i++;
+            if(dst != null) {
+                int at = order == totalPackets ? dstLen - (len-4) :
+                                                 (order-1) * (len-4);
+                if(at < 0 || at + len-4 > dstLen) {
+                    d.release();
+                    throw new IOException("piece " + order + "/" + 
+                            totalPackets + " does not fit a " + dstLen + 
+                            " byte message");
+                }
+                d.copyTo(4, dst, dstOff + at, len-4);
+                d.release();
+                continue;
+            }
+            if(totalPackets == 1) {
+                // nothing to put together, hand out the datagram itself
+                Log.d(3, "    udprecv: nr=" + nr);
+                return new Payload(d, 4);
+            }
+            if(payload == null) {
+                if(order == totalPackets && totalPackets > 1) {
+                    // the last piece may be short, wait for one that is not
+                    last = d;
+                    continue;
+                }
+                stride = len-4;
+                payload = new byte[totalPackets * stride];
+            }
+            d.copyTo(4, payload, (order-1)*stride, len-4);
+            d.release();
+            if(last != null) {
+                last.copyTo(4, payload, (totalPackets-1)*stride, last.length()-4);
+                last.release();
+                last = null;
+            }
         }
         Log.d(3, "    udprecv: nr=" + nr);
+        if(dst != null) {
+            if(nr != dstLen) {
+                throw new IOException("received " + nr + " of " + dstLen + 
+                                      " bytes");
+            }
+            return new Payload(dst, dstOff, nr, packetSource);
+        }
         return new Payload(payload, 0, nr, packetSource);
     }
     
+    /**
+     * Receive a pooled datagram, which the caller must release
+     * 
+     * @param source address to match, <code>null</code> to match all
+     * @return the datagram
+     * @throws SocketTimeoutException if the socket timeout expired
+     * @throws IOException if an I/O exception occurs 
+     */
+    private Datagram receive(SocketAddress source) throws IOException {
+        if(source != null) {
+            return receive(source, timeout());
+        }
+        Datagram d = demux().receiveAny(null, stream, timeout());
+        if(d == null) {
+            throw new SocketTimeoutException("Receive timed out");
+        }
+        return d;
+    }
+    
+    /**
+     * Receive a pooled datagram from a host, waiting at most the given
+     * time. The caller must release it
+     * 
+     * @param source address to match
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the datagram
+     * @throws SocketTimeoutException if nothing arrived in time
+     * @throws IOException if an I/O exception occurs 
+     */
+    Datagram receive(SocketAddress source, long timeout) throws IOException {
+        flush(source);
+        return demux().receive(source, stream, timeout);
+    }
+    
+    /**
+     * Receive the rest of an FEC protected message. Lost data pieces are 
+     * rebuilt from parity as soon as their block allows it, so the message
+     * completes without waiting for anything to be sent again
+     * 
+     * @param first the first piece of the message that arrived, released
+     * by this call
+     * @param p progress handle to use (can be null)
+     * @param loss rebuilt and total piece counters to add to (can be null)
+     * @return payload containing reconstructed data
+     * @throws IOException if an I/O exception occurs 
+     */
+    private Payload recvFEC(Datagram first, 
+                            Progress p, 
+                            int[] loss) throws IOException {
+        SocketAddress packetSource = first.source;
+        int msg = first.getShort(3);
+        int total = first.getShort(
+                Frame.type(first.buf) == Frame.FEC_DATA ? 7 : 5);
+        FECReassembler r = new FECReassembler(msg, total);
+        Datagram d = first;
+        long nr = 0;
+        while(true) {
+            int len = d.length();
+            if(!isFEC(d) || d.getShort(3) != msg) {
+                Log.d(3, "<<< udprecv: dropping foreign frame from " +
+                         UDPHost.sockAddress(packetSource));
+            } else if(Frame.type(d.buf) == Frame.FEC_DATA) {
+                int order = d.getShort(5);
+                int pieceLen = len - Frame.FEC_DATA_HEADER_SIZE;
+                if(Log.debugLevel >= 3) {
+                    Log.d(3, "<<< udprecv: " + UDPHost.sockAddress(packetSource) + 
+                             " fec msg=" + msg + " pieces: " + order + "/" + 
+                             total + " " + pieceLen + " bytes");
+                }
+                // the reassembler keeps the piece, so it cannot stay pooled
+                byte[] piece = new byte[pieceLen];
+                d.copyTo(Frame.FEC_DATA_HEADER_SIZE, piece, 0, pieceLen);
+                if(r.addData(order, piece, 0, pieceLen) > 0) {
+                    nr += pieceLen;
+                    if(p != null) {
+                        p.copiedTotalBytes += pieceLen;
+                    }
+                }
+            } else {
+                int pieceLen = len - Frame.FEC_PARITY_HEADER_SIZE;
+                byte[] piece = new byte[pieceLen];
+                d.copyTo(Frame.FEC_PARITY_HEADER_SIZE, piece, 0, pieceLen);
+                int rebuilt = r.addParity(d.getShort(7), 
+                        d.getByte(9), d.getByte(10), d.getByte(11),
+                        d.getShort(12), d.getInt(14),
+                        piece, 0, pieceLen);
+                if(rebuilt > 0) {
+                    Log.d(3, "<<< udprecv: fec msg=" + msg + " rebuilt " + 
+                             rebuilt + " pieces");
+                }
+            }
+            d.release();
+            if(r.isComplete()) {
+                break;
+            }
+            d = receive(packetSource);
+        }
+        remember(packetSource, msg);
+        if(loss != null) {
+            loss[0] += r.getRecovered();
+            loss[1] += r.getTotal();
+        }
+        byte[] payload = r.assemble();
+        if(p != null) {
+            p.copiedTotalBytes += payload.length - nr;
+        }
+        Log.d(3, "    udprecv: nr=" + payload.length + " rebuilt=" + 
+                 r.getRecovered());
+        return new Payload(payload, packetSource);
+    }
+    
+    /**
+     * Check if a datagram is an FEC data or parity piece
+     * 
+     * @param d the datagram
+     * @return true if it is
+     */
+    private static boolean isFEC(Datagram d) {
+        int len = d.length();
+        if(!Frame.isExtended(d.buf)) {
+            return false;
+        }
+        int type = Frame.type(d.buf);
+        return (type == Frame.FEC_DATA && len > Frame.FEC_DATA_HEADER_SIZE) ||
+               (type == Frame.FEC_PARITY && len > Frame.FEC_PARITY_HEADER_SIZE);
+    }
+    
+    /**
+     * Check if an FEC or stream piece belongs to a message that was already
+     * completed. This happens to parity trailing a block that did not need
+     * it, and to duplicated datagrams
+     * 
+     * @param d the piece
+     * @return true if the piece should be dropped
+     */
+    private boolean isStale(Datagram d) {
+        int msg = d.getShort(3);
+        synchronized(history) {
+            History h = history.get(PeerKey.of(d.source));
+            // an IPv6 source can share its key with another
+            if(h == null || !h.source.equals(d.source)) {
+                return false;
+            }
+            h.lastAccess = ++historyTick;
+            for(int i = 0; i < MESSAGE_HISTORY; i++) {
+                if(h.msgs[i] == msg) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Remember a completed FEC message or stream
+     * 
+     * @param source address of the sender
+     * @param msg message number
+     */
+    private void remember(SocketAddress source, int msg) {
+        long key = PeerKey.of(source);
+        synchronized(history) {
+            History h = history.get(key);
+            if(h == null || !h.source.equals(source)) {
+                if(h == null && history.size() >= HISTORY_SOURCES) {
+                    forgetOldest();
+                }
+                h = new History(source);
+                history.put(key, h);
+            }
+            h.lastAccess = ++historyTick;
+            h.msgs[h.pos] = msg;
+            h.pos = (h.pos + 1) % MESSAGE_HISTORY;
+        }
+    }
+    
+    /**
+     * Completed messages of one source
+     */
+    private static class History {
+        final SocketAddress source;
+        final int[] msgs = new int[MESSAGE_HISTORY];
+        int pos = 0;
+        int lastAccess;
+        
+        History(SocketAddress source) {
+            this.source = source;
+            Arrays.fill(msgs, -1);
+        }
+    }
+    
+    /**
+     * Drop the least recently used source from the history. Called with
+     * the history locked
+     */
+    private void forgetOldest() {
+        long oldest = 0;
+        int age = -1;
+        for(long k : history.keys()) {
+            int a = historyTick - history.get(k).lastAccess;
+            if(a > age) {
+                age = a;
+                oldest = k;
+            }
+        }
+        history.remove(oldest);
+    }
+    
     /**
      * Send UTF-8 string through a <b>single</b> UDP packet to be received with
      * {@link #read(DatagramSocket) read}. If the data is greater than
@@ -765,37 +2162,69 @@ public class SockUDP {
     public void write(SocketAddress addr, String utf8) throws IOException {        
         byte[] utf8Bytes = utf8.getBytes(StandardCharsets.UTF_8);
         Log.d(4, "    udpwrite: \"" + utf8 + "\"");
-        s.send(new DatagramPacket(utf8Bytes, utf8Bytes.length, addr));
+        Datagram d = datagram(lanes);
+        d.buf.put(utf8Bytes, 0, Math.min(utf8Bytes.length, d.buf.remaining()));
+        d.buf.flip();
+        addr = route(addr);
+        if(engine) {
+            SendFuture f = new SendFuture();
+            demux().getSendEngine().submit(addr, d, lanes, null, f);
+            f.seal();
+            f.await();
+        } else {
+            transmit(addr, d, lanes);
+        }
     }    
     
     /**
-     * Receive a UDP packet
+     * Receive a UDP packet from any source
      * 
      * @return the UDP packet
+     * @throws SocketTimeoutException if the socket timeout expired
      * @throws IOException if an I/O exception occurs 
      */
     public DatagramPacket read() throws IOException {       
-        byte[] receiveBuffer = new byte[UDP_MAX_DATAGRAM_SIZE];
-        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-        s.receive(packet);
+        DatagramPacket packet = demux().take(null, stream, timeout());
+        if(packet == null) {
+            throw new SocketTimeoutException("Receive timed out");
+        }
         Log.d(4, "    udpread: bytes=" + packet.getLength());
         return packet;
     }   
     
     /**
-     * Receive a UDP packet from the specified source
+     * Receive a UDP packet from the specified source. Blocks until one 
+     * arrives or the socket timeout expires
      * 
      * @param addr address of source
      * @return the UDP packet
+     * @throws SocketTimeoutException if the socket timeout expired
      * @throws IOException if an I/O exception occurs 
      */
     public DatagramPacket read(SocketAddress addr) throws IOException {       
-        DatagramPacket packet;
+        return read(addr, timeout());
+    }    
+    
+    /**
+     * Receive a UDP packet from the specified source, waiting at most the
+     * given time
+     * 
+     * @param addr address of source
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the UDP packet
+     * @throws SocketTimeoutException if nothing arrived in time
+     * @throws IOException if an I/O exception occurs 
+     */
+    public DatagramPacket read(SocketAddress addr, long timeout)
+            throws IOException {
         Log.d(4, "> udpread: " + UDPHost.sockAddress(addr));
-        while((packet = inspect(addr)) == null);
-        Log.d(4, "< udpread: " + UDPHost.sockAddress(addr) + 
-                 " bytes=" + packet.getLength() + " \"" + 
-                 (new Payload(packet)).decode() + "\"");
+        flush(addr);
+        DatagramPacket packet = demux().read(addr, stream, timeout);
+        if(Log.debugLevel >= 4) {
+            Log.d(4, "< udpread: " + UDPHost.sockAddress(addr) + 
+                     " bytes=" + packet.getLength() + " \"" + 
+                     (new Payload(packet)).decode() + "\"");
+        }
         return packet;
     }    
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Transport over a <code>DatagramSocket</code>, using heap buffers
+ *
+ * @author wira
+ */
+class SocketTransport implements DatagramTransport {
+    private final DatagramSocket s;
+
+    // only ever used by the demultiplexer thread
+    private final DatagramPacket in = new DatagramPacket(new byte[0], 0);
+
+    SocketTransport(DatagramSocket s) {
+        this.s = s;
+    }
+
+    @Override
+    public Object key() {
+        return s;
+    }
+
+    @Override
+    public BufferPool pool() {
+        return BufferPool.HEAP;
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst) throws IOException {
+        while(true) {
+            in.setData(dst.array(), dst.arrayOffset(), dst.capacity());
+            try {
+                s.receive(in);
+            } catch(SocketTimeoutException ste) {
+                // a timeout set on the socket is for the readers
+                if(s.isClosed()) {
+                    throw ste;
+                }
+                continue;
+            }
+            dst.position(0);
+            dst.limit(in.getLength());
+            return in.getSocketAddress();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer src, SocketAddress target) throws IOException {
+        s.send(new DatagramPacket(src.array(), src.arrayOffset() + src.position(),
+                                  src.remaining(), target));
+    }
+
+    @Override
+    public boolean setDontFragment() {
+        // DatagramSocket only has socket options since Java 9, and
+        // IP_DONTFRAGMENT is an extended option of newer runtimes
+        try {
+            Method supported = s.getClass().getMethod("supportedOptions");
+            Method set = s.getClass().getMethod("setOption", 
+                                                SocketOption.class, Object.class);
+            for(Object o : (Set<?>) supported.invoke(s)) {
+                SocketOption<?> opt = (SocketOption<?>) o;
+                if(opt.name().equals("IP_DONTFRAGMENT") && 
+                        opt.type() == Boolean.class) {
+                    set.invoke(s, opt, Boolean.TRUE);
+                    return true;
+                }
+            }
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            // not available
+        }
+        return false;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return s.getLocalPort();
+    }
+
+    @Override
+    public int getSoTimeout() throws IOException {
+        return s.getSoTimeout();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return s.isClosed();
+    }
+}
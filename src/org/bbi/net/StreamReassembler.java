@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Puts stream pieces that arrive in any order back into a sink, as they
+ * arrive. With a <code>FileChannel</code> every piece is written straight to
+ * its place in the file. With any other channel, pieces ahead of the next
+ * expected offset are held in their pooled buffers until the gap is filled,
+ * so memory is bounded by the reorder window (the sender's chunk) instead of
+ * the stream length.</p>
+ *
+ * <p>Duplicated pieces are recognized and dropped. Pieces must never overlap
+ * partially, which holds for pieces cut by a single sender.</p>
+ *
+ * @author wira
+ */
+public class StreamReassembler {
+    private final WritableByteChannel out;
+    private final FileChannel file;
+    private final long position;
+
+    /**
+     * Pieces ahead of the contiguous prefix, held until it reaches them
+     * (sequential sink only)
+     */
+    private final TreeMap<Long, Datagram> held = new TreeMap<>();
+
+    /**
+     * Lengths of pieces written ahead of the contiguous prefix (file sink
+     * only)
+     */
+    private final TreeMap<Long, Integer> written = new TreeMap<>();
+
+    private long contiguous = 0;
+    private long received = 0;
+
+    /**
+     * Reassemble into a channel that can only be written in order
+     *
+     * @param out the sink
+     */
+    public StreamReassembler(WritableByteChannel out) {
+        this.out = out;
+        this.file = null;
+        this.position = 0;
+    }
+
+    /**
+     * Reassemble into a file, writing each piece at its place
+     *
+     * @param out the file
+     * @param position file position of the first byte of the stream
+     */
+    public StreamReassembler(FileChannel out, long position) {
+        this.out = out;
+        this.file = out;
+        this.position = position;
+    }
+
+    /**
+     * Add a piece. Takes ownership of the datagram
+     *
+     * @param d datagram holding the piece
+     * @param off offset of the piece data in the datagram
+     * @param offset stream offset of the piece
+     * @return number of new bytes, 0 for a duplicate
+     * @throws IOException if writing to the sink failed
+     */
+    int add(Datagram d, int off, long offset) throws IOException {
+        int len = d.length() - off;
+        if(offset < contiguous || held.containsKey(offset) ||
+                written.containsKey(offset)) {
+            d.release();
+            return 0;
+        }
+        received += len;
+        if(file != null) {
+            try {
+                d.buf.position(off);
+                while(d.buf.hasRemaining()) {
+                    file.write(d.buf, position + offset + d.buf.position() - off);
+                }
+            } finally {
+                d.release();
+            }
+            if(offset != contiguous) {
+                written.put(offset, len);
+                return len;
+            }
+            contiguous += len;
+            Integer next;
+            while((next = written.remove(contiguous)) != null) {
+                contiguous += next;
+            }
+        } else {
+            d.buf.position(off);
+            if(offset != contiguous) {
+                held.put(offset, d);
+                return len;
+            }
+            drain(d);
+            Map.Entry<Long, Datagram> e;
+            while((e = held.firstEntry()) != null && e.getKey() == contiguous) {
+                held.pollFirstEntry();
+                drain(e.getValue());
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Write a piece at the end of the contiguous prefix and release it
+     */
+    private void drain(Datagram d) throws IOException {
+        try {
+            int len = d.buf.remaining();
+            while(d.buf.hasRemaining()) {
+                out.write(d.buf);
+            }
+            contiguous += len;
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Get the length of the part of the stream that has no gaps
+     *
+     * @return number of bytes
+     */
+    public long getContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Get the number of distinct bytes received, including those held or
+     * written past a gap
+     *
+     * @return number of bytes
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Get the number of pieces waiting for a gap to be filled
+     *
+     * @return number of pieces
+     */
+    public int getHeld() {
+        return held.size();
+    }
+
+    /**
+     * Give back the buffers of held pieces, for when the stream is
+     * abandoned
+     */
+    public void clear() {
+        for(Datagram d : held.values()) {
+            d.release();
+        }
+        held.clear();
+        written.clear();
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Send side of messages with a delivery deadline, see
+ * {@link SockUDP#sendTimed(SocketAddress, byte[], long, int) sendTimed}.
+ * Every message is a single {@link Frame#MSG MSG} datagram numbered in
+ * sequence per host and stream. The receiving demultiplexer acknowledges
+ * each one as it arrives, and a message that is not acknowledged within
+ * the retransmission timeout is sent again, as long as its retransmission
+ * budget and its deadline allow. At its deadline a message is abandoned,
+ * acknowledged or not, and the receiver is told with a
+ * {@link Frame#DROP DROP} frame so it stops waiting for it.</p>
+ *
+ * <p>Messages sent through a relay view are retransmitted and dropped
+ * through the same relay session, and the receiver acknowledges them
+ * through the session they arrived on.</p>
+ *
+ * <p>The retransmission timeout starts at <code>RETRANSMIT_MS</code> and
+ * follows the round trip time measured from acknowledgements of messages
+ * that were sent only once, doubling with every retransmission of the same
+ * message.</p>
+ *
+ * <p>There is one instance per socket, shared by every {@link SockUDP}
+ * wrapping it, with a thread that retransmits and abandons messages,
+ * started on first use.</p>
+ *
+ * @author wira
+ */
+public class TimedDelivery implements Runnable {
+    /**
+     * Retransmission timeout until a round trip time has been measured
+     */
+    public static long RETRANSMIT_MS = 20;
+
+    /**
+     * Shortest retransmission timeout
+     */
+    public static long MIN_RETRANSMIT_MS = 2;
+
+    /**
+     * Longest deadline a message can have, the most the
+     * <code>ttl</code> field can carry
+     */
+    public static final long MAX_DEADLINE_MS = 0xffff;
+
+    /**
+     * Flows without messages in flight are forgotten after this long
+     */
+    private static final long IDLE_FLOW_NS = 60000000000L;
+
+    private final DatagramTransport t;
+    private final SendLanes lanes;
+    private final HashMap<Demultiplexer.Key, Flow> flows = new HashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retransmitted = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private boolean started;
+
+    TimedDelivery(DatagramTransport t, SendLanes lanes) {
+        this.t = t;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Send a message and keep it for retransmission until it is
+     * acknowledged or its deadline passes
+     *
+     * @param sock instance to send through, which frames the stream and
+     * paces the first transmission
+     * @param addr address of the remote host
+     * @param data the message
+     * @param deadline time in milliseconds the message is worth delivering
+     * @param retransmits maximum number of times to send it again
+     * @throws IOException if the message does not fit a datagram or could
+     * not be sent
+     */
+    void send(SockUDP sock, SocketAddress addr, byte[] data, long deadline,
+              int retransmits) throws IOException {
+        if(deadline <= 0 || deadline > MAX_DEADLINE_MS) {
+            throw new IllegalArgumentException("deadline " + deadline);
+        }
+        Datagram d = sock.datagram();
+        int start = d.buf.position();
+        if(data.length > d.buf.remaining() - Frame.MSG_HEADER_SIZE) {
+            d.release();
+            throw new IOException("timed message of " + data.length +
+                                  " bytes does not fit a datagram");
+        }
+        long now = System.nanoTime();
+        Entry e;
+        synchronized(this) {
+            Flow f = flow(addr, sock.getStreamId());
+            f.sock = sock;
+            f.route = sock.route(addr);
+            e = new Entry(f.next++, now + deadline * 1000000L, retransmits);
+            Frame.putHeader(d.buf, Frame.MSG);
+            d.buf.putInt(e.seq);
+            d.buf.putInt(f.floor(e.seq));
+            d.buf.putShort((short) deadline);
+            d.buf.put(data);
+            d.buf.flip();
+            e.frame = new byte[d.length()];
+            e.fields = start + Frame.EXTENDED_HEADER_SIZE + 4;
+            d.buf.get(e.frame);
+            d.buf.position(0);
+            e.sentAt = now;
+            e.retransmitAt = now + f.timeout();
+            f.outstanding.add(e);
+            if(!started) {
+                started = true;
+                Thread th = new Thread(this, "TimedDelivery[" + t.getLocalPort() + "]");
+                th.setDaemon(true);
+                th.start();
+            } else {
+                notifyAll();
+            }
+        }
+        sent.incrementAndGet();
+        sock.sendDatagram(addr, d);
+    }
+
+    private Flow flow(SocketAddress addr, int stream) {
+        Demultiplexer.Key k = new Demultiplexer.Key(addr, stream);
+        Flow f = flows.get(k);
+        if(f == null) {
+            // a random start keeps a restarted sender from running into
+            // numbers the receiver has just seen
+            f = new Flow(addr, random.nextInt());
+            flows.put(k, f);
+        }
+        return f;
+    }
+
+    /**
+     * Acknowledge a message as it arrives. Called on the demultiplexer
+     * thread
+     *
+     * @param to address of the sender
+     * @param stream stream the message arrived on
+     * @param seq sequence number of the message
+     * @param server relay server the message came through, <code>null</code>
+     * if it came directly
+     * @param session relay session the message came through
+     */
+    void acknowledge(SocketAddress to, int stream, int seq,
+                     SocketAddress server, int session) {
+        Datagram d = t.pool().acquire();
+        if(server != null) {
+            Frame.putHeader(d.buf, Frame.RELAY);
+            d.buf.putInt(session);
+            to = server;
+        }
+        Frame.putHeader(d.buf, Frame.ACK);
+        d.buf.putShort((short) stream);
+        d.buf.putInt(seq);
+        d.buf.flip();
+        try {
+            lanes.sendControl(d.buf, to);
+        } catch(IOException ioe) {
+            Log.d(3, this + ": ack to " + UDPHost.sockAddress(to) + ": " + ioe);
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Handle an acknowledgement. Called on the demultiplexer thread
+     *
+     * @param from address of the receiver
+     * @param stream stream of the message
+     * @param seq sequence number of the message
+     */
+    synchronized void onAck(SocketAddress from, int stream, int seq) {
+        Flow f = flows.get(new Demultiplexer.Key(from, stream));
+        if(f == null) {
+            return;
+        }
+        Iterator<Entry> it = f.outstanding.iterator();
+        while(it.hasNext()) {
+            Entry e = it.next();
+            if(e.seq != seq) {
+                continue;
+            }
+            it.remove();
+            acknowledged.incrementAndGet();
+            if(e.retransmits == 0) {
+                // only unambiguous samples
+                f.sample(System.nanoTime() - e.sentAt);
+            }
+            f.lastActive = System.nanoTime();
+            return;
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(1, this + ": run");
+        List<Object[]> out = new ArrayList<>();
+        try {
+            while(!t.isClosed()) {
+                long wait;
+                synchronized(this) {
+                    wait = expire(System.nanoTime(), out);
+                }
+                for(Object[] o : out) {
+                    transmit((SocketAddress) o[0], (byte[]) o[1]);
+                }
+                out.clear();
+                if(wait > 0) {
+                    synchronized(this) {
+                        wait(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                }
+            }
+        } catch(InterruptedException ie) {
+            Log.d(1, this + ": interrupted");
+        } finally {
+            synchronized(this) {
+                flows.clear();
+                started = false;
+            }
+        }
+        Log.d(1, this + ": exit");
+    }
+
+    /**
+     * Abandon messages past their deadline and pick those due for
+     * retransmission. Called with the lock held
+     *
+     * @param now current time in nanoseconds
+     * @param out where to put address and frame pairs to send
+     * @return nanoseconds until something is due, 0 to run again right away
+     */
+    private long expire(long now, List<Object[]> out) {
+        long wake = now + 1000000000L;
+        Iterator<Flow> flowIt = flows.values().iterator();
+        while(flowIt.hasNext()) {
+            Flow f = flowIt.next();
+            boolean drop = false;
+            Iterator<Entry> it = f.outstanding.iterator();
+            while(it.hasNext()) {
+                Entry e = it.next();
+                if(e.deadline - now <= 0) {
+                    it.remove();
+                    abandoned.incrementAndGet();
+                    drop = true;
+                    continue;
+                }
+                if(e.retransmits < e.budget && e.retransmitAt - now <= 0) {
+                    e.retransmits++;
+                    e.retransmitAt = now + (f.timeout() << Math.min(e.retransmits, 16));
+                    // bring the floor and the time left up to date
+                    Frame.putInt(e.frame, e.fields, f.floor(e.seq));
+                    Frame.putShort(e.frame, e.fields + 4,
+                            (int) Math.max(1, (e.deadline - now) / 1000000L));
+                    out.add(new Object[] { f.route, e.frame.clone() });
+                    retransmitted.incrementAndGet();
+                }
+                wake = Math.min(wake, e.deadline);
+                if(e.retransmits < e.budget) {
+                    wake = Math.min(wake, e.retransmitAt);
+                }
+            }
+            if(drop) {
+                Datagram d = f.sock.datagram();
+                Frame.putHeader(d.buf, Frame.DROP);
+                d.buf.putInt(f.floor(f.next));
+                d.buf.flip();
+                byte[] b = new byte[d.length()];
+                d.buf.get(b);
+                d.release();
+                out.add(new Object[] { f.route, b });
+                f.lastActive = now;
+            }
+            if(f.outstanding.isEmpty() && now - f.lastActive > IDLE_FLOW_NS) {
+                flowIt.remove();
+            }
+        }
+        return out.isEmpty() ? Math.max(1, wake - now) : 0;
+    }
+
+    private void transmit(SocketAddress addr, byte[] frame) {
+        Datagram d = t.pool().acquire();
+        d.buf.put(frame);
+        d.buf.flip();
+        try {
+            lanes.sendBulk(d.buf, addr);
+        } catch(IOException ioe) {
+            Log.d(3, this + ": " + UDPHost.sockAddress(addr) + ": " + ioe);
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Get the number of timed messages sent, not counting retransmissions
+     *
+     * @return number of messages
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Get the number of retransmissions
+     *
+     * @return number of datagrams
+     */
+    public long getRetransmitCount() {
+        return retransmitted.get();
+    }
+
+    /**
+     * Get the number of messages abandoned at their deadline without an
+     * acknowledgement
+     *
+     * @return number of messages
+     */
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    /**
+     * Get the number of messages acknowledged by the receiver
+     *
+     * @return number of messages
+     */
+    public long getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TimedDelivery[" + t.getLocalPort() + "]";
+    }
+
+    /**
+     * Messages in flight to one host and stream, in sequence
+     */
+    private static class Flow {
+        final SocketAddress addr;
+        final ArrayDeque<Entry> outstanding = new ArrayDeque<>();
+        SockUDP sock;
+
+        /**
+         * Where the frames of the flow are sent, the relay server for a
+         * relay view
+         */
+        SocketAddress route;
+        int next;
+        long srtt;
+        long rttvar;
+        long lastActive = System.nanoTime();
+
+        Flow(SocketAddress addr, int next) {
+            this.addr = addr;
+            this.next = next;
+        }
+
+        /**
+         * Lowest sequence number not yet acknowledged or abandoned
+         *
+         * @param seq number to use when nothing is in flight below it
+         */
+        int floor(int seq) {
+            Entry e = outstanding.peek();
+            return e != null && e.seq - seq < 0 ? e.seq : seq;
+        }
+
+        void sample(long rtt) {
+            if(srtt == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+        }
+
+        /**
+         * Retransmission timeout in nanoseconds
+         */
+        long timeout() {
+            long rto = srtt == 0 ? RETRANSMIT_MS * 1000000L : srtt + 4 * rttvar;
+            return Math.max(rto, MIN_RETRANSMIT_MS * 1000000L);
+        }
+    }
+
+    private static class Entry {
+        final int seq;
+        final long deadline;
+        final int budget;
+        byte[] frame;
+
+        /**
+         * Offset of the floor and ttl fields in the frame
+         */
+        int fields;
+        long sentAt;
+        long retransmitAt;
+        int retransmits;
+
+        Entry(int seq, long deadline, int budget) {
+            this.seq = seq;
+            this.deadline = deadline;
+            this.budget = budget;
+        }
+    }
+}
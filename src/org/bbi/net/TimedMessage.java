@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+/**
+ * What {@link SockUDP#recvTimed(SocketAddress, long) recvTimed} delivers,
+ * in sequence: either a message, or a gap standing for messages that were
+ * lost or abandoned at their deadline
+ *
+ * @author wira
+ */
+public class TimedMessage {
+    private final long seq;
+    private final int lost;
+    private final Payload payload;
+
+    TimedMessage(long seq, Payload payload) {
+        this.seq = seq;
+        this.lost = 0;
+        this.payload = payload;
+    }
+
+    TimedMessage(long seq, int lost) {
+        this.seq = seq;
+        this.lost = lost;
+        this.payload = null;
+    }
+
+    /**
+     * Check whether this is a gap instead of a message
+     *
+     * @return true for a gap
+     */
+    public boolean isGap() {
+        return payload == null;
+    }
+
+    /**
+     * Get the sequence number of the message, or of the first message of
+     * the gap. Numbers count up from the first message received
+     *
+     * @return sequence number
+     */
+    public long getSequence() {
+        return seq;
+    }
+
+    /**
+     * Get the number of messages in a gap
+     *
+     * @return number of messages, 0 for a message
+     */
+    public int getLost() {
+        return lost;
+    }
+
+    /**
+     * Get the message
+     *
+     * @return the message, <code>null</code> for a gap
+     */
+    public Payload getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return isGap() ? "gap " + seq + "+" + lost :
+                         "msg " + seq + " " + payload.get().length + " bytes";
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Puts the timed messages of one host and stream back in sequence. A
+ * message that arrives ahead of a gap is held until the gap is filled, the
+ * sender reports the missing messages abandoned, or the held message's own
+ * deadline comes, whichever is first. The missing messages are then
+ * delivered as a gap, so nothing waits past its deadline for a message
+ * that may never come.</p>
+ *
+ * <p>Not thread safe, the caller serializes access.</p>
+ *
+ * @author wira
+ */
+class TimedReceiver {
+    /**
+     * A floor or message this far from the next expected number means the
+     * sender started over
+     */
+    private static final long WINDOW = 1 << 20;
+
+    private final TreeMap<Long, Held> held = new TreeMap<>();
+    private final ArrayDeque<TimedMessage> ready = new ArrayDeque<>();
+
+    /**
+     * Next sequence number to deliver, extended to 64 bits, -1 until the
+     * first message arrives
+     */
+    private long next = -1;
+
+    /**
+     * Extended number of the first message, delivered numbers count from it
+     */
+    private long base;
+
+    /**
+     * Take in a datagram from the sender. The datagram is released
+     *
+     * @param d a {@link Frame#MSG MSG} or {@link Frame#DROP DROP} frame,
+     * anything else is dropped
+     */
+    void add(Datagram d) {
+        long now = System.nanoTime();
+        try {
+            int type = Frame.isExtended(d.buf) ? Frame.type(d.buf) : -1;
+            if(type == Frame.MSG && d.length() >= Frame.MSG_HEADER_SIZE) {
+                int f = (int) d.getInt(7);
+                floor(extend(f, f));
+                long seq = extend((int) d.getInt(3), f);
+                int ttl = d.getShort(11);
+                if(seq < next || held.containsKey(seq)) {
+                    return;
+                }
+                int len = d.length() - Frame.MSG_HEADER_SIZE;
+                byte[] b = new byte[len];
+                d.copyTo(Frame.MSG_HEADER_SIZE, b, 0, len);
+                held.put(seq, new Held(new Payload(b, d.source),
+                                       now + ttl * 1000000L));
+                deliver();
+            } else if(type == Frame.DROP && d.length() >= Frame.DROP_HEADER_SIZE) {
+                if(next >= 0) {
+                    int f = (int) d.getInt(3);
+                    floor(extend(f, f));
+                }
+            } else {
+                Log.d(3, "<<< udprecvtimed: dropping frame from " +
+                         UDPHost.sockAddress(d.source));
+            }
+        } finally {
+            d.release();
+        }
+    }
+
+    /**
+     * Extend a 32-bit sequence number to the one closest to the next
+     * expected, starting over at the given floor when it is out of reach
+     */
+    private long extend(int seq, int floor) {
+        if(next < 0) {
+            next = floor & 0xffffffffL;
+            base = next;
+        }
+        long s = next + (seq - (int) next);
+        if(Math.abs(s - next) > WINDOW) {
+            Log.d(3, "udprecvtimed: sender started over at " +
+                     (floor & 0xffffffffL));
+            long delivered = next - base;
+            held.clear();
+            next = floor & 0xffffffffL;
+            base = next - delivered;
+            s = next + (seq - (int) next);
+        }
+        return s;
+    }
+
+    /**
+     * Give up on everything missing below a floor
+     */
+    private void floor(long floor) {
+        while(next < floor) {
+            Map.Entry<Long, Held> e = held.firstEntry();
+            long until = e == null ? floor : Math.min(floor, e.getKey());
+            if(until > next) {
+                ready.add(new TimedMessage(next - base, (int) (until - next)));
+                next = until;
+            }
+            deliver();
+        }
+    }
+
+    /**
+     * Move held messages that are next in sequence to the ready queue
+     */
+    private void deliver() {
+        Map.Entry<Long, Held> e;
+        while((e = held.firstEntry()) != null && e.getKey() == next) {
+            held.pollFirstEntry();
+            ready.add(new TimedMessage(next - base, e.getValue().payload));
+            next++;
+        }
+    }
+
+    /**
+     * Get the next message or gap in sequence, skipping the gaps ahead of
+     * held messages whose deadline has come
+     *
+     * @param now current time in nanoseconds
+     * @return the message or gap, <code>null</code> if there is none yet
+     */
+    TimedMessage poll(long now) {
+        if(ready.isEmpty()) {
+            long due = -1;
+            for(Map.Entry<Long, Held> e : held.entrySet()) {
+                if(e.getValue().deadline - now <= 0) {
+                    due = e.getKey();
+                }
+            }
+            if(due >= 0) {
+                floor(due);
+                deliver();
+            }
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Get the time the earliest held message has to be delivered by
+     *
+     * @param now current time in nanoseconds
+     * @return nanoseconds from now, -1 if nothing is held
+     */
+    long nextDeadline(long now) {
+        long earliest = -1;
+        for(Held h : held.values()) {
+            long left = Math.max(0, h.deadline - now);
+            if(earliest < 0 || left < earliest) {
+                earliest = left;
+            }
+        }
+        return earliest;
+    }
+
+    private static class Held {
+        final Payload payload;
+        final long deadline;
+
+        Held(Payload payload, long deadline) {
+            this.payload = payload;
+            this.deadline = deadline;
+        }
+    }
+}
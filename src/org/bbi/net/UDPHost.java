@@ -17,6 +17,7 @@ package org.bbi.net;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import org.bbi.tools.CoarseClock;
 
 /**
  * Description of a UDP host
@@ -30,7 +31,8 @@ public class UDPHost {
     private String privateAddr;
     private int privatePort;
     private final SocketAddress publicSock;
-    private long timeLastAccessed;
+    private final long key;
+    private volatile long timeLastAccessed;
     
     /**
      * The minimum information about the host is its endpoint
@@ -44,7 +46,8 @@ public class UDPHost {
         this.publicSock = publicSock;
         publicAddr = ((InetSocketAddress)publicSock).getAddress().getHostAddress();
         publicPort = ((InetSocketAddress)publicSock).getPort();
-        timeLastAccessed = System.currentTimeMillis();
+        key = PeerKey.of(publicSock);
+        timeLastAccessed = CoarseClock.millis();
     }
 
     /**
@@ -59,10 +62,11 @@ public class UDPHost {
         this.publicSock = publicSock;
         publicAddr = ((InetSocketAddress)publicSock).getAddress().getHostAddress();
         publicPort = ((InetSocketAddress)publicSock).getPort();
+        key = PeerKey.of(publicSock);
         String[] tokens = privateSock.split(":");
         privateAddr = tokens[0];
         privatePort = Integer.parseInt(tokens[1]);
-        timeLastAccessed = System.currentTimeMillis();
+        timeLastAccessed = CoarseClock.millis();
     }
 
     /**
@@ -101,6 +105,15 @@ public class UDPHost {
         return publicSock;
     }
 
+    /**
+     * Get the {@link PeerKey} of the object's endpoint
+     * 
+     * @return the key
+     */
+    public long getKey() {
+        return key;
+    }
+
     /**
      * Get the object's endpoint address as a string
      * 
@@ -129,14 +142,25 @@ public class UDPHost {
      * @return duration in milliseconds
      */
     public long getDuration() {
-        return System.currentTimeMillis() - timeLastAccessed;
+        return CoarseClock.millis() - timeLastAccessed;
+    }
+
+    /**
+     * Get the last time {@link #updateLastAccessed() updateLastAccessed} was
+     * invoked, or the creation time of this object if it never was
+     * 
+     * @return {@link CoarseClock} timestamp in milliseconds
+     */
+    public long getLastAccessed() {
+        return timeLastAccessed;
     }
 
     /**
-     * Update the last accessed timestamp of this object
+     * Update the last accessed timestamp of this object. Reads the
+     * {@link CoarseClock}, so it is cheap enough to call on every packet
      */
     public void updateLastAccessed() {
-        timeLastAccessed = System.currentTimeMillis();
+        timeLastAccessed = CoarseClock.millis();
     }
     
     /**
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+/**
+ * Classic Reno-style controller: slow start, then additive increase of one
+ * segment per round trip and multiplicative decrease on loss
+ *
+ * @author wira
+ */
+public class AIMDControl extends AbstractCongestionControl {
+    /**
+     * Window multiplier applied on a loss event
+     */
+    public static final double BETA = 0.5;
+
+    public AIMDControl(int mss) {
+        super(mss);
+    }
+
+    @Override
+    protected void increase(long bytes) {
+        if(cwnd < ssthresh) {
+            cwnd += bytes;
+        } else {
+            cwnd += Math.max(1, (long) mss * bytes / cwnd);
+        }
+    }
+
+    @Override
+    protected void decrease(long bytes) {
+        ssthresh = Math.max((long) (cwnd * BETA), 2L * mss);
+        cwnd = ssthresh;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+/**
+ * Round trip time estimation (RFC 6298) and window based pacing shared by the
+ * built-in congestion controllers. Subclasses only have to grow and shrink
+ * the window
+ *
+ * @author wira
+ */
+public abstract class AbstractCongestionControl implements CongestionControl {
+    /**
+     * Round trip time assumed before the first sample arrives
+     */
+    public static final long INITIAL_RTT_NS = 100000000L;
+
+    /**
+     * Lower bound of the retransmission timeout
+     */
+    public static final long MIN_RTO_NS = 200000000L;
+
+    /**
+     * Upper bound of the retransmission timeout
+     */
+    public static final long MAX_RTO_NS = 60000000000L;
+
+    /**
+     * Initial window in multiples of the maximum segment size
+     */
+    public static final int INITIAL_WINDOW_SEGMENTS = 10;
+
+    /**
+     * Pacing gain while the window is still opening up
+     */
+    public static final double SLOW_START_PACING_GAIN = 2.0;
+
+    /**
+     * Pacing gain in congestion avoidance
+     */
+    public static final double PACING_GAIN = 1.2;
+
+    protected final int mss;
+    protected long cwnd;
+    protected long ssthresh = Long.MAX_VALUE;
+    protected long srtt = 0;
+    protected long rttvar = 0;
+    protected long minRtt = Long.MAX_VALUE;
+    protected long latestRtt = 0;
+    protected long lastReduction = 0;
+
+    /**
+     * Create a controller for a path with the given segment size
+     *
+     * @param mss maximum segment (datagram) size in bytes
+     */
+    public AbstractCongestionControl(int mss) {
+        this.mss = mss;
+        this.cwnd = (long) INITIAL_WINDOW_SEGMENTS * mss;
+    }
+
+    /**
+     * Create one of the built-in controllers by name
+     *
+     * @param name <code>aimd</code>, <code>cubic</code> or <code>delay</code>
+     * @param mss maximum segment (datagram) size in bytes
+     * @return the controller, or <code>null</code> if the name is unknown
+     */
+    public static CongestionControl create(String name, int mss) {
+        switch(name.toLowerCase()) {
+            case "aimd":
+                return new AIMDControl(mss);
+            case "cubic":
+                return new CubicControl(mss);
+            case "delay":
+                return new DelayControl(mss);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public synchronized void onAck(long bytes, long rttNanos) {
+        updateRTT(rttNanos);
+        increase(bytes);
+    }
+
+    @Override
+    public synchronized void onLoss(long bytes) {
+        // only react once per round trip, a burst of losses is one event
+        long now = System.nanoTime();
+        if(lastReduction != 0 && now - lastReduction < getSmoothedRTT()) {
+            return;
+        }
+        lastReduction = now;
+        decrease(bytes);
+        if(cwnd < 2L * mss) {
+            cwnd = 2L * mss;
+        }
+    }
+
+    @Override
+    public synchronized long getWindow() {
+        return cwnd;
+    }
+
+    @Override
+    public synchronized long getSmoothedRTT() {
+        return srtt == 0 ? INITIAL_RTT_NS : srtt;
+    }
+
+    @Override
+    public synchronized long getRTO() {
+        if(srtt == 0) {
+            return 10 * INITIAL_RTT_NS;
+        }
+        long rto = srtt + 4 * rttvar;
+        return Math.min(MAX_RTO_NS, Math.max(MIN_RTO_NS, rto));
+    }
+
+    @Override
+    public synchronized long getPacingRate() {
+        double gain = cwnd < ssthresh ? SLOW_START_PACING_GAIN : PACING_GAIN;
+        return (long) (gain * cwnd * 1000000000.0 / getSmoothedRTT());
+    }
+
+    /**
+     * Get the smallest round trip time seen on this path, which is the best
+     * estimate of the propagation delay
+     *
+     * @return round trip time in nanoseconds, or 0 if there is no sample yet
+     */
+    public synchronized long getMinRTT() {
+        return minRtt == Long.MAX_VALUE ? 0 : minRtt;
+    }
+
+    private void updateRTT(long rtt) {
+        if(rtt <= 0) {
+            return;
+        }
+        latestRtt = rtt;
+        if(rtt < minRtt) {
+            minRtt = rtt;
+        }
+        if(srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    /**
+     * Grow the window after an acknowledgement. Called with the monitor held
+     *
+     * @param bytes number of bytes acknowledged
+     */
+    protected abstract void increase(long bytes);
+
+    /**
+     * Shrink the window after a loss event. Called with the monitor held at
+     * most once per round trip
+     *
+     * @param bytes number of bytes lost
+     */
+    protected abstract void decrease(long bytes);
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[cwnd=" + cwnd + " srtt=" +
+               (getSmoothedRTT() / 1000) + "us]";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+/**
+ * A congestion controller decides how much data may be outstanding on a path
+ * and how fast it should be clocked out. The transport feeds it with
+ * acknowledgement and loss events and asks it for a pacing rate
+ *
+ * @author wira
+ */
+public interface CongestionControl {
+    /**
+     * Notify the controller that data has been acknowledged by the remote
+     * host
+     *
+     * @param bytes number of bytes acknowledged
+     * @param rttNanos measured round trip time for the acknowledged data in
+     * nanoseconds
+     */
+    public void onAck(long bytes, long rttNanos);
+
+    /**
+     * Notify the controller that data was lost or that an acknowledgement
+     * did not arrive in time
+     *
+     * @param bytes number of bytes considered lost
+     */
+    public void onLoss(long bytes);
+
+    /**
+     * Get the current congestion window
+     *
+     * @return window size in bytes
+     */
+    public long getWindow();
+
+    /**
+     * Get the smoothed round trip time estimate
+     *
+     * @return round trip time in nanoseconds
+     */
+    public long getSmoothedRTT();
+
+    /**
+     * Get the time after which an outstanding acknowledgement should be
+     * considered lost
+     *
+     * @return timeout in nanoseconds
+     */
+    public long getRTO();
+
+    /**
+     * Get the rate at which data should be clocked out to the network
+     *
+     * @return pacing rate in bytes per second
+     */
+    public long getPacingRate();
+}
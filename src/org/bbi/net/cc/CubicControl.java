@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+/**
+ * CUBIC (RFC 8312) window growth. The window follows a cubic function of the
+ * time since the last loss, so it probes quickly far from the last saturation
+ * point and carefully near it. Long fat paths recover much faster than with
+ * {@link AIMDControl}
+ *
+ * @author wira
+ */
+public class CubicControl extends AbstractCongestionControl {
+    public static final double C = 0.4;
+    public static final double BETA = 0.7;
+
+    private double wMax = 0;
+    private double k = 0;
+    private long epochStart = 0;
+
+    public CubicControl(int mss) {
+        super(mss);
+    }
+
+    @Override
+    protected void increase(long bytes) {
+        if(cwnd < ssthresh) {
+            cwnd += bytes;
+            return;
+        }
+        long now = System.nanoTime();
+        double w = (double) cwnd / mss;
+        if(epochStart == 0) {
+            epochStart = now;
+            if(wMax < w) {
+                wMax = w;
+            }
+            k = Math.cbrt(wMax * (1 - BETA) / C);
+        }
+        double rtt = getSmoothedRTT() / 1e9;
+        double t = (now - epochStart) / 1e9 + rtt;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        // never be less aggressive than Reno would be
+        double reno = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * (t / rtt);
+        if(reno > target) {
+            target = reno;
+        }
+        if(target > w) {
+            cwnd += (long) ((target - w) / w * bytes);
+        } else {
+            cwnd += Math.max(1, (long) mss * bytes / (100 * cwnd));
+        }
+    }
+
+    @Override
+    protected void decrease(long bytes) {
+        double w = (double) cwnd / mss;
+        // fast convergence: release bandwidth to newer flows
+        wMax = w < wMax ? w * (1 + BETA) / 2 : w;
+        cwnd = Math.max((long) (cwnd * BETA), 2L * mss);
+        ssthresh = cwnd;
+        epochStart = 0;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+/**
+ * Delay based controller in the spirit of LEDBAT (RFC 6817). The queueing
+ * delay is estimated as the latest round trip time minus the smallest one
+ * seen, and the window is steered so that this delay stays around
+ * <code>TARGET_DELAY_NS</code>. It backs off before the bottleneck buffer
+ * overflows, so it keeps latency low for everything else sharing the path
+ *
+ * @author wira
+ */
+public class DelayControl extends AbstractCongestionControl {
+    /**
+     * Queueing delay the controller aims for
+     */
+    public static long TARGET_DELAY_NS = 25000000L;
+
+    /**
+     * Segments gained per round trip when there is no queueing delay at all
+     */
+    public static final double GAIN = 1.0;
+
+    public DelayControl(int mss) {
+        super(mss);
+    }
+
+    @Override
+    protected void increase(long bytes) {
+        long queueing = latestRtt - getMinRTT();
+        double offTarget = (double) (TARGET_DELAY_NS - queueing) / TARGET_DELAY_NS;
+        if(cwnd < ssthresh && offTarget > 0.5) {
+            cwnd += bytes;
+            return;
+        }
+        if(cwnd < ssthresh) {
+            // first sign of queueing ends the start-up phase
+            ssthresh = cwnd;
+        }
+        cwnd += (long) (GAIN * offTarget * bytes * mss / cwnd);
+        if(cwnd < 2L * mss) {
+            cwnd = 2L * mss;
+        }
+    }
+
+    @Override
+    protected void decrease(long bytes) {
+        cwnd = cwnd / 2;
+        ssthresh = Math.max(cwnd, 2L * mss);
+    }
+}
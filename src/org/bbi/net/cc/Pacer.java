@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.cc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads datagrams evenly over time at the rate given by a
+ * {@link CongestionControl}. Every send reserves a time slot on the
+ * <code>System.nanoTime</code> clock; the caller parks until shortly before
+ * its slot and spins the rest of the way, so gaps well below a millisecond
+ * are honoured without a <code>Thread.sleep</code> granularity penalty
+ *
+ * @author wira
+ */
+public class Pacer {
+    /**
+     * Remaining wait below which we spin instead of parking. Parking usually
+     * overshoots by tens of microseconds
+     */
+    public static long SPIN_THRESHOLD_NS = 50000;
+
+    /**
+     * How far the schedule may fall behind the clock before we stop trying
+     * to catch up. Prevents a long idle period from being "saved up" and
+     * released as one huge burst
+     */
+    public static long MAX_BURST_NS = 1000000;
+
+    private final CongestionControl cc;
+    private long nextSlot = System.nanoTime();
+
+    public Pacer(CongestionControl cc) {
+        this.cc = cc;
+    }
+
+    /**
+     * Block until the caller may put a datagram of the given size on the
+     * wire
+     *
+     * @param bytes size of the datagram to send
+     */
+    public void pace(int bytes) {
+        waitUntil(reserve(bytes));
+    }
+
+    /**
+     * Reserve the next send slot without waiting for it
+     *
+     * @param bytes size of the datagram to send
+     * @return <code>System.nanoTime</code> value at which the datagram may
+     * be sent
+     */
+    public synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        // nanoTime has an arbitrary origin, only differences are meaningful
+        if(nextSlot - (now - MAX_BURST_NS) < 0) {
+            nextSlot = now - MAX_BURST_NS;
+        }
+        long slot = nextSlot;
+        long rate = cc.getPacingRate();
+        nextSlot += rate > 0 ? bytes * 1000000000L / rate : 0;
+        return slot;
+    }
+
+    /**
+     * Wait until the <code>System.nanoTime</code> clock reaches the given
+     * time
+     *
+     * @param deadline time to wait for
+     */
+    public static void waitUntil(long deadline) {
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > 0) {
+            if(remaining > SPIN_THRESHOLD_NS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
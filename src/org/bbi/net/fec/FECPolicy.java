@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.fec;
+
+/**
+ * Decides how much parity to add to a block. The sender keeps a smoothed
+ * estimate of the loss rate reported back by the receiver and picks the
+ * smallest number of parity pieces for which the chance of losing more
+ * pieces than can be rebuilt stays below <code>TARGET_FAILURE</code>
+ *
+ * @author wira
+ */
+public class FECPolicy {
+    /**
+     * Maximum number of data pieces per block
+     */
+    public static int BLOCK_SIZE = 16;
+
+    /**
+     * Upper bound of parity pieces per block
+     */
+    public static int MAX_PARITY = 8;
+
+    /**
+     * Loss rate assumed when the path looks clean
+     */
+    public static double MIN_LOSS = 0.01;
+
+    /**
+     * Acceptable probability that a block cannot be rebuilt
+     */
+    public static double TARGET_FAILURE = 0.0001;
+
+    /**
+     * Weight of a new loss report in the smoothed loss rate
+     */
+    public static double ALPHA = 0.125;
+
+    private double loss = MIN_LOSS;
+
+    /**
+     * Feed a loss report from the receiver
+     *
+     * @param lost number of data pieces the receiver had to rebuild
+     * @param total number of data pieces in the report
+     */
+    public synchronized void onFeedback(int lost, int total) {
+        if(total <= 0) {
+            return;
+        }
+        loss = (1 - ALPHA) * loss + ALPHA * ((double) lost / total);
+    }
+
+    /**
+     * Get the smoothed loss rate
+     *
+     * @return fraction of pieces lost
+     */
+    public synchronized double getLossRate() {
+        return loss;
+    }
+
+    /**
+     * Get the number of parity pieces to add to a block
+     *
+     * @param k number of data pieces in the block
+     * @return number of parity pieces
+     */
+    public int parityFor(int k) {
+        double p = Math.max(getLossRate(), MIN_LOSS);
+        int max = Math.min(MAX_PARITY, ReedSolomon.MAX_PIECES - k);
+        for(int m = 1; m < max; m++) {
+            if(failureProbability(k + m, m, p) <= TARGET_FAILURE) {
+                return m;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Probability that more than <code>m</code> out of <code>n</code> pieces
+     * are lost with independent loss probability <code>p</code>
+     */
+    private static double failureProbability(int n, int m, double p) {
+        double ok = 0;
+        double term = Math.pow(1 - p, n);
+        for(int i = 0; i <= m; i++) {
+            ok += term;
+            term = term * (n - i) / (i + 1) * p / (1 - p);
+        }
+        return Math.max(0, 1 - ok);
+    }
+}
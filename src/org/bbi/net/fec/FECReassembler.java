@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.fec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the data and parity pieces of one FEC protected message and
+ * rebuilds lost data pieces as soon as a block has enough parity. Piece
+ * numbers are 1-based like in the plain SockUDP header
+ *
+ * @author wira
+ */
+public class FECReassembler {
+    private final int message;
+    private final int total;
+    private final byte[][] data;
+    private final int[] off;
+    private final int[] len;
+    private final Map<Integer, Block> blocks = new HashMap<>();
+    private int received = 0;
+    private int recovered = 0;
+    private int pieceSize = -1;
+    private long bytes = -1;
+
+    /**
+     * @param message message number the pieces belong to
+     * @param total number of data pieces in the message
+     */
+    public FECReassembler(int message, int total) {
+        this.message = message;
+        this.total = total;
+        data = new byte[total][];
+        off = new int[total];
+        len = new int[total];
+    }
+
+    public int getMessage() {
+        return message;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the number of data pieces that had to be rebuilt from parity
+     *
+     * @return number of pieces
+     */
+    public int getRecovered() {
+        return recovered;
+    }
+
+    public boolean isComplete() {
+        return received == total;
+    }
+
+    /**
+     * Add a data piece. The array is kept by reference
+     *
+     * @param order piece number, 1-based
+     * @param buf array holding the piece
+     * @param o offset of the piece in the array
+     * @param l length of the piece
+     * @return number of new data pieces, including any rebuilt ones
+     */
+    public int addData(int order, byte[] buf, int o, int l) {
+        int i = order - 1;
+        if(i < 0 || i >= total || data[i] != null) {
+            return 0;
+        }
+        data[i] = buf;
+        off[i] = o;
+        len[i] = l;
+        received++;
+        for(Block b : blocks.values()) {
+            if(i >= b.first && i < b.first + b.k) {
+                return 1 + tryDecode(b);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Add a parity piece. The array is kept by reference
+     *
+     * @param first number of the first data piece of the block, 1-based
+     * @param k number of data pieces in the block
+     * @param m number of parity pieces in the block
+     * @param row parity row of this piece
+     * @param size piece size used by the sender
+     * @param messageBytes total length of the message
+     * @param buf array holding the piece
+     * @param o offset of the piece in the array
+     * @param l length of the piece (the block length)
+     * @return number of data pieces rebuilt
+     */
+    public int addParity(int first, int k, int m, int row, int size,
+                         long messageBytes, byte[] buf, int o, int l) {
+        if(first < 1 || first - 1 + k > total || row >= m) {
+            return 0;
+        }
+        pieceSize = size;
+        bytes = messageBytes;
+        Block b = blocks.get(first - 1);
+        if(b == null) {
+            b = new Block(first - 1, k, m, l);
+            blocks.put(first - 1, b);
+        }
+        if(b.parity[row] != null) {
+            return 0;
+        }
+        b.parity[row] = buf;
+        b.parityOff[row] = o;
+        return tryDecode(b);
+    }
+
+    private int tryDecode(Block b) {
+        if(b.done) {
+            return 0;
+        }
+        byte[][] d = new byte[b.k][];
+        int[] o = new int[b.k];
+        int[] l = new int[b.k];
+        int missing = 0;
+        for(int j = 0; j < b.k; j++) {
+            d[j] = data[b.first + j];
+            o[j] = off[b.first + j];
+            l[j] = len[b.first + j];
+            if(d[j] == null) {
+                missing++;
+            }
+        }
+        if(missing == 0) {
+            b.done = true;
+            return 0;
+        }
+        int n = ReedSolomon.get(b.k, b.m).decode(d, o, l, b.parity,
+                                                 b.parityOff, b.size);
+        if(n <= 0) {
+            return 0;
+        }
+        for(int j = 0; j < b.k; j++) {
+            int i = b.first + j;
+            if(data[i] == null) {
+                data[i] = d[j];
+                off[i] = 0;
+                len[i] = pieceLength(i);
+                received++;
+                recovered++;
+            }
+        }
+        b.done = true;
+        return n;
+    }
+
+    private int pieceLength(int i) {
+        if(i < total - 1) {
+            return pieceSize;
+        }
+        return (int) (bytes - (long) (total - 1) * pieceSize);
+    }
+
+    /**
+     * Concatenate the data pieces of a complete message
+     *
+     * @return the message
+     */
+    public byte[] assemble() {
+        long n = 0;
+        for(int i = 0; i < total; i++) {
+            n += len[i];
+        }
+        byte[] ret = new byte[(int) n];
+        int pos = 0;
+        for(int i = 0; i < total; i++) {
+            System.arraycopy(data[i], off[i], ret, pos, len[i]);
+            pos += len[i];
+        }
+        return ret;
+    }
+
+    private static class Block {
+        final int first;
+        final int k;
+        final int size;
+        final int m;
+        final byte[][] parity;
+        final int[] parityOff;
+        boolean done = false;
+
+        Block(int first, int k, int m, int size) {
+            this.first = first;
+            this.k = k;
+            this.m = m;
+            this.size = size;
+            parity = new byte[m][];
+            parityOff = new int[m];
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.fec;
+
+/**
+ * Arithmetic in GF(2^8) with the generator polynomial 0x11D, plus the bulk
+ * row operations used by the erasure code
+ *
+ * @author wira
+ */
+public class GF256 {
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    /**
+     * Full multiplication table, <code>MUL[a][b] = a*b</code>. 64 KiB, but a
+     * single row is all the inner loop touches
+     */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) {
+                x ^= 0x11D;
+            }
+        }
+        for(int i = 255; i < 512; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for(int a = 1; a < 256; a++) {
+            for(int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    public static int mul(int a, int b) {
+        if(a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xff] + LOG[b & 0xff]];
+    }
+
+    public static int inv(int a) {
+        if(a == 0) {
+            throw new ArithmeticException("inverse of 0");
+        }
+        return EXP[255 - LOG[a & 0xff]];
+    }
+
+    /**
+     * <code>dst ^= src</code>. Kept as a plain counted loop over arrays, which
+     * is the shape HotSpot's superword pass turns into SIMD instructions
+     *
+     * @param dst destination array
+     * @param dstOff offset into the destination
+     * @param src source array
+     * @param srcOff offset into the source
+     * @param len number of bytes
+     */
+    public static void xor(byte[] dst, int dstOff, byte[] src, int srcOff,
+                           int len) {
+        for(int i = 0; i < len; i++) {
+            dst[dstOff + i] ^= src[srcOff + i];
+        }
+    }
+
+    /**
+     * <code>dst ^= c * src</code>
+     *
+     * @param dst destination array
+     * @param dstOff offset into the destination
+     * @param src source array
+     * @param srcOff offset into the source
+     * @param len number of bytes
+     * @param c coefficient
+     */
+    public static void mulAdd(byte[] dst, int dstOff, byte[] src, int srcOff,
+                              int len, int c) {
+        c &= 0xff;
+        if(c == 0) {
+            return;
+        }
+        if(c == 1) {
+            xor(dst, dstOff, src, srcOff, len);
+            return;
+        }
+        byte[] row = MUL[c];
+        for(int i = 0; i < len; i++) {
+            dst[dstOff + i] ^= row[src[srcOff + i] & 0xff];
+        }
+    }
+
+    /**
+     * Invert a square matrix in place using Gauss-Jordan elimination
+     *
+     * @param a matrix to invert, values 0-255
+     * @return the inverse, or <code>null</code> if the matrix is singular
+     */
+    public static int[][] invert(int[][] a) {
+        int n = a.length;
+        int[][] m = new int[n][2 * n];
+        for(int i = 0; i < n; i++) {
+            System.arraycopy(a[i], 0, m[i], 0, n);
+            m[i][n + i] = 1;
+        }
+        for(int col = 0; col < n; col++) {
+            int pivot = col;
+            while(pivot < n && m[pivot][col] == 0) {
+                pivot++;
+            }
+            if(pivot == n) {
+                return null;
+            }
+            int[] t = m[pivot];
+            m[pivot] = m[col];
+            m[col] = t;
+            int scale = inv(m[col][col]);
+            for(int j = 0; j < 2 * n; j++) {
+                m[col][j] = mul(m[col][j], scale);
+            }
+            for(int i = 0; i < n; i++) {
+                if(i != col && m[i][col] != 0) {
+                    int f = m[i][col];
+                    for(int j = 0; j < 2 * n; j++) {
+                        m[i][j] ^= mul(f, m[col][j]);
+                    }
+                }
+            }
+        }
+        int[][] ret = new int[n][n];
+        for(int i = 0; i < n; i++) {
+            System.arraycopy(m[i], n, ret[i], 0, n);
+        }
+        return ret;
+    }
+}
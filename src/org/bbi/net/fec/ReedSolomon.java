@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.fec;
+
+import java.util.Arrays;
+
+/**
+ * <p>Systematic Reed-Solomon erasure code over GF(2^8). A block of
+ * <code>k</code> data pieces is protected by <code>m</code> parity pieces
+ * and any <code>k</code> of the <code>k+m</code> pieces are enough to rebuild
+ * the block.</p>
+ *
+ * <p>The parity rows come from a Cauchy matrix whose columns are scaled so
+ * that the first row is all ones. Scaling keeps every square submatrix
+ * invertible, and it makes the first parity piece a plain XOR of the data,
+ * which is cheap to compute and is all that is needed at low loss rates.</p>
+ *
+ * <p>Pieces may have different lengths, shorter pieces are treated as if
+ * they were zero padded to the block length.</p>
+ *
+ * @author wira
+ */
+public class ReedSolomon {
+    public static final int MAX_PIECES = 256;
+
+    private static final ReedSolomon[][] CACHE = new ReedSolomon[MAX_PIECES][];
+
+    private final int k;
+    private final int m;
+    private final int[][] matrix;
+
+    /**
+     * Create a code for the given block geometry
+     *
+     * @param k number of data pieces per block
+     * @param m number of parity pieces per block
+     */
+    public ReedSolomon(int k, int m) {
+        if(k < 1 || m < 1 || k + m > MAX_PIECES) {
+            throw new IllegalArgumentException("bad block geometry k=" + k +
+                                               " m=" + m);
+        }
+        this.k = k;
+        this.m = m;
+        matrix = new int[m][k];
+        for(int i = 0; i < m; i++) {
+            for(int j = 0; j < k; j++) {
+                matrix[i][j] = GF256.inv(i ^ (m + j));
+            }
+        }
+        for(int j = 0; j < k; j++) {
+            int scale = GF256.inv(matrix[0][j]);
+            for(int i = 0; i < m; i++) {
+                matrix[i][j] = GF256.mul(matrix[i][j], scale);
+            }
+        }
+    }
+
+    /**
+     * Get a shared instance for the given block geometry
+     *
+     * @param k number of data pieces per block
+     * @param m number of parity pieces per block
+     * @return the code
+     */
+    public static ReedSolomon get(int k, int m) {
+        if(k < 1 || m < 1 || k + m > MAX_PIECES) {
+            throw new IllegalArgumentException("bad block geometry k=" + k +
+                                               " m=" + m);
+        }
+        synchronized(CACHE) {
+            if(CACHE[k] == null) {
+                CACHE[k] = new ReedSolomon[MAX_PIECES];
+            }
+            if(CACHE[k][m] == null) {
+                CACHE[k][m] = new ReedSolomon(k, m);
+            }
+            return CACHE[k][m];
+        }
+    }
+
+    public int getDataPieces() {
+        return k;
+    }
+
+    public int getParityPieces() {
+        return m;
+    }
+
+    /**
+     * Compute one parity piece
+     *
+     * @param row parity row, 0 to <code>m-1</code>
+     * @param data data pieces
+     * @param off offset of each data piece in its array
+     * @param len length of each data piece
+     * @param parity destination array
+     * @param parityOff offset into the destination
+     * @param size block length (longest data piece)
+     */
+    public void encode(int row, byte[][] data, int[] off, int[] len,
+                       byte[] parity, int parityOff, int size) {
+        Arrays.fill(parity, parityOff, parityOff + size, (byte) 0);
+        for(int j = 0; j < k; j++) {
+            GF256.mulAdd(parity, parityOff, data[j], off[j], len[j],
+                         matrix[row][j]);
+        }
+    }
+
+    /**
+     * Rebuild missing data pieces. Missing pieces are marked with a
+     * <code>null</code> array; on success they are replaced with new arrays
+     * of length <code>size</code> (offset 0), and it is up to the caller to
+     * trim them to their real length
+     *
+     * @param data data pieces
+     * @param off offset of each data piece in its array
+     * @param len length of each data piece
+     * @param parity parity pieces indexed by row, <code>null</code> if
+     * missing
+     * @param parityOff offset of each parity piece in its array
+     * @param size block length (longest data piece)
+     * @return number of pieces rebuilt, or -1 if there is not enough
+     * parity to rebuild the block
+     */
+    public int decode(byte[][] data, int[] off, int[] len,
+                      byte[][] parity, int[] parityOff, int size) {
+        int[] missing = new int[k];
+        int e = 0;
+        for(int j = 0; j < k; j++) {
+            if(data[j] == null) {
+                missing[e++] = j;
+            }
+        }
+        if(e == 0) {
+            return 0;
+        }
+        int[] rows = new int[e];
+        int r = 0;
+        for(int i = 0; i < m && r < e; i++) {
+            if(parity[i] != null) {
+                rows[r++] = i;
+            }
+        }
+        if(r < e) {
+            return -1;
+        }
+
+        // syndromes: parity minus the contribution of the pieces we have
+        byte[][] syndrome = new byte[e][];
+        for(int a = 0; a < e; a++) {
+            int row = rows[a];
+            syndrome[a] = new byte[size];
+            System.arraycopy(parity[row], parityOff[row], syndrome[a], 0, size);
+            for(int j = 0; j < k; j++) {
+                if(data[j] != null) {
+                    GF256.mulAdd(syndrome[a], 0, data[j], off[j], len[j],
+                                 matrix[row][j]);
+                }
+            }
+        }
+
+        int[][] sub = new int[e][e];
+        for(int a = 0; a < e; a++) {
+            for(int b = 0; b < e; b++) {
+                sub[a][b] = matrix[rows[a]][missing[b]];
+            }
+        }
+        int[][] inverse = GF256.invert(sub);
+        if(inverse == null) {
+            // cannot happen with a Cauchy matrix
+            return -1;
+        }
+        for(int b = 0; b < e; b++) {
+            byte[] piece = new byte[size];
+            for(int a = 0; a < e; a++) {
+                GF256.mulAdd(piece, 0, syndrome[a], 0, size, inverse[b][a]);
+            }
+            int j = missing[b];
+            data[j] = piece;
+            off[j] = 0;
+            len[j] = size;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import org.bbi.net.Payload;
+import org.bbi.net.SockUDP;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Measures how long the NAT in front of this host keeps a UDP binding
+ * open without traffic, in the manner of RFC 5780. A probe socket, apart
+ * from the one registered with the server, sends
+ * <code>!natprobe TOKEN GAP</code>, which opens a binding, then stays
+ * quiet. The probe socket is not registered, so it first echoes the
+ * cookie the server answers with, like a registration. The server answers
+ * from its probe port, port {@link UDPServer#PROBE_PORT_OFFSET} above its
+ * own, once <code>GAP</code> milliseconds have passed. If the answer gets
+ * in, the binding outlived the gap.</p>
+ *
+ * <p>The gap starts at {@link #FIRST_GAP_MS} and doubles until an answer
+ * does not get in or {@link #MAX_GAP_MS} is reached, then the timeout is
+ * narrowed down by halving between the longest gap that got in and the
+ * shortest that did not, to within {@link #RESOLUTION_MS}. A NAT that only
+ * lets in answers from the very port that was sent to does not let the
+ * probe port through at all, which is found with a first gap of 0, and the
+ * server is then asked to answer from its own port instead.</p>
+ *
+ * <p>Each try lasts as long as its gap, so the whole measurement takes
+ * minutes. It is meant to run in the background while the registered
+ * socket keeps its binding with a conservative keepalive.</p>
+ *
+ * @author wira
+ */
+public class BindingProbe {
+    /**
+     * First gap tried
+     */
+    public static long FIRST_GAP_MS = 15000;
+
+    /**
+     * Longest gap tried, a NAT that keeps bindings longer is taken as
+     * keeping them this long
+     */
+    public static long MAX_GAP_MS = 480000;
+
+    /**
+     * Stop narrowing down once the timeout is known to within this
+     */
+    public static long RESOLUTION_MS = 5000;
+
+    /**
+     * Time to wait for an answer past its gap
+     */
+    public static long ANSWER_WAIT_MS = 2000;
+
+    private final SocketAddress server;
+    private final Random random = new Random();
+    private boolean direct = false;
+
+    /**
+     * @param server address of the rendezvous server
+     */
+    public BindingProbe(SocketAddress server) {
+        this.server = server;
+    }
+
+    /**
+     * Measure the binding timeout. Blocks for the whole measurement
+     *
+     * @return the longest idle time a binding was seen to survive, in
+     * milliseconds, 0 if not even {@link #FIRST_GAP_MS} was, -1 if the
+     * server did not answer at all
+     * @throws IOException if an I/O exception occurs
+     */
+    public long discover() throws IOException {
+        if(!probe(0)) {
+            direct = true;
+            if(!probe(0)) {
+                return -1;
+            }
+            Log.d(1, this + ": probe port filtered, probing from the " +
+                     "server port");
+        }
+        long lo = 0;
+        long hi = 0;
+        long gap = FIRST_GAP_MS;
+        while(hi == 0 ? lo < MAX_GAP_MS : hi - lo > RESOLUTION_MS) {
+            boolean alive = probe(gap);
+            Log.d(1, this + ": idle " + gap + "ms " +
+                     (alive ? "kept" : "lost"));
+            if(alive) {
+                lo = gap;
+            } else {
+                hi = gap;
+            }
+            gap = hi == 0 ? Math.min(gap * 2, MAX_GAP_MS) : (lo + hi) / 2;
+        }
+        return lo;
+    }
+
+    /**
+     * Ask for an answer after a gap, from a fresh binding
+     *
+     * @return true if the answer got in
+     */
+    private boolean probe(long gap) throws IOException {
+        int token = random.nextInt() & 0x7fffffff;
+        try (DatagramSocket s = new DatagramSocket(0)) {
+            SockUDP sock = new SockUDP(s);
+            sock.write(server, UDPServer.PROTO_PREFIX + "!natprobe " +
+                       token + " " + gap + (direct ? " direct" : ""));
+            long end = System.currentTimeMillis() + gap + ANSWER_WAIT_MS;
+            long left;
+            while((left = end - System.currentTimeMillis()) > 0) {
+                s.setSoTimeout((int) left);
+                String d;
+                try {
+                    d = (new Payload(sock.read())).decode();
+                } catch(SocketTimeoutException ste) {
+                    return false;
+                }
+                if(d.equals(UDPServer.PROTO_PREFIX + "#natprobe " + token)) {
+                    return true;
+                }
+                if(d.startsWith(UDPServer.PROTO_PREFIX + "#cookie ")) {
+                    sock.write(server, UDPServer.PROTO_PREFIX + 
+                               "!natprobe " + token + " " + gap + 
+                               (direct ? " direct" : "") + " cookie=" + 
+                               d.substring(d.indexOf(' ') + 1).trim());
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BindingProbe[" + server + "]";
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bbi.net.PeerKey;
+import org.bbi.net.UDPHost;
+import org.bbi.tools.ConcurrentLongHashMap;
+
+/**
+ * <p>The hosts registered with a {@link UDPServer}, indexed by ID and by the
+ * {@link PeerKey} of their public address in primitive keyed tables, so a
+ * lookup on every command boxes nothing. A lookup takes no lock, as the
+ * receive threads look up the sender of every datagram, and a registration
+ * or removal only locks one stripe of a table. Two IPv6 addresses can share
+ * a key, so a lookup by address checks the address too, and the second of
+ * two such hosts cannot register.</p>
+ *
+ * <p>IDs are a counter put through a keyed 32-bit Feistel permutation. The
+ * permutation is one to one, so no two of the first 2^32 IDs handed out are
+ * the same and no search for a free ID is needed, while the IDs still look
+ * random to the hosts. The key is picked at random per registry.</p>
+ *
+ * <p>Every registration and removal bumps the registry version and goes in
+ * a log of the last {@link #CHANGE_LOG} changes, so a host that has seen
+ * the list at some version can be sent what changed since instead of the
+ * whole list. IDs are also kept in order, so the list can be read a page
+ * at a time from a cursor that stays valid while hosts come and go.</p>
+ *
+ * @author wira
+ */
+class ClientRegistry {
+    /**
+     * Number of changes kept for {@link #delta(long) delta}
+     */
+    static int CHANGE_LOG = 4096;
+
+    private static final int ROUNDS = 4;
+
+    private static final int STRIPES = 256;
+
+    private final ConcurrentLongHashMap<UDPHost> byID =
+            new ConcurrentLongHashMap<>(STRIPES);
+    private final ConcurrentLongHashMap<UDPHost> byAddress =
+            new ConcurrentLongHashMap<>(STRIPES);
+    private final ConcurrentSkipListSet<Long> ordered =
+            new ConcurrentSkipListSet<>();
+    private final AtomicInteger counter = new AtomicInteger();
+    private final Change[] log = new Change[CHANGE_LOG];
+    private volatile long version = 0;
+    private final int[] keys = new int[ROUNDS];
+
+    ClientRegistry() {
+        SecureRandom r = new SecureRandom();
+        for(int i = 0; i < ROUNDS; i++) {
+            keys[i] = r.nextInt();
+        }
+    }
+
+    /**
+     * Scramble a 32-bit number, one to one
+     */
+    private int permute(int n) {
+        int l = n >>> 16;
+        int r = n & 0xffff;
+        for(int i = 0; i < ROUNDS; i++) {
+            int f = (r ^ keys[i]) * 0x9e3779b1;
+            f = (f ^ (f >>> 15)) & 0xffff;
+            int t = r;
+            r = l ^ f;
+            l = t;
+        }
+        return (l << 16) | r;
+    }
+
+    /**
+     * Assign an ID to a host and register it
+     *
+     * @param c the host
+     * @return true if registered, false if its address, or an IPv6
+     * address with the same key, already is
+     */
+    boolean register(UDPHost c) {
+        if(byAddress.putIfAbsent(c.getKey(), c) != null) {
+            return false;
+        }
+        while(true) {
+            long id = permute(counter.getAndIncrement()) & 0xffffffffL;
+            // 0 means unassigned, and after 2^32 IDs the permutation comes
+            // around to the ones still in use
+            if(id != 0 && byID.putIfAbsent(id, c) == null) {
+                c.assignID(id);
+                ordered.add(id);
+                changed(id, c);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove a host
+     *
+     * @param c the host
+     * @return true if it was registered
+     */
+    boolean remove(UDPHost c) {
+        if(!byAddress.remove(c.getKey(), c)) {
+            return false;
+        }
+        byID.remove(c.getID(), c);
+        ordered.remove(c.getID());
+        changed(c.getID(), null);
+        return true;
+    }
+
+    /**
+     * Log a change under the next version
+     */
+    private synchronized void changed(long id, UDPHost c) {
+        long v = version + 1;
+        log[(int) (v % log.length)] = new Change(v, id, c);
+        version = v;
+    }
+
+    /**
+     * Get the current version
+     *
+     * @return version, 0 before any change
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Get the changes made after a version, oldest first, together with the
+     * version they bring the list to
+     *
+     * @param since the version
+     * @return the changes and the current version. The changes are
+     * <code>null</code> if some of them are no longer in the log or the
+     * version is not one of this registry
+     */
+    synchronized Delta delta(long since) {
+        if(since < 0 || since > version || version - since > log.length) {
+            return new Delta(version, null);
+        }
+        List<Change> changes = new ArrayList<>((int) (version - since));
+        for(long v = since + 1; v <= version; v++) {
+            changes.add(log[(int) (v % log.length)]);
+        }
+        return new Delta(version, changes);
+    }
+
+    /**
+     * Get registered hosts in order of ID
+     *
+     * @param after ID to start after, 0 for the first page
+     * @param count maximum number of hosts
+     * @return the hosts
+     */
+    List<UDPHost> page(long after, int count) {
+        List<UDPHost> hosts = new ArrayList<>(Math.min(count, 256));
+        for(Long id : ordered.tailSet(after, false)) {
+            if(hosts.size() >= count) {
+                break;
+            }
+            UDPHost c = byID.get(id);
+            if(c != null) {
+                hosts.add(c);
+            }
+        }
+        return hosts;
+    }
+
+    UDPHost get(SocketAddress addr) {
+        long key = PeerKey.of(addr);
+        UDPHost c = byAddress.get(key);
+        return c != null && PeerKey.equal(c.getKey(), c.getSocketAddress(),
+                                          key, addr) ? c : null;
+    }
+
+    UDPHost get(long id) {
+        return byID.get(id);
+    }
+
+    /**
+     * Get the registered hosts. Registrations and removals made meanwhile
+     * may or may not be seen
+     *
+     * @return a new list of the hosts
+     */
+    List<UDPHost> hosts() {
+        return byAddress.values();
+    }
+
+    int size() {
+        return byAddress.size();
+    }
+
+    /**
+     * Changes since some version, and the version they lead to
+     */
+    static class Delta {
+        final long version;
+
+        /**
+         * The changes, <code>null</code> if the whole list has to be sent
+         */
+        final List<Change> changes;
+
+        Delta(long version, List<Change> changes) {
+            this.version = version;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * A registration, or a removal when there is no host
+     */
+    static class Change {
+        final long version;
+        final long id;
+        final UDPHost host;
+
+        Change(long version, long id, UDPHost host) {
+            this.version = version;
+            this.id = id;
+            this.host = host;
+        }
+    }
+}
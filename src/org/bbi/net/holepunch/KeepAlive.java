@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import org.bbi.net.SockUDP;
+import org.bbi.net.UDPHost;
+import org.bbi.tools.HashedWheelTimer;
+import org.bbi.tools.Log;
+
+/**
+ * <p>Keepalives that hold a NAT binding open, to the rendezvous server or to
+ * a peer. Every keepalive in the process is sent from the thread of one
+ * shared {@link HashedWheelTimer} whose tick is {@link #COALESCE_MS}, so
+ * keepalives that fall due within the same tick go out together on one
+ * wakeup, however many bindings are held.</p>
+ *
+ * <p>The interval can be changed while the keepalive runs, for instance
+ * once the binding timeout of the NAT has been measured with
+ * {@link BindingProbe}. The new interval applies from the next
+ * keepalive.</p>
+ *
+ * @author wira
+ */
+public class KeepAlive implements HashedWheelTimer.Task {
+    /**
+     * Tick of the shared timer, keepalives due within one tick are sent
+     * together
+     */
+    public static long COALESCE_MS = 500;
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static HashedWheelTimer timer;
+
+    private final SockUDP sock;
+    private final SocketAddress addr;
+    private final String message;
+    private volatile long interval;
+    private volatile boolean stopped = false;
+
+    private KeepAlive(SockUDP sock, SocketAddress addr, String message,
+                      long interval) {
+        this.sock = sock;
+        this.addr = addr;
+        this.message = message;
+        this.interval = interval;
+    }
+
+    private static synchronized HashedWheelTimer timer() {
+        if(timer == null) {
+            timer = new HashedWheelTimer(COALESCE_MS, WHEEL_SIZE);
+            timer.start();
+        }
+        return timer;
+    }
+
+    /**
+     * Start sending {@link org.bbi.net.Frame#KEEPALIVE KEEPALIVE} frames to
+     * a host
+     *
+     * @param sock socket whose binding is held
+     * @param addr address of the host
+     * @param interval time between keepalives in milliseconds
+     * @return the keepalive
+     */
+    public static KeepAlive start(SockUDP sock, SocketAddress addr,
+                                  long interval) {
+        return start(sock, addr, null, interval);
+    }
+
+    /**
+     * Start writing a message to a host, for hosts that need to hear
+     * something they understand, like the rendezvous server
+     *
+     * @param sock socket whose binding is held
+     * @param addr address of the host
+     * @param message message to write, <code>null</code> to send
+     * {@link org.bbi.net.Frame#KEEPALIVE KEEPALIVE} frames
+     * @param interval time between keepalives in milliseconds
+     * @return the keepalive
+     */
+    public static KeepAlive start(SockUDP sock, SocketAddress addr,
+                                  String message, long interval) {
+        KeepAlive k = new KeepAlive(sock, addr, message, interval);
+        timer().schedule(k, System.currentTimeMillis() + interval);
+        return k;
+    }
+
+    @Override
+    public long expire(long now) {
+        if(stopped) {
+            return 0;
+        }
+        try {
+            if(message == null) {
+                sock.keepAlive(addr);
+            } else {
+                sock.write(addr, message);
+            }
+        } catch(IOException ioe) {
+            Log.d(2, this + ": " + ioe);
+        }
+        return now + interval;
+    }
+
+    /**
+     * Change the time between keepalives
+     *
+     * @param interval time in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    public String toString() {
+        return "KeepAlive[" + UDPHost.sockAddress(addr) + " " + interval +
+               "ms]";
+    }
+}
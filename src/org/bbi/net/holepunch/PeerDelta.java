@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.bbi.net.UDPHost;
+
+/**
+ * <p>Binary form of a change to the peer list, sent in reply to
+ * <code>!delta</code> and <code>!page</code>. All numbers are big
+ * endian:</p>
+ *
+ * <pre>
+ * version 8   registry version the reply brings the list up to
+ * flags   1   FULL: replace the list, PAGE: a page of the list
+ * next    4   ID to ask for the next page after, 0 if this is the last
+ * count   4   number of entries
+ * entries:
+ *   id    4
+ *   op    1   1: add, 0: remove (nothing follows)
+ *   alen  1   4 or 16, followed by the public address
+ *   port  2   public port
+ *   plen  1   followed by the private HOST:PORT in UTF-8
+ * </pre>
+ *
+ * @author wira
+ */
+class PeerDelta {
+    static final int FULL = 0x01;
+    static final int PAGE = 0x02;
+
+    private static final int ADD = 1;
+    private static final int REMOVE = 0;
+
+    final long version;
+    final int flags;
+    final long next;
+    final List<UDPHost> added = new ArrayList<>();
+    final List<Long> removed = new ArrayList<>();
+
+    private PeerDelta(long version, int flags, long next) {
+        this.version = version;
+        this.flags = flags;
+        this.next = next;
+    }
+
+    /**
+     * Encode registry changes, removals are the ones without a host
+     *
+     * @param version version the changes bring the list up to
+     * @param flags {@link #FULL} and {@link #PAGE} flags
+     * @param next cursor of the next page, 0 for none
+     * @param changes the changes
+     * @return the encoded delta
+     */
+    static byte[] encode(long version, int flags, long next,
+                         List<ClientRegistry.Change> changes) {
+        int size = 17;
+        List<byte[]> priv = new ArrayList<>(changes.size());
+        for(ClientRegistry.Change c : changes) {
+            size += 5;
+            if(c.host != null) {
+                byte[] p = c.host.getPrivateSocketAddress()
+                        .getBytes(StandardCharsets.UTF_8);
+                priv.add(p);
+                size += 4 + address(c.host).getAddress().getAddress().length
+                        + p.length;
+            }
+        }
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putLong(version);
+        b.put((byte) flags);
+        b.putInt((int) next);
+        b.putInt(changes.size());
+        int i = 0;
+        for(ClientRegistry.Change c : changes) {
+            b.putInt((int) c.id);
+            if(c.host == null) {
+                b.put((byte) REMOVE);
+                continue;
+            }
+            InetSocketAddress pub = address(c.host);
+            byte[] a = pub.getAddress().getAddress();
+            byte[] p = priv.get(i++);
+            b.put((byte) ADD);
+            b.put((byte) a.length);
+            b.put(a);
+            b.putShort((short) pub.getPort());
+            b.put((byte) p.length);
+            b.put(p);
+        }
+        return b.array();
+    }
+
+    /**
+     * Encode hosts as additions
+     */
+    static byte[] encode(long version, int flags, long next,
+                         Iterable<UDPHost> hosts) {
+        List<ClientRegistry.Change> changes = new ArrayList<>();
+        for(UDPHost c : hosts) {
+            // still registering, it comes with the next delta
+            if(c.getID() != 0) {
+                changes.add(new ClientRegistry.Change(version, c.getID(), c));
+            }
+        }
+        return encode(version, flags, next, changes);
+    }
+
+    private static InetSocketAddress address(UDPHost c) {
+        return (InetSocketAddress) c.getSocketAddress();
+    }
+
+    /**
+     * Decode a delta
+     *
+     * @param data the encoded delta
+     * @return the delta
+     * @throws IOException if the delta is malformed
+     */
+    static PeerDelta decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer b = ByteBuffer.wrap(data);
+            PeerDelta d = new PeerDelta(b.getLong(), b.get() & 0xff,
+                                        b.getInt() & 0xffffffffL);
+            int n = b.getInt();
+            for(int i = 0; i < n; i++) {
+                long id = b.getInt() & 0xffffffffL;
+                if(b.get() == REMOVE) {
+                    d.removed.add(id);
+                    continue;
+                }
+                byte[] a = new byte[b.get() & 0xff];
+                b.get(a);
+                int port = b.getShort() & 0xffff;
+                byte[] p = new byte[b.get() & 0xff];
+                b.get(p);
+                UDPHost c = new UDPHost(
+                        new InetSocketAddress(InetAddress.getByAddress(a), port),
+                        new String(p, StandardCharsets.UTF_8));
+                c.assignID(id);
+                d.added.add(c);
+            }
+            return d;
+        } catch(BufferUnderflowException | IllegalArgumentException |
+              ArrayIndexOutOfBoundsException e) {
+            throw new IOException("malformed peer delta: " + e);
+        }
+    }
+
+    /**
+     * Apply the delta to a peer list keyed by ID
+     *
+     * @param peers the peer list
+     */
+    void applyTo(Map<Long, UDPHost> peers) {
+        if((flags & FULL) != 0) {
+            peers.clear();
+        }
+        for(UDPHost c : added) {
+            peers.put(c.getID(), c);
+        }
+        for(Long id : removed) {
+            peers.remove(id);
+        }
+    }
+}
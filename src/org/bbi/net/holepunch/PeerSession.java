@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import org.bbi.net.FileDownloadServer;
+import org.bbi.net.Progress;
+import org.bbi.net.SockUDP;
+import org.bbi.net.UDPHost;
+
+/**
+ * <p>A path to a peer, punched or relayed, used directly for file transfers
+ * so the rendezvous server stays out of the data path. Either side can push
+ * files with {@link #putf(String, Progress) putf} to the other's
+ * {@link #getf(String, Progress) getf}, or one side can
+ * {@link #serve(String, Progress) serve} a directory and the other
+ * {@link #get(String, String, Progress) get} from it, the same as with a
+ * UDP {@link FileDownloadServer}.</p>
+ *
+ * <p>The NAT bindings on the path close when nothing crosses them for a
+ * while, which can happen in the middle of a transfer when one side is
+ * busy reading files or the other only receives. While the session is
+ * open, a {@link KeepAlive} sends the peer a
+ * {@link org.bbi.net.Frame#KEEPALIVE KEEPALIVE} frame every
+ * {@link #KEEPALIVE_MS}, or at the interval measured for the NAT.</p>
+ *
+ * <p>Everything the session sends and receives goes on its own stream,
+ * {@link #STREAM}, so it does not take the datagrams the rendezvous server
+ * sends to the same socket, and a served directory is only served to the
+ * peer.</p>
+ *
+ * @author wira
+ */
+public class PeerSession {
+    /**
+     * Time between keepalives when the binding timeout of the NAT is not
+     * known, well under that of common NATs
+     */
+    public static long KEEPALIVE_MS = 15000;
+
+    /**
+     * Stream the sessions are on, both sides must use the same
+     */
+    public static int STREAM = 0x5053;
+
+    private final SockUDP sock;
+    private final SocketAddress peer;
+    private final KeepAlive keepalive;
+
+    /**
+     * Open a session and start sending keepalives every
+     * {@link #KEEPALIVE_MS}
+     *
+     * @param sock socket the path was punched from, or a relay view of it
+     * @param peer address of the peer on the path
+     */
+    public PeerSession(SockUDP sock, SocketAddress peer) {
+        this(sock, peer, KEEPALIVE_MS);
+    }
+
+    /**
+     * Open a session and start sending keepalives
+     *
+     * @param sock socket the path was punched from, or a relay view of it
+     * @param peer address of the peer on the path
+     * @param interval time between keepalives in milliseconds
+     */
+    public PeerSession(SockUDP sock, SocketAddress peer, long interval) {
+        this.sock = sock.stream(STREAM);
+        this.peer = peer;
+        keepalive = KeepAlive.start(sock, peer, interval);
+    }
+
+    /**
+     * Send files or directories to the peer, which has to be in
+     * {@link #getf(String, Progress) getf}
+     *
+     * @param fileName file or directory to send
+     * @param p progress handle to use (can be null)
+     * @throws IOException if an I/O exception occurs
+     */
+    public void putf(String fileName, Progress p) throws IOException {
+        sock.putf(peer, fileName, p);
+    }
+
+    /**
+     * Receive the files the peer sends with
+     * {@link #putf(String, Progress) putf}
+     *
+     * @param destDir destination directory for the received files
+     * @param p progress handle to use (can be null)
+     * @throws IOException if an I/O exception occurs
+     */
+    public void getf(String destDir, Progress p) throws IOException {
+        sock.getf(peer, destDir, p);
+    }
+
+    /**
+     * Serve a directory to the peer until the socket is closed. Requests
+     * from other hosts are not answered
+     *
+     * @param root root directory, the peer won't be able to access a higher
+     * level
+     * @param p progress handle to use (can be null)
+     * @throws IOException if an I/O exception occurs
+     */
+    public void serve(String root, Progress p) throws IOException {
+        FileDownloadServer.wait(sock, peer, root, p);
+    }
+
+    /**
+     * Fetch a file or directory from a peer that is serving one
+     *
+     * @param path path on the peer, relative to the directory it is in
+     * @param destDir destination directory for the received files
+     * @param p progress handle to use (can be null)
+     * @throws IOException if an I/O exception occurs
+     */
+    public void get(String path, String destDir, Progress p)
+            throws IOException {
+        sock.write(peer, "get " + path);
+        sock.getf(peer, destDir, p);
+    }
+
+    /**
+     * Stop the keepalives. The socket is left open
+     */
+    public void close() {
+        keepalive.stop();
+    }
+
+    public boolean isClosed() {
+        return keepalive.isStopped();
+    }
+
+    public KeepAlive getKeepAlive() {
+        return keepalive;
+    }
+
+    public SockUDP getSocket() {
+        return sock;
+    }
+
+    public SocketAddress getPeer() {
+        return peer;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerSession[" + UDPHost.sockAddress(peer) + "]";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.net.holepunch;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.bbi.tools.CoarseClock;
+
+/**
+ * <p>Stateless cookies that a host has to echo back to register, so a flood
+ * of registrations from spoofed addresses costs the server one HMAC and one
+ * small reply each, and no registry entry. The cookie is a truncated
+ * HMAC-SHA256 of the host's public address and the current period of
+ * {@link #PERIOD_MS}, under a key picked at random per server. A cookie
+ * from the current or the previous period is accepted, nothing is kept
+ * about the cookies handed out.</p>
+ *
+ * <p>Cookies are made and checked on the receive threads, each with its own
+ * {@link Mac}.</p>
+ *
+ * @author wira
+ */
+class RegistrationCookie {
+    /**
+     * Length of a cookie period
+     */
+    static long PERIOD_MS = 30000;
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(key);
+                return m;
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    RegistrationCookie() {
+        byte[] k = new byte[32];
+        new SecureRandom().nextBytes(k);
+        key = new SecretKeySpec(k, "HmacSHA256");
+    }
+
+    /**
+     * Make the cookie of a host for the current period
+     *
+     * @param addr public address of the host
+     * @return the cookie, in hex
+     */
+    String make(SocketAddress addr) {
+        return make(addr, CoarseClock.millis() / PERIOD_MS);
+    }
+
+    private String make(SocketAddress addr, long period) {
+        InetSocketAddress a = (InetSocketAddress) addr;
+        Mac m = macs.get();
+        ByteBuffer p = ByteBuffer.allocate(10);
+        p.putLong(period);
+        p.putShort((short) a.getPort());
+        m.update(p.array());
+        m.update(a.getAddress().getAddress());
+        return String.format("%016X", ByteBuffer.wrap(m.doFinal()).getLong());
+    }
+
+    /**
+     * Check a cookie a host echoed back
+     *
+     * @param addr public address of the host
+     * @param cookie the cookie
+     * @return true if it was made for the host in this period or the last
+     */
+    boolean check(SocketAddress addr, String cookie) {
+        long period = CoarseClock.millis() / PERIOD_MS;
+        return cookie.equalsIgnoreCase(make(addr, period)) ||
+               cookie.equalsIgnoreCase(make(addr, period - 1));
+    }
+}
@@ -24,7 +24,9 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import org.bbi.net.ConnectivityEngine;
 import org.bbi.net.Payload;
 import org.bbi.net.UDPHost;
 import org.bbi.net.SockUDP;
@@ -36,19 +38,32 @@ import org.bbi.tools.Log;
  * @author wira
  */
 public class UDPClient {
+    /**
+     * Time between keepalives to the server until the binding timeout of
+     * the NAT is known
+     */
+    public static long KEEPALIVE_MS = 20000;
+    
+    /**
+     * Part of the measured binding timeout to send keepalives at
+     */
+    public static double KEEPALIVE_FRACTION = 0.9;
+    
     private final DatagramSocket s;
     private final SockUDP sock;
     private final SocketAddress server;
     private final SocketAddress local;
     private final int localPort;
-    private List<UDPHost> peers;
-    private SocketAddress peer;
+    private final ConcurrentHashMap<Long, UDPHost> peers;
+    private volatile long peersVersion = 0;
+    private volatile SocketAddress peer;
+    private volatile ConnectivityEngine.Check punch;
+    private volatile SockUDP relayed;
+    private KeepAlive keepalive;
     private long id;
     private boolean console;
     private boolean active;
     
-    public static final int HOLEPUNCH_PACKET_INTERVAL_MS = 1000;
-    
     public UDPClient(SocketAddress server, int recvTimeout) throws SocketException {
         this.server = server;
         s = new DatagramSocket(0);
@@ -56,16 +71,13 @@ public class UDPClient {
         //s.setSoTimeout(recvTimeout);
         this.local = s.getLocalSocketAddress();
         localPort = s.getLocalPort();
-        peers = new ArrayList<>();
+        peers = new ConcurrentHashMap<>();
     }
     
     public void connect(boolean c) throws IOException, NumberFormatException {
         this.console = c;
-        Payload p;
         String[] tokens;
-        writeServer("!register " + UDPHost.sockAddress(local));
-        p = new Payload(sock.read(server));
-        String d = p.decode();
+        String d = register("!register " + UDPHost.sockAddress(local));
         tokens = d.split("\\s+");
         if(!tokens[0].equals(UDPServer.PROTO_PREFIX + "#id")) {
             throw new IOException("unknown registration response: " + d);
@@ -73,6 +85,7 @@ public class UDPClient {
         id = Long.parseLong(tokens[1], 16);
         Log.d(0, "id=" + String.format("%08X", id));
         active = true;
+        keepAlive();
         if(console) {
             (new Thread(new Reader(s))).start();
         }
@@ -84,6 +97,9 @@ public class UDPClient {
                 if(cmd.equals("!quit")) {
                     writeServer(cmd);
                     active = false;
+                    keepalive.stop();
+                } else if(cmd.equals("!delta")) {
+                    updatePeers();
                 } else {
                     writeServer(cmd);
                 }
@@ -91,21 +107,244 @@ public class UDPClient {
         }
     }
     
+    /**
+     * Send a registration and read the reply, echoing the cookie the server
+     * asks for first if it does
+     * 
+     * @param cmd the registration
+     * @return the reply
+     * @throws IOException if an I/O exception occurs
+     */
+    private String register(String cmd) throws IOException {
+        writeServer(cmd);
+        String d = (new Payload(sock.read(server))).decode();
+        String[] tokens = d.split("\\s+");
+        if(tokens[0].equals(UDPServer.PROTO_PREFIX + "#cookie")) {
+            writeServer(cmd + " cookie=" + tokens[1]);
+            d = (new Payload(sock.read(server))).decode();
+        }
+        return d;
+    }
+    
+    /**
+     * Start the keepalives to the server, which hold both the NAT binding
+     * and the registration
+     */
+    private synchronized void keepAlive() {
+        if(keepalive == null) {
+            keepalive = KeepAlive.start(sock, server, 
+                    UDPServer.PROTO_PREFIX + "!alive", KEEPALIVE_MS);
+        }
+    }
+    
+    /**
+     * Get the time between keepalives, to the server and on peer sessions
+     * 
+     * @return time in milliseconds
+     */
+    public synchronized long getKeepAliveInterval() {
+        return keepalive != null ? keepalive.getInterval() : KEEPALIVE_MS;
+    }
+    
+    /**
+     * Measure the binding timeout of the NAT in the background with a
+     * {@link BindingProbe}, then send keepalives at 
+     * {@link #KEEPALIVE_FRACTION} of it, and never less often than the
+     * server needs to keep the registration. Until then, and if the
+     * measurement fails, keepalives go every {@link #KEEPALIVE_MS}
+     */
+    public void discoverKeepAlive() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long timeout = (new BindingProbe(server)).discover();
+                    if(timeout < 0) {
+                        Log.d(0, "binding probe: no answer from the server");
+                        return;
+                    }
+                    if(timeout == 0) {
+                        timeout = BindingProbe.FIRST_GAP_MS / 2;
+                    }
+                    long interval = (long) (KEEPALIVE_FRACTION * Math.min(
+                            timeout, UDPServer.PURGE_INACTIVITY_MS));
+                    Log.d(0, "binding timeout " + timeout + 
+                             "ms, keepalive every " + interval + "ms");
+                    keepAlive();
+                    synchronized(UDPClient.this) {
+                        keepalive.setInterval(interval);
+                    }
+                } catch(IOException ioe) {
+                    Log.err("binding probe: " + ioe);
+                }
+            }
+        }, "UDPClient-BindingProbe");
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    /**
+     * Register with the server and, given a peer ID, get the peer's public
+     * and private endpoints in the same round trip. The server tells the
+     * peer about this host at the same time, and both start checking each
+     * other's endpoints. Wait for the check with
+     * {@link #awaitPeer(long) awaitPeer}
+     * 
+     * @param target ID of the peer to connect to, 0 to only register
+     * @return the peer, <code>null</code> if none was asked for or the
+     * server does not know it
+     * @throws IOException if an I/O exception occurs
+     */
+    public UDPHost rendezvous(long target) throws IOException {
+        String d = register("!connect " + UDPHost.sockAddress(local) + 
+                    (target != 0 ? String.format(" %08X", target) : ""));
+        String[] tokens = d.split("\\s+");
+        if(!tokens[0].equals(UDPServer.PROTO_PREFIX + "#connect")) {
+            throw new IOException("unknown connect response: " + d);
+        }
+        id = Long.parseLong(tokens[1], 16);
+        Log.d(0, "id=" + String.format("%08X", id));
+        active = true;
+        keepAlive();
+        if(tokens.length < 5) {
+            return null;
+        }
+        UDPHost host = addPeer(tokens, 2);
+        punch(host);
+        return host;
+    }
+    
+    /**
+     * Make a peer of an ID, public and private endpoint, as sent in
+     * <code>#connect</code> and <code>#peer</code>
+     */
+    private UDPHost addPeer(String[] tokens, int i) {
+        UDPHost host = new UDPHost(UDPHost.parseAddress(tokens[i + 1]),
+                                   tokens[i + 2]);
+        host.assignID(Long.parseLong(tokens[i], 16));
+        peers.put(host.getID(), host);
+        return host;
+    }
+    
+    /**
+     * Start checking both endpoints of a peer
+     */
+    private void punch(UDPHost host) {
+        List<SocketAddress> candidates = new ArrayList<>();
+        candidates.add(host.getSocketAddress());
+        try {
+            candidates.add(UDPHost.parseAddress(
+                    host.getPrivateSocketAddress()));
+        } catch(IllegalArgumentException e) {
+            Log.d(1, "bad private address " + host.getPrivateSocketAddress());
+        }
+        punch = sock.checkConnectivity(candidates);
+    }
+    
+    /**
+     * Wait for the hole punching started by a rendezvous or a peer's
+     * request to settle
+     * 
+     * @param timeout maximum time to wait in milliseconds, 0 to wait until
+     * the check times out
+     * @return the endpoint of the peer with the lowest round trip time,
+     * <code>null</code> if none answered
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SocketAddress awaitPeer(long timeout) throws InterruptedException {
+        ConnectivityEngine.Check c = punch;
+        if(c == null) {
+            return null;
+        }
+        SocketAddress a = c.await(timeout);
+        if(a != null) {
+            peer = a;
+        }
+        return a;
+    }
+    
+    /**
+     * Ask the server to relay between this host and a peer, for when hole
+     * punching fails. The peer is told the session at the same time and
+     * can pick it up with {@link #getRelay() getRelay}
+     * 
+     * @param target ID of the peer
+     * @return view of the socket that reaches the peer through the server
+     * @throws IOException if the server refused or an I/O exception occurs
+     */
+    public SockUDP relay(long target) throws IOException {
+        writeServer(String.format("!relay %08X", target));
+        String d = (new Payload(sock.read(server))).decode();
+        String[] tokens = d.split("\\s+");
+        if(!tokens[0].equals(UDPServer.PROTO_PREFIX + "#relay")) {
+            throw new IOException("relay refused: " + d);
+        }
+        return relayTo(tokens);
+    }
+    
+    /**
+     * Make a relay view of the session in a <code>#relay</code> message
+     */
+    private SockUDP relayTo(String[] tokens) {
+        SocketAddress addr = UDPHost.parseAddress(tokens[3]);
+        peer = addr;
+        relayed = sock.relay(server, (int) Long.parseLong(tokens[1], 16), 
+                             addr);
+        return relayed;
+    }
+    
+    /**
+     * Get the view of the socket that reaches the peer through the server,
+     * once this host asked for a relay or a peer did
+     * 
+     * @return the view, <code>null</code> if there is no relay
+     */
+    public SockUDP getRelay() {
+        return relayed;
+    }
+    
+    /**
+     * Wait for the path to the peer and open a session on it for direct
+     * transfers. A punched path is preferred, the relay is used if hole
+     * punching found none
+     * 
+     * @param timeout maximum time to wait for hole punching in 
+     * milliseconds, 0 to wait until the check times out
+     * @return the session, <code>null</code> if there is no path to the peer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public PeerSession openSession(long timeout) throws InterruptedException {
+        SocketAddress a = awaitPeer(timeout);
+        if(a != null) {
+            return new PeerSession(sock, a, getKeepAliveInterval());
+        }
+        SockUDP r = relayed;
+        if(r != null) {
+            return new PeerSession(r, peer, getKeepAliveInterval());
+        }
+        return null;
+    }
+    
     public void writeServer(String str) throws IOException {
         sock.write(server, UDPServer.PROTO_PREFIX + str);
     }
     
+    /**
+     * Ask the server for the changes to the peer list since the last
+     * update. The reader thread applies them when they arrive
+     * 
+     * @throws IOException if an I/O exception occurs
+     */
+    public void updatePeers() throws IOException {
+        writeServer("!delta " + peersVersion);
+    }
+    
     public boolean isError(String str) {
         return str.startsWith(UDPServer.PROTO_PREFIX + "#error");
     }
     
     public UDPHost getPeerByID(long id) {
-        for(UDPHost host : peers) {
-            if(host.getID() == id) {
-                return host;
-            }
-        }
-        return null;
+        return peers.get(id);
     }
     
     class Reader implements Runnable {
@@ -131,9 +370,9 @@ public class UDPClient {
                 try {
                     d = (new Payload(socket.read(server))).decode();
                     if(d.equals(UDPServer.PROTO_PREFIX + "#list")) {
-                        p = socket.get(server, null);
+                        p = socket.recv(server, null);
                         Log.d(0, "UDPClient$Reader: " + p.decode());
-                        peers = new ArrayList<>();
+                        peers.clear();
                         for(String l : p.decode().trim().split("\\r?\\n")) {
                             if(l.startsWith(UDPServer.PROTO_PREFIX)) {
                                 continue;
@@ -144,15 +383,39 @@ public class UDPClient {
                                     tokens[2]
                             );
                             host.assignID(Long.parseLong(tokens[0], 16));
-                            peers.add(host);
+                            peers.put(host.getID(), host);
+                        }
+                    } else if(d.equals(UDPServer.PROTO_PREFIX + "#delta") ||
+                              d.equals(UDPServer.PROTO_PREFIX + "#page")) {
+                        PeerDelta delta = PeerDelta.decode(
+                                socket.recv(server, null).get());
+                        delta.applyTo(peers);
+                        if((delta.flags & PeerDelta.PAGE) == 0) {
+                            peersVersion = delta.version;
                         }
+                        Log.d(0, "UDPClient$Reader: " + peers.size() + 
+                                 " peers at version " + delta.version + 
+                                 ", +" + delta.added.size() + 
+                                 " -" + delta.removed.size() +
+                                 (delta.next != 0 ? 
+                                  String.format(", next page %08X", delta.next) :
+                                  ""));
                     } else {
                         Log.d(0, "UDPClient$Reader: " + d);
                         tokens = d.split("\\s+");
                         switch(tokens[0]) {
                             case UDPServer.PROTO_PREFIX + "#request":
                                 long id = Long.parseLong(tokens[1], 16);
-                                
+                                UDPHost host = peers.get(id);
+                                if(host != null) {
+                                    punch(host);
+                                }
+                                break;
+                            case UDPServer.PROTO_PREFIX + "#peer":
+                                punch(addPeer(tokens, 1));
+                                break;
+                            case UDPServer.PROTO_PREFIX + "#relay":
+                                relayTo(tokens);
                                 break;
                             case UDPServer.PROTO_PREFIX + ".peering":
                                 // success!
@@ -171,30 +434,4 @@ public class UDPClient {
             Log.d(0, "UDPClient$Reader: exit");
         }
     }
-    
-    class HolePuncher implements Runnable {
-        private final SocketAddress target;
-        private boolean quit = false;
-        
-        public HolePuncher(SocketAddress target) {
-            this.target = target;
-        }
-        
-        public void quit() {
-            quit = true;
-        }
-        
-        @Override
-        public void run() {
-            while(!quit) {
-                try {
-                    sock.write(target, UDPServer.PROTO_PREFIX + ".peering "+
-                                       String.format("%08X", id));
-                    Thread.sleep(HOLEPUNCH_PACKET_INTERVAL_MS);
-                } catch(Exception e) {
-                    Log.err("HolePuncher: " + e);
-                }
-            }
-        }
-    }
 }
@@ -16,200 +16,916 @@
 package org.bbi.net.holepunch;
 
 import org.bbi.net.UDPHost;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.bbi.net.Payload;
+import org.bbi.net.PeerKey;
+import org.bbi.net.Relay;
 import org.bbi.net.SockUDP;
+import org.bbi.tools.HashedWheelTimer;
 import org.bbi.tools.Log;
+import org.bbi.tools.TokenBucket;
 
 /**
+ * <p>Rendezvous server for UDP hole punching. Hosts register their private
+ * address, get an ID, and ask for the list of other hosts or for a peer to
+ * be told about them.</p>
+ *
+ * <p>One thread receives every command and hands it to one of
+ * {@link #WORKERS} single thread workers picked by the sender's
+ * {@link PeerKey}. The commands of one host are always handled by the same
+ * worker, in the order they arrived, while different hosts are handled in
+ * parallel. A host costs an entry in the registry and one on the expiry
+ * wheel, not a thread.</p>
+ *
+ * <p>Besides the full text <code>!list</code>, a host can keep its peer list
+ * up to date with <code>!delta VERSION</code>, which replies with the
+ * changes since the version of the list the host has, or with the whole
+ * list if the host is too far behind, and read the list a page at a time
+ * with <code>!page AFTER COUNT</code>. Both replies are binary
+ * {@link PeerDelta}s.</p>
+ *
+ * <p><code>!connect PRIVATE [ID]</code> does the work of
+ * <code>!register</code>, <code>!list</code> and <code>!request</code> in a
+ * single round trip: the reply is <code>#connect ID</code> followed by the
+ * ID, public and private endpoint of the peer (or <code>none</code> if
+ * there is no such peer), and the peer is sent <code>#peer</code> with
+ * those of the host at the same moment.</p>
+ *
+ * <p>Peers that cannot punch through to each other, like two behind
+ * symmetric NATs, can ask for <code>!relay ID</code>. The server opens a
+ * {@link Relay} session between the two, replies
+ * <code>#relay SESSION ID PUBLIC</code> with the peer's ID and public
+ * endpoint and sends the peer the same about the host. From then on the
+ * shards forward the session's {@link org.bbi.net.Frame#RELAY RELAY} frames
+ * between the two hosts on the receive thread, without handing them to the
+ * workers. A session closes after {@link #RELAY_IDLE_MS} without
+ * traffic. A host has at most {@link #RELAY_SESSIONS_PER_HOST} sessions
+ * open: asking again for a peer it has an open session with gets the same
+ * session, asking for another peer closes its oldest. Its
+ * <code>!relay</code> commands go through a token bucket of its own,
+ * {@link #RELAY_RATE} and {@link #RELAY_BURST}, so it cannot flood peers
+ * with notifications.</p>
+ *
+ * <p>A host keeps its NAT binding, and its registration, with
+ * <code>!alive</code>, which is not answered. To measure how long its NAT
+ * keeps a binding, a host sends <code>!natprobe TOKEN GAP</code> from a
+ * spare socket, registered or not, and the server answers
+ * <code>#natprobe TOKEN</code> after <code>GAP</code> milliseconds from its
+ * probe port, {@link #PROBE_PORT_OFFSET} above its own, or from its own
+ * port if <code>direct</code> follows. See {@link BindingProbe}. A probe
+ * from a socket that is not registered needs a cookie like a
+ * registration, so the delayed answers only go to addresses that asked for
+ * them, and probes from a source prefix go through a bucket of their own,
+ * {@link #PROBE_RATE} and {@link #PROBE_BURST}.</p>
+ *
+ * <p>Admission is decided on the receive thread, before a command costs a
+ * worker anything. Commands from registered hosts and <code>!ping</code>
+ * are high priority. Everything else, new registrations above all, is low
+ * priority and has to get past a token bucket for its source prefix (/24
+ * or /64) and a global one. A new host must also echo a
+ * {@link RegistrationCookie}: a <code>!register</code>,
+ * <code>!connect</code> or <code>!natprobe</code> without a valid
+ * <code>cookie=C</code> token is
+ * answered <code>#cookie C</code> and nothing else happens. When a
+ * worker falls behind, low priority commands for it are shed once
+ * {@link #SHED_LOW_PENDING} are waiting, high priority ones only at
+ * {@link #SHED_HIGH_PENDING}. What was dropped and why is counted, kernel
+ * drops included, see {@link #getStats()}.</p>
+ *
+ * <p>With more than one shard, the server opens that many channels on the
+ * same port with <code>SO_REUSEPORT</code>, each with its own receive loop,
+ * and the kernel spreads hosts over them by address. The shards share the
+ * registry and the workers. They are bound to the same address and port,
+ * so whichever shard a datagram to a host is sent from, the host sees it
+ * coming from the address it registered with; replies and peer
+ * notifications go out of the shard that received the command.</p>
  *
  * @author wira
  */
 public class UDPServer implements Runnable {
     public static final long   PURGE_INACTIVITY_MS = 60000;
-    public static final long   PURGE_PERIOD_MS = 5000; // check every 5 secs
+    public static final long   EXPIRY_TICK_MS = 100;
+    public static final int    EXPIRY_WHEEL_SIZE = 1024;
     public static final String PROTO_PREFIX = "magix01";
     
+    /**
+     * Low priority commands let in per second from one source prefix, and
+     * the most that can come in a burst
+     */
+    public static double PREFIX_RATE = 20;
+    public static double PREFIX_BURST = 100;
+    
+    /**
+     * Low priority commands let in per second from everywhere, and the most
+     * that can come in a burst
+     */
+    public static double GLOBAL_RATE = 5000;
+    public static double GLOBAL_BURST = 10000;
+    
+    /**
+     * Number of per prefix buckets, prefixes that hash alike share one
+     */
+    public static int PREFIX_BUCKETS = 4096;
+    
+    /**
+     * Require new hosts to echo a cookie to register
+     */
+    public static boolean REGISTER_COOKIE = true;
+    
+    /**
+     * NAT binding probes answered per second for one source prefix, and
+     * the most that can come in a burst, registered or not
+     */
+    public static double PROBE_RATE = 1;
+    public static double PROBE_BURST = 20;
+    
+    /**
+     * Commands waiting for a worker past which low priority ones are shed
+     */
+    public static int SHED_LOW_PENDING = 256;
+    
+    /**
+     * Commands waiting for a worker past which every command is shed
+     */
+    public static int SHED_HIGH_PENDING = 4096;
+    
+    /**
+     * Receive buffer asked of the kernel for each shard, so bursts wait
+     * there instead of being dropped
+     */
+    public static int RECEIVE_BUFFER_SIZE = 4 << 20;
+    
+    /**
+     * Port of the NAT binding probes, above the server port
+     */
+    public static int PROBE_PORT_OFFSET = 1;
+    
+    /**
+     * Longest gap a NAT binding probe may ask for
+     */
+    public static long PROBE_GAP_MAX_MS = 600000;
+    
+    /**
+     * Time a relay session is kept open without traffic
+     */
+    public static long RELAY_IDLE_MS = 30000;
+    
+    /**
+     * Most relay sessions a host can have open at once
+     */
+    public static int RELAY_SESSIONS_PER_HOST = 2;
+    
+    /**
+     * <code>!relay</code> commands a host may send per second
+     */
+    public static double RELAY_RATE = 0.5;
+    
+    /**
+     * <code>!relay</code> commands a host may send in a burst
+     */
+    public static double RELAY_BURST = 4;
+    
+    /**
+     * Number of command workers, rounded up to a power of two
+     */
+    public static int WORKERS = 4;
+    
+    /**
+     * Most hosts in a <code>!page</code> reply
+     */
+    public static int PAGE_MAX = 1024;
+    
     private int port;
-    private Map<String, UDPHost> clients;
-    private Map<String, ClientHandler> clientHandlers;
-    private boolean quit = false;
-    private DatagramSocket s;
-    private SockUDP sock;
-    private PurgeThread t;
-    private ExecutorService pool = Executors.newFixedThreadPool(8);
+    private final ClientRegistry registry;
+    private volatile boolean quit = false;
+    private final int shards;
+    private final List<Closeable> sockets = new ArrayList<>();
+    private final HashedWheelTimer expiry;
+    private final ExecutorService[] workers;
+    private final AtomicInteger[] pending;
+    private final TokenBucket global;
+    private final TokenBucket[] prefixes;
+    private final TokenBucket[] probePrefixes;
+    private final RegistrationCookie cookies = new RegistrationCookie();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong cookiesSent = new AtomicLong();
+    private final AtomicLong shedLow = new AtomicLong();
+    private final AtomicLong shedHigh = new AtomicLong();
+    private final List<SockUDP> shardSocks = new ArrayList<>();
+    private final Relay relay = new Relay();
+    private final ConcurrentHashMap<Long, RelayQuota> relayQuotas =
+            new ConcurrentHashMap<>();
+    private SockUDP probe;
     
     public UDPServer(int port) {
+        this(port, 1);
+    }
+    
+    /**
+     * @param port port to listen on
+     * @param shards number of receive loops, each on its own socket. Where
+     * <code>SO_REUSEPORT</code> is not available, one is used
+     */
+    public UDPServer(int port, int shards) {
         this.port = port;
-        clients = new HashMap<>();
-        clientHandlers = new HashMap<>();
-        t = new PurgeThread();
+        this.shards = Math.max(1, shards);
+        registry = new ClientRegistry();
+        expiry = new HashedWheelTimer(EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE);
+        int n = 1;
+        while(n < WORKERS) {
+            n <<= 1;
+        }
+        workers = new ExecutorService[n];
+        pending = new AtomicInteger[n];
+        for(int i = 0; i < n; i++) {
+            workers[i] = Executors.newSingleThreadExecutor();
+            pending[i] = new AtomicInteger();
+        }
+        global = new TokenBucket(GLOBAL_RATE, GLOBAL_BURST);
+        prefixes = new TokenBucket[PREFIX_BUCKETS];
+        probePrefixes = new TokenBucket[PREFIX_BUCKETS];
+        for(int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = new TokenBucket(PREFIX_RATE, PREFIX_BURST);
+            probePrefixes[i] = new TokenBucket(PROBE_RATE, PROBE_BURST);
+        }
     }
     
     public void quit() throws IOException {
         quit = true;
-        pool.shutdown();
-        t.quit();
-        s.close();
+        for(ExecutorService w : workers) {
+            w.shutdown();
+        }
+        expiry.stop();
+        synchronized(sockets) {
+            for(Closeable c : sockets) {
+                c.close();
+            }
+        }
     }
     
-    private synchronized List<SocketAddress> getSocketAddressList() {
-        List<SocketAddress> list = new ArrayList<>();
-        for(UDPHost c : clients.values()) {
-            list.add(c.getSocketAddress());
+    private String[] getClientList() {
+        List<String> list = new ArrayList<>(registry.size());
+        for(UDPHost c : registry.hosts()) {
+            if(c.getID() == 0) {
+                // still registering
+                continue;
+            }
+            list.add(String.format("%08X", c.getID()) + " " +
+                     c.getPublicSocketAddress() + " " + 
+                     c.getPrivateSocketAddress());
         }
-        return list;
+        return list.toArray(new String[list.size()]);
     }
     
-    private synchronized String[] getClientList() {
-        String[] list = new String[clients.size()];
-        int i = 0;
-        for(UDPHost c : clients.values()) {
-            list[i] = String.format("%08X", c.getID()) + " " +
-                      c.getPublicSocketAddress() + " " + 
-                      c.getPrivateSocketAddress();
-            i++;
+    private UDPHost getClient(SocketAddress socketAddress) {
+        return registry.get(socketAddress);
+    }
+    
+    private UDPHost getClientByID(long ID) {
+        return registry.get(ID);
+    }
+    
+    /**
+     * Remove every host inactive for longer than {@link #PURGE_INACTIVITY_MS}
+     * now, instead of when the expiry wheel gets to it
+     */
+    public void purgeInactiveClients() {
+        for(UDPHost c : registry.hosts()) {
+            if(c.getDuration() > PURGE_INACTIVITY_MS) {
+                removeClient(c);
+            }
         }
-        return list;
     }
     
-    private synchronized void addClient(UDPHost c) {
-        clients.put(c.getPublicSocketAddress(), c);
+    /**
+     * Get the relay that forwards between peers
+     * 
+     * @return the relay
+     */
+    public Relay getRelay() {
+        return relay;
+    }
+    
+    /**
+     * Get the number of low priority commands, and of <code>!relay</code>
+     * and <code>!natprobe</code> commands, refused by the rate limits
+     * 
+     * @return number of commands
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
     }
     
-    private synchronized UDPHost getClient(SocketAddress socketAddress) {
-        return clients.get(UDPHost.sockAddress(socketAddress));
+    /**
+     * Get the number of registrations answered with a cookie instead of
+     * being let in, for coming without one or with a wrong one
+     * 
+     * @return number of registrations
+     */
+    public long getCookiesSentCount() {
+        return cookiesSent.get();
     }
     
-    private synchronized UDPHost getClientByID(long ID) {
-        for(UDPHost c : clients.values()) {
-            if(c.getID() == ID) {
-                return c;
+    /**
+     * Get the number of commands shed because their worker was behind
+     * 
+     * @param high true for high priority commands, false for low
+     * @return number of commands
+     */
+    public long getShedCount(boolean high) {
+        return high ? shedHigh.get() : shedLow.get();
+    }
+    
+    /**
+     * Get the number of datagrams the shards dropped for being over their
+     * receive queue quota
+     * 
+     * @return number of datagrams
+     */
+    public long getQueueDropCount() {
+        long n = 0;
+        synchronized(shardSocks) {
+            for(SockUDP sock : shardSocks) {
+                n += sock.getDropCount();
             }
         }
-        return null;
+        return n;
     }
     
-    private synchronized void assignRandomID(UDPHost client) {
-        Random r = new Random();
-        boolean ok = false;
-        long id = 0;
-        while(!ok) {
-            id = r.nextInt() & 0xffffffffL;
-            if(id == 0) {
-                continue;
-            }
-            ok = true;
-            for(UDPHost c : clients.values()) {
-                if(id == c.getID()) {
-                    ok = false;
+    /**
+     * Get the number of datagrams the kernel dropped on the server port, for
+     * a full receive buffer, from <code>/proc/net/udp</code> and 
+     * <code>/proc/net/udp6</code>
+     * 
+     * @return number of datagrams, -1 where the kernel does not say
+     */
+    public long getKernelDropCount() {
+        long n = -1;
+        String hex = String.format(":%04X", port);
+        for(String table : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            try (BufferedReader r = new BufferedReader(new FileReader(table))) {
+                String l = r.readLine();
+                while((l = r.readLine()) != null) {
+                    String[] f = l.trim().split("\\s+");
+                    // local address, and drops in the last column
+                    if(f.length > 12 && f[1].endsWith(hex)) {
+                        n = Math.max(n, 0) + Long.parseLong(f[f.length - 1]);
+                    }
                 }
+            } catch(IOException | NumberFormatException e) {
+                
             }
         }
-        client.assignID(id);
+        return n;
     }
     
-    public synchronized void purgeInactiveClients() {
-        String addr;
-        Iterator it = clients.entrySet().iterator();
-        while(it.hasNext()) {
-            Map.Entry<String, UDPHost> entry = (Map.Entry) it.next();
-            UDPHost c = entry.getValue();
-            if(c.getDuration() > PURGE_INACTIVITY_MS) {
-                Log.d(1, this + ": removing " + c.getFormattedID() + " "
-                        + c.getPublicSocketAddress());
-                addr = c.getPublicSocketAddress();
-                clientHandlers.get(addr).quit();
-                clientHandlers.remove(addr);
-                it.remove();
-            }
+    /**
+     * Get every drop and shed counter on one line
+     * 
+     * @return the counters
+     */
+    public String getStats() {
+        return "kernel=" + getKernelDropCount() + 
+               " queue=" + getQueueDropCount() +
+               " ratelimited=" + getRateLimitedCount() +
+               " cookies=" + getCookiesSentCount() + 
+               " shedlow=" + getShedCount(false) +
+               " shedhigh=" + getShedCount(true) +
+               " relay=" + relay.getDropCount();
+    }
+    
+    public void removeClient(UDPHost c) {
+        if(registry.remove(c)) {
+            Log.d(1, this + ": removing " + c.getFormattedID() + " "
+                            + c.getPublicSocketAddress());
+        }
+        RelayQuota q = relayQuotas.get(c.getID());
+        if(q != null && relayQuotas.remove(c.getID(), q)) {
+            q.closeAll();
+        }
+    }
+    
+    /**
+     * Get the index of the worker that handles the commands of a host
+     */
+    private int worker(SocketAddress addr) {
+        long h = PeerKey.of(addr) * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (workers.length - 1);
+    }
+    
+    /**
+     * Take a low priority command out of the bucket of its source prefix
+     * and the global one
+     */
+    private boolean admit(SocketAddress addr) {
+        return prefix(prefixes, addr).take(1) && global.take(1);
+    }
+    
+    /**
+     * Get the bucket of the source prefix (/24 or /64) of an address
+     */
+    private static TokenBucket prefix(TokenBucket[] buckets, 
+                                      SocketAddress addr) {
+        byte[] a = ((InetSocketAddress) addr).getAddress().getAddress();
+        int h = 0;
+        for(int i = 0; i < (a.length == 4 ? 3 : 8); i++) {
+            h = h * 31 + a[i];
         }
+        h *= 0x9e3779b1;
+        return buckets[(h >>> 16) % buckets.length];
+    }
+    
+    /**
+     * Take the cookie off a registration or probe, if it has one
+     * 
+     * @return the cookie, <code>null</code> if there is none
+     */
+    private static String cookie(String[] tokens) {
+        String last = tokens[tokens.length - 1];
+        return last.startsWith("cookie=") ? last.substring(7) : null;
     }
     
-    public synchronized void removeClient(UDPHost c) {
-        Log.d(1, this + ": removing " + c.getFormattedID() + " "
-                        + c.getPublicSocketAddress());
-        String addr = c.getPublicSocketAddress();
-        clients.remove(addr);
-        clientHandlers.get(addr).quit();
-        clientHandlers.remove(addr);
+    /**
+     * Get the <code>SO_REUSEPORT</code> option, which only exists as a
+     * standard option from Java 9 on
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Open the shard sockets
+     */
+    private List<SockUDP> bind() throws IOException {
+        List<SockUDP> socks = new ArrayList<>();
+        SocketOption<Boolean> reuse = shards > 1 ? reusePort() : null;
+        if(reuse != null) {
+            for(int i = 0; i < shards; i++) {
+                DatagramChannel ch = DatagramChannel.open();
+                synchronized(sockets) {
+                    sockets.add(ch);
+                }
+                if(!ch.supportedOptions().contains(reuse)) {
+                    ch.close();
+                    break;
+                }
+                ch.setOption(reuse, true);
+                ch.setOption(StandardSocketOptions.SO_RCVBUF, 
+                             RECEIVE_BUFFER_SIZE);
+                ch.bind(new InetSocketAddress(port));
+                socks.add(new SockUDP(ch));
+            }
+        }
+        if(socks.isEmpty()) {
+            if(shards > 1) {
+                Log.err(this + ": SO_REUSEPORT not available, one shard");
+            }
+            DatagramSocket s = new DatagramSocket(port);
+            synchronized(sockets) {
+                sockets.add(s);
+            }
+            s.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            socks.add(new SockUDP(s));
+        }
+        return socks;
     }
     
     @Override
     public void run() {
         Log.d(0, this + ": run");
+        final List<SockUDP> socks;
         try {
-            s = new DatagramSocket(port);
-            sock = new SockUDP(s);
+            socks = bind();
         } catch(IOException ioe) {
             Log.err(this + ": failed to bind");
             return;
         }
-        Log.d(0, this + ": listening");
-        (new Thread(t)).start();
-        Payload p = null;
-        String[] tokens;
-        SocketAddress addr = null;
-
+        for(SockUDP sock : socks) {
+            sock.setRelay(relay);
+        }
+        synchronized(shardSocks) {
+            shardSocks.addAll(socks);
+        }
+        try {
+            DatagramSocket s = new DatagramSocket(port + PROBE_PORT_OFFSET);
+            synchronized(sockets) {
+                sockets.add(s);
+            }
+            probe = new SockUDP(s);
+        } catch(IOException ioe) {
+            Log.err(this + ": no probe port, binding probes answered " +
+                    "from the server port: " + ioe);
+        }
+        Log.d(0, this + ": listening, " + socks.size() + " shard(s)");
+        expiry.start();
+        for(int i = 1; i < socks.size(); i++) {
+            final SockUDP sock = socks.get(i);
+            (new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive(sock);
+                }
+            }, "UDPServer-shard-" + i)).start();
+        }
+        receive(socks.get(0));
+        Log.d(0, this + ": exit");
+    }
+    
+    /**
+     * Receive loop of a shard
+     */
+    private void receive(final SockUDP sock) {
         while(!quit) {
             try {
                 DatagramPacket packet;
-                while((packet = sock.listen(getSocketAddressList())) == null) {
-                    //sock.clearBuffer(2000);
-                }            
-                tokens = (new Payload(packet)).decode().split("\\s+");
-                addr = packet.getSocketAddress();
-                UDPHost c = getClient(addr);
-                if(c != null) {
-                    Log.err("ERROR listen handling active client, shouldn't happen");
-                    reply(addr, "#error something terrible has happened");
-                } else if(tokens[0].equals(PROTO_PREFIX + "!register")) {
-                    try {
-                        c = new UDPHost(addr, tokens[1]);
-                        assignRandomID(c);
-                        addClient(c);
-                        Log.d(1, this + ": new " + c.getFormattedID() + " "
-                                 + c.getPublicSocketAddress());
-                        write(addr, "#id " + c.getFormattedID()); 
-                        ClientHandler handler = new ClientHandler(addr);
-                        clientHandlers.put(UDPHost.sockAddress(addr), handler);
-                        (new Thread(handler)).start();                        
-                    } catch(Exception e) {
-                        Log.err(this + ": init registration error " + e);
-                        e.printStackTrace();
-                        write(addr, "#error registration failed");
+                while((packet = sock.listenExcept(null)) == null) {
+                    
+                }
+                final SocketAddress addr = packet.getSocketAddress();
+                String[] t = (new Payload(packet)).decode().split("\\s+");
+                boolean high = registry.get(addr) != null ||
+                               t[0].equals(PROTO_PREFIX + "!ping");
+                if(!high) {
+                    if(!admit(addr)) {
+                        rateLimited.incrementAndGet();
+                        continue;
+                    }
+                    if(REGISTER_COOKIE && 
+                            (t[0].equals(PROTO_PREFIX + "!register") ||
+                             t[0].equals(PROTO_PREFIX + "!connect") ||
+                             t[0].equals(PROTO_PREFIX + "!natprobe"))) {
+                        String c = cookie(t);
+                        if(c == null || !cookies.check(addr, c)) {
+                            cookiesSent.incrementAndGet();
+                            sock.write(addr, PROTO_PREFIX + "#cookie " + 
+                                       cookies.make(addr));
+                            continue;
+                        }
+                        t = Arrays.copyOf(t, t.length - 1);
+                    }
+                }
+                int w = worker(addr);
+                if(pending[w].get() >= 
+                        (high ? SHED_HIGH_PENDING : SHED_LOW_PENDING)) {
+                    (high ? shedHigh : shedLow).incrementAndGet();
+                    continue;
+                }
+                final String[] tokens = t;
+                final AtomicInteger queued = pending[w];
+                queued.incrementAndGet();
+                workers[w].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(sock, addr, tokens);
+                        } finally {
+                            queued.decrementAndGet();
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException ree) {
+                // shutting down
+            } catch(Exception e) {
+                if(!quit) {
+                    Log.err(this + ": error on receive: " + e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handle a command, on the worker of the host that sent it
+     */
+    private void handle(SockUDP sock, SocketAddress addr, String[] tokens) {
+        UDPHost c = getClient(addr);
+        try {
+            if(tokens[0].equals(PROTO_PREFIX + "!natprobe")) {
+                natprobe(sock, addr, tokens);
+                return;
+            }
+            if(c == null) {
+                if(tokens[0].equals(PROTO_PREFIX + "!register")) {
+                    c = register(sock, addr, tokens);
+                    if(c != null) {
+                        write(sock, addr, "#id " + c.getFormattedID()); 
+                    }
+                } else if(tokens[0].equals(PROTO_PREFIX + "!connect")) {
+                    c = register(sock, addr, tokens);
+                    if(c != null) {
+                        connect(sock, c, tokens);
                     }
                 } else {
-                    write(addr, "#error who are you");
+                    write(sock, addr, "#error who are you");
                 }
+                return;
+            }
+            c.updateLastAccessed();
+            Log.d(3, this + ": " + UDPHost.sockAddress(addr) + " \"" + 
+                     tokens[0] + "\"");
+            switch(tokens[0]) {
+                case PROTO_PREFIX + "!register":
+                    write(sock, addr, "#error already registered");
+                    break;
+                case PROTO_PREFIX + "!connect":
+                    connect(sock, c, tokens);
+                    break;
+                case PROTO_PREFIX + "!list":
+                    String[] list = getClientList();
+                    StringBuilder str = new StringBuilder();
+                    for(String l : list) {
+                        str.append(l);
+                        str.append("\n");
+                    }
+                    if(str.length() > 0) {
+                        str.deleteCharAt(str.length()-1);
+                        write(sock, addr, "#list");
+                        reply(sock, addr, "#ok " + list.length + "\n"
+                                       + str.toString());
+                    } else {
+                        write(sock, addr, "#error no clients");
+                    }                        
+                    break;
+                case PROTO_PREFIX + "!delta":
+                    long since;
+                    try {
+                        since = tokens.length > 1 ? 
+                                Long.parseLong(tokens[1]) : 0;
+                    } catch(NumberFormatException nfe) {
+                        write(sock, addr, "#error bad version");
+                        break;
+                    }
+                    ClientRegistry.Delta changes = registry.delta(since);
+                    byte[] delta = changes.changes == null ?
+                            PeerDelta.encode(changes.version, PeerDelta.FULL,
+                                             0, registry.hosts()) :
+                            PeerDelta.encode(changes.version, 0, 0,
+                                             changes.changes);
+                    write(sock, addr, "#delta");
+                    reply(sock, addr, delta);
+                    break;
+                case PROTO_PREFIX + "!page":
+                    long after;
+                    int count;
+                    try {
+                        after = tokens.length > 1 ?
+                                Long.parseLong(tokens[1], 16) : 0;
+                        count = tokens.length > 2 ?
+                                Integer.parseInt(tokens[2]) : PAGE_MAX;
+                    } catch(NumberFormatException nfe) {
+                        write(sock, addr, "#error bad page");
+                        break;
+                    }
+                    count = Math.max(1, Math.min(count, PAGE_MAX));
+                    List<UDPHost> page = registry.page(after, count);
+                    long next = page.size() < count ? 0 :
+                                page.get(page.size() - 1).getID();
+                    write(sock, addr, "#page");
+                    reply(sock, addr, PeerDelta.encode(registry.version(),
+                            PeerDelta.PAGE, next, page));
+                    break;
+                case PROTO_PREFIX + "!request":
+                    long reqID = Long.parseLong(tokens[1], 16);
+                    UDPHost peer = getClientByID(reqID);
+                    if(peer == null) {
+                        write(sock, addr, "#error no such peer");
+                    } else {
+                        write(sock, addr, "#ok");
+                        write(sock, peer.getSocketAddress(), 
+                              "#request " + c.getFormattedID());
+                    }
+                    break;
+                case PROTO_PREFIX + "!relay":
+                    relay(sock, c, Long.parseLong(tokens[1], 16));
+                    break;
+                case PROTO_PREFIX + "!alive":
+                    break;
+                case PROTO_PREFIX + "!ping":
+                    write(sock, addr, "#pong");
+                    break;
+                case PROTO_PREFIX + "!quit":
+                    write(sock, addr, "#ok");
+                    removeClient(c);
+                    break;
+                default:
+                    write(sock, addr, "#error");
+            }
+        } catch(IOException e) {
+            Log.d(0, this + ": I/O fatal exception " + e);
+            if(c != null) {
+                removeClient(c);
+            }
+        } catch(Exception e) {
+            Log.d(0, this + ": exception " + e);
+            try {
+                write(sock, addr, "#error");
+            } catch(IOException ioe) {
                 
-            } catch(Exception e) {
-                Log.err(this + ": error on receive: " + e);
-                // e.printStackTrace();
             }
         }
-        Log.d(0, this + ": exit");
     }
     
-    public void reply(SocketAddress addr, String data) 
+    /**
+     * Register a host
+     * 
+     * @return the host, <code>null</code> if registration failed and the
+     * host was told so
+     */
+    private UDPHost register(SockUDP sock, SocketAddress addr, String[] tokens) 
+            throws IOException {
+        try {
+            if(tokens[1].getBytes(StandardCharsets.UTF_8).length > 255) {
+                throw new IOException("private address too long");
+            }
+            UDPHost c = new UDPHost(addr, tokens[1]);
+            if(!registry.register(c)) {
+                throw new IOException("already registered");
+            }
+            expiry.schedule(new Expiry(c), c.getLastAccessed()
+                            + PURGE_INACTIVITY_MS);
+            Log.d(1, this + ": new " + c.getFormattedID() + " "
+                     + c.getPublicSocketAddress());
+            return c;
+        } catch(Exception e) {
+            Log.err(this + ": init registration error " + e);
+            write(sock, addr, "#error registration failed");
+            return null;
+        }
+    }
+    
+    /**
+     * Answer <code>!connect PRIVATE [ID]</code>, which registers a host and
+     * introduces it to a peer in one round trip. The host gets its ID and
+     * both endpoints of the peer, and the peer gets both endpoints of the
+     * host at the same time, so the two can start punching right away
+     */
+    private void connect(SockUDP sock, UDPHost c, String[] tokens) 
+            throws IOException {
+        SocketAddress addr = c.getSocketAddress();
+        if(tokens.length < 3) {
+            write(sock, addr, "#connect " + c.getFormattedID());
+            return;
+        }
+        UDPHost peer = getClientByID(Long.parseLong(tokens[2], 16));
+        if(peer == null || peer == c) {
+            write(sock, addr, "#connect " + c.getFormattedID() + " none");
+            return;
+        }
+        write(sock, addr, "#connect " + c.getFormattedID() + " " + 
+                          endpoints(peer));
+        write(sock, peer.getSocketAddress(), "#peer " + endpoints(c));
+    }
+    
+    /**
+     * Answer <code>!relay ID</code> by opening a relay session between a
+     * host and a peer, or finding the one they have, and telling both its
+     * number
+     */
+    private void relay(SockUDP sock, UDPHost c, long id) throws IOException {
+        SocketAddress addr = c.getSocketAddress();
+        RelayQuota q = relayQuotas.get(c.getID());
+        if(q == null) {
+            RelayQuota n = new RelayQuota();
+            q = relayQuotas.putIfAbsent(c.getID(), n);
+            if(q == null) {
+                q = n;
+            }
+        }
+        if(!q.bucket.take(1)) {
+            rateLimited.incrementAndGet();
+            write(sock, addr, "#error too many relay requests");
+            return;
+        }
+        UDPHost peer = getClientByID(id);
+        if(peer == null || peer == c) {
+            write(sock, addr, "#error no such peer");
+            return;
+        }
+        int session;
+        synchronized(q) {
+            session = q.find(id);
+            if(session == 0) {
+                session = relay.open(addr, peer.getSocketAddress());
+                q.add(session, id);
+                scheduleRelayExpiry(session);
+            }
+        }
+        Log.d(1, this + ": relay " + String.format("%08X", session) + " " +
+                 c.getFormattedID() + " " + peer.getFormattedID());
+        write(sock, addr, String.format("#relay %08X ", session) + 
+                          peer.getFormattedID() + " " + 
+                          peer.getPublicSocketAddress());
+        write(sock, peer.getSocketAddress(), 
+              String.format("#relay %08X ", session) + c.getFormattedID() +
+              " " + c.getPublicSocketAddress());
+    }
+    
+    /**
+     * Close a relay session once it has been idle for
+     * {@link #RELAY_IDLE_MS}
+     */
+    private void scheduleRelayExpiry(final int session) {
+        expiry.schedule(new HashedWheelTimer.Task() {
+            @Override
+            public long expire(long now) {
+                long idle = relay.getIdleTime(session);
+                if(idle < 0) {
+                    return 0;
+                }
+                if(idle < RELAY_IDLE_MS) {
+                    return now + RELAY_IDLE_MS - idle;
+                }
+                Log.d(1, UDPServer.this + ": relay " + 
+                         String.format("%08X", session) + " idle, closed");
+                relay.close(session);
+                return 0;
+            }
+        }, System.currentTimeMillis() + RELAY_IDLE_MS);
+    }
+    
+    /**
+     * Answer <code>!natprobe TOKEN GAP [direct]</code> once the gap has
+     * passed, from the probe port unless asked otherwise. Probes over the
+     * bucket of their source prefix are dropped
+     */
+    private void natprobe(SockUDP sock, final SocketAddress addr, 
+                          String[] tokens) {
+        if(!prefix(probePrefixes, addr).take(1)) {
+            rateLimited.incrementAndGet();
+            return;
+        }
+        final String token = tokens[1];
+        long gap = Math.min(Long.parseLong(tokens[2]), PROBE_GAP_MAX_MS);
+        final SockUDP from = tokens.length > 3 && tokens[3].equals("direct") 
+                             || probe == null ? sock : probe;
+        expiry.schedule(new HashedWheelTimer.Task() {
+            @Override
+            public long expire(long now) {
+                try {
+                    write(from, addr, "#natprobe " + token);
+                } catch(IOException ioe) {
+                    Log.d(1, UDPServer.this + ": natprobe " + ioe);
+                }
+                return 0;
+            }
+        }, System.currentTimeMillis() + gap);
+    }
+    
+    private static String endpoints(UDPHost c) {
+        return c.getFormattedID() + " " + c.getPublicSocketAddress() + " " +
+               c.getPrivateSocketAddress();
+    }
+    
+    /**
+     * Send a reply of any length. It is sent with 
+     * {@link SockUDP#send(SocketAddress, byte[], org.bbi.net.Progress) send},
+     * which does not wait for the host, so a slow host does not hold up the
+     * worker it shares with others
+     * 
+     * @param sock socket to send through
+     * @param addr host to reply to
+     * @param data the reply
+     * @throws IOException if an I/O exception occurs
+     */
+    private void reply(SockUDP sock, SocketAddress addr, String data) 
             throws IOException {
         Log.d(1, this + ": " + UDPHost.sockAddress(addr) + " \"" + data + "\"");
-        sock.put(addr, (PROTO_PREFIX + data).getBytes(StandardCharsets.UTF_8), null);
+        sock.send(addr, (PROTO_PREFIX + data).getBytes(StandardCharsets.UTF_8), null);
     }
     
-    public void write(SocketAddress addr, String data) 
+    private void reply(SockUDP sock, SocketAddress addr, byte[] data) 
+            throws IOException {
+        Log.d(1, this + ": " + UDPHost.sockAddress(addr) + " " + 
+                 data.length + " bytes");
+        sock.send(addr, data, null);
+    }
+    
+    private void write(SockUDP sock, SocketAddress addr, String data) 
             throws IOException {
         Log.d(1, this + ": " + UDPHost.sockAddress(addr) + " \"" + data + "\"");
         sock.write(addr, PROTO_PREFIX + data);
@@ -220,147 +936,78 @@ public class UDPServer implements Runnable {
         return "UDPServer[" + port + "]";
     }
     
-    class ClientHandler implements Runnable {
-        private SocketAddress addr;
-        private boolean quit = false;
+    /**
+     * Relay sessions a host has opened, oldest first, and its
+     * <code>!relay</code> bucket
+     */
+    private class RelayQuota {
+        final TokenBucket bucket = new TokenBucket(RELAY_RATE, RELAY_BURST);
+        private final int[] sessions = 
+                new int[Math.max(1, RELAY_SESSIONS_PER_HOST)];
+        private final long[] peers = new long[sessions.length];
+        private int next;
         
-        public ClientHandler(SocketAddress addr) {
-            this.addr = addr;
+        /**
+         * Find the open session with a peer
+         * 
+         * @return session number, 0 if there is none
+         */
+        int find(long peer) {
+            for(int i = 0; i < sessions.length; i++) {
+                if(sessions[i] != 0 && peers[i] == peer &&
+                        relay.getIdleTime(sessions[i]) >= 0) {
+                    return sessions[i];
+                }
+            }
+            return 0;
         }
         
-        public void quit() {
-            quit = true;
+        /**
+         * Keep a new session, closing the oldest if there are too many
+         */
+        void add(int session, long peer) {
+            if(sessions[next] != 0) {
+                relay.close(sessions[next]);
+            }
+            sessions[next] = session;
+            peers[next] = peer;
+            next = (next + 1) % sessions.length;
         }
         
-        @Override 
-        public void run() {
-            Payload command;
-            String[] tokens;
-            UDPHost c = null;
-            Log.d(0, this + ": run");
-            while(!quit) {
-                try {
-                    // ALERT!!! RESOURCE LEAK!!! ALERT!!!
-                    // this thing can get stuck forever if the client doesn't 
-                    // quit cleanly
-                    command = new Payload(sock.read(addr));
-                    c = getClient(addr);
-                    if(c != null) {
-                        c.updateLastAccessed();
-                    } else {
-                        write(addr, "#error timed out");
-                        quit = true;
-                        break;
-                    }
-                    Log.d(3, this + ": \"" + command.decode() + "\"");
-                    tokens = command.decode().split("\\s+");
-                    switch(tokens[0]) {
-                        /*
-                        case PROTO_PREFIX + "!register":
-                            Log.d(1, this + ": register request from " + 
-                                     UDPHost.sockAddress(addr));
-                            try {
-                                String privateSocketAddress = tokens[1];
-                                if(c != null) {
-                                    write(addr, "#error already registered");
-                                } else {
-                                    c = new UDPHost(addr, privateSocketAddress);
-                                    assignRandomID(c);
-                                    addClient(c);
-                                    Log.d(1, this + ": new " + c.getFormattedID() + " "
-                                             + c.getPublicSocketAddress());
-                                    write(addr, "#id " + c.getFormattedID());
-                                }
-                            } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
-                                write(addr, "#error registration failed");
-                            }
-                            break;
-                        */
-                        case PROTO_PREFIX + "!list":
-                            String[] list = getClientList();
-                            StringBuilder str = new StringBuilder();
-                            for(String l : list) {
-                                str.append(l);
-                                str.append("\n");
-                            }
-                            if(str.length() > 0) {
-                                str.deleteCharAt(str.length()-1);
-                                write(addr, "#list");
-                                reply(addr, "#ok " + list.length + "\n"
-                                               + str.toString());
-                            } else {
-                                write(addr, "#error no clients");
-                            }                        
-                            break;
-                        case PROTO_PREFIX + "!request":
-                            if(c == null) {
-                                write(addr, "#error not registered");
-                                break;
-                            }
-                            long reqID = Long.parseLong(tokens[1], 16);
-                            UDPHost peer = getClientByID(reqID);
-                            if(peer == null) {
-                                write(addr, "#error no such peer");
-                            } else {
-                                write(addr, "#ok");
-                                write(peer.getSocketAddress(), 
-                                      "#request " + c.getFormattedID());
-                            }
-                            break;
-                        case PROTO_PREFIX + "!ping":
-                            write(addr, "#pong");
-                            break;
-                        case PROTO_PREFIX + "!quit":
-                            if(c == null) {
-                                write(addr, "#error not registered");
-                            } else {
-                                write(addr, "#ok");
-                                quit = true;
-                            }
-                            break;
-                        default:
-                            write(addr, "#error");
-                    }
-                } catch(IOException e) {
-                    Log.d(0, this + ": I/O fatal exception " + e);
-                    if(c != null) {
-                        removeClient(c);
-                    }
-                    quit = true;
-                } catch(Exception e) {
-                    e.printStackTrace();
-                    Log.d(0, this + ": exception " + e);
+        synchronized void closeAll() {
+            for(int i = 0; i < sessions.length; i++) {
+                if(sessions[i] != 0) {
+                    relay.close(sessions[i]);
+                    sessions[i] = 0;
                 }
             }
-            if(c != null) {
-                removeClient(c);
-            }
-            Log.d(0, this + ": exit");
-        }
-        
-        @Override
-        public String toString() {
-            return "UDPServer$ClientHandler[" + UDPHost.sockAddress(addr) + "]";
         }
     }
     
-    class PurgeThread implements Runnable {
-        private boolean stop = false;
+    /**
+     * Removes a host once it has been inactive for
+     * {@link #PURGE_INACTIVITY_MS}. Activity only moves the timestamp, the
+     * task checks it when its deadline comes and asks for a later one if the
+     * host was heard from meanwhile
+     */
+    class Expiry implements HashedWheelTimer.Task {
+        private final UDPHost c;
         
-        @Override
-        public void run() {
-            while(!stop) {
-                try {
-                    purgeInactiveClients();
-                    Thread.sleep(PURGE_PERIOD_MS);
-                } catch(Exception e) {
-                    e.printStackTrace();
-                }
-            }
+        public Expiry(UDPHost c) {
+            this.c = c;
         }
         
-        public void quit() {
-            stop = true;
+        @Override
+        public long expire(long now) {
+            if(registry.get(c.getSocketAddress()) != c) {
+                return 0;
+            }
+            long deadline = c.getLastAccessed() + PURGE_INACTIVITY_MS;
+            if(deadline > now) {
+                return deadline;
+            }
+            removeClient(c);
+            return 0;
         }
-    }                
+    }
 }
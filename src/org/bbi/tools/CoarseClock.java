@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+/**
+ * Wall clock time read from a field that a daemon thread refreshes every
+ * {@link #RESOLUTION_MS} milliseconds, for timestamps taken on every packet
+ * where a <code>System.currentTimeMillis</code> call each time is not
+ * worth it. The time may be up to one resolution behind
+ *
+ * @author wira
+ */
+public class CoarseClock {
+    public static final long RESOLUTION_MS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(RESOLUTION_MS);
+                    } catch(InterruptedException ie) {
+                        return;
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+        }, "CoarseClock");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private CoarseClock() {
+
+    }
+
+    /**
+     * Get the time
+     *
+     * @return milliseconds since the epoch, at most one resolution old
+     */
+    public static long millis() {
+        return now;
+    }
+}
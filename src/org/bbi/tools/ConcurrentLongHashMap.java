@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread safe hash map with primitive <code>long</code> keys, striped over
+ * a number of {@link LongHashMap}s. Each stripe is published as a map that
+ * is never changed again: a write copies its stripe under the stripe's lock,
+ * changes the copy and publishes it in place of the old one. Reads take no
+ * lock, box nothing and allocate nothing, which suits maps looked up far
+ * more often than they are changed
+ *
+ * @author wira
+ * @param <V> value type
+ */
+public class ConcurrentLongHashMap<V> {
+    private final AtomicReferenceArray<LongHashMap<V>> stripes;
+    private final Object[] locks;
+    private final int mask;
+
+    public ConcurrentLongHashMap() {
+        this(64);
+    }
+
+    /**
+     * @param concurrency number of stripes, rounded up to a power of two.
+     * More stripes make each write copy less
+     */
+    public ConcurrentLongHashMap(int concurrency) {
+        int n = 1;
+        while(n < concurrency) {
+            n <<= 1;
+        }
+        stripes = new AtomicReferenceArray<>(n);
+        locks = new Object[n];
+        for(int i = 0; i < n; i++) {
+            stripes.set(i, new LongHashMap<V>(4));
+            locks[i] = new Object();
+        }
+        mask = n - 1;
+    }
+
+    /**
+     * Get the stripe index of a key, from other bits than the ones
+     * {@link LongHashMap} indexes its table by
+     */
+    private int stripe(long key) {
+        long h = key * 0xc4ceb9fe1a85ec53L;
+        return (int) (h >>> 48) & mask;
+    }
+
+    /**
+     * Get the value of a key, without locking
+     *
+     * @param key the key
+     * @return the value, <code>null</code> if there is none
+     */
+    public V get(long key) {
+        return stripes.get(stripe(key)).get(key);
+    }
+
+    /**
+     * Set the value of a key, unless it already has one
+     *
+     * @param key the key
+     * @param value the value, must not be <code>null</code>
+     * @return the value the key already had, <code>null</code> if it had
+     * none and now has the given one
+     */
+    public V putIfAbsent(long key, V value) {
+        int i = stripe(key);
+        synchronized(locks[i]) {
+            LongHashMap<V> s = stripes.get(i);
+            V old = s.get(key);
+            if(old == null) {
+                LongHashMap<V> n = new LongHashMap<>(s);
+                n.put(key, value);
+                stripes.set(i, n);
+            }
+            return old;
+        }
+    }
+
+    /**
+     * Remove a key if it has the given value
+     *
+     * @param key the key
+     * @param value the value it must have
+     * @return true if it was removed
+     */
+    public boolean remove(long key, V value) {
+        int i = stripe(key);
+        synchronized(locks[i]) {
+            LongHashMap<V> s = stripes.get(i);
+            if(s.get(key) != value) {
+                return false;
+            }
+            LongHashMap<V> n = new LongHashMap<>(s);
+            n.remove(key);
+            stripes.set(i, n);
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of entries. Changes made meanwhile may or may not be
+     * counted
+     *
+     * @return number of entries
+     */
+    public int size() {
+        int n = 0;
+        for(int i = 0; i < stripes.length(); i++) {
+            n += stripes.get(i).size();
+        }
+        return n;
+    }
+
+    /**
+     * Get the values, one stripe at a time. Changes made meanwhile may or may
+     * not be seen
+     *
+     * @return a new list of the values
+     */
+    public List<V> values() {
+        List<V> v = new ArrayList<>();
+        for(int i = 0; i < stripes.length(); i++) {
+            v.addAll(stripes.get(i).values());
+        }
+        return v;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Hashed timing wheel (Varghese and Lauck). Deadlines are hashed by tick
+ * into a ring of buckets, and one thread advances over a bucket each tick,
+ * running the tasks that are due and leaving the ones whose deadline is
+ * whole turns of the wheel away. Scheduling and cancelling are O(1), and a
+ * tick only looks at one bucket, however many tasks are pending. Tasks run
+ * up to one tick late.</p>
+ *
+ * <p>A task returns the deadline it wants next instead of being cancelled
+ * and scheduled again, so a deadline that keeps moving, like an inactivity
+ * timeout pushed back on every packet, costs a field write when it moves
+ * and one reinsertion when its old deadline comes.</p>
+ *
+ * <p>Tasks run on the wheel thread and should not block. Times are in
+ * milliseconds since the epoch, and deadlines may come from the
+ * {@link CoarseClock}.</p>
+ *
+ * @author wira
+ */
+public class HashedWheelTimer implements Runnable {
+    private final long tickMs;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending =
+            new ConcurrentLinkedQueue<>();
+    private final long start;
+    private long tick;
+    private volatile boolean stop = false;
+    private Thread thread;
+
+    /**
+     * Something to run at a deadline
+     */
+    public interface Task {
+
+        /**
+         * Run the task
+         *
+         * @param now the time, in milliseconds
+         * @return the next deadline to run at, 0 to be done
+         */
+        long expire(long now);
+    }
+
+    /**
+     * A scheduled task
+     */
+    public static class Timeout {
+        private final Task task;
+        private long deadline;
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean cancelled = false;
+
+        Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keep the task from running again. It is dropped from the wheel
+         * when its bucket next comes around
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @param tickMs length of a tick in milliseconds
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickMs, int wheelSize) {
+        int n = 2;
+        while(n < wheelSize) {
+            n <<= 1;
+        }
+        this.tickMs = tickMs;
+        wheel = new Timeout[n];
+        mask = n - 1;
+        start = System.currentTimeMillis();
+    }
+
+    /**
+     * Start the wheel thread
+     */
+    public synchronized void start() {
+        if(thread == null) {
+            thread = new Thread(this, "HashedWheelTimer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the wheel thread. Pending tasks do not run
+     */
+    public void stop() {
+        stop = true;
+    }
+
+    /**
+     * Schedule a task. Thread safe
+     *
+     * @param task the task
+     * @param deadline time to run it at, in milliseconds
+     * @return handle to cancel the task with
+     */
+    public Timeout schedule(Task task, long deadline) {
+        Timeout t = new Timeout(task, deadline);
+        pending.add(t);
+        return t;
+    }
+
+    @Override
+    public void run() {
+        while(!stop) {
+            long due = start + (tick + 1) * tickMs;
+            long wait = due - System.currentTimeMillis();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch(InterruptedException ie) {
+                    return;
+                }
+            }
+            Timeout t;
+            while((t = pending.poll()) != null) {
+                insert(t, tick);
+            }
+            expire(System.currentTimeMillis());
+            tick++;
+        }
+    }
+
+    /**
+     * Put a task in the bucket of its deadline, or of the given tick if the
+     * deadline is before it
+     */
+    private void insert(Timeout t, long from) {
+        long ticks = Math.max(from, (t.deadline - start) / tickMs);
+        t.rounds = (ticks - from) / wheel.length;
+        int i = (int) (ticks & mask);
+        t.prev = null;
+        t.next = wheel[i];
+        if(wheel[i] != null) {
+            wheel[i].prev = t;
+        }
+        wheel[i] = t;
+    }
+
+    private void unlink(Timeout t, int i) {
+        if(t.prev == null) {
+            wheel[i] = t.next;
+        } else {
+            t.prev.next = t.next;
+        }
+        if(t.next != null) {
+            t.next.prev = t.prev;
+        }
+    }
+
+    private void expire(long now) {
+        int i = (int) (tick & mask);
+        Timeout t = wheel[i];
+        while(t != null) {
+            Timeout next = t.next;
+            if(t.cancelled) {
+                unlink(t, i);
+            } else if(t.rounds > 0) {
+                t.rounds--;
+            } else {
+                unlink(t, i);
+                long deadline = 0;
+                try {
+                    deadline = t.task.expire(now);
+                } catch(Exception e) {
+                    Log.err("HashedWheelTimer: task failed " + e);
+                }
+                if(deadline > 0 && !t.cancelled) {
+                    t.deadline = deadline;
+                    // a deadline of this tick goes to the next one
+                    insert(t, tick + 1);
+                }
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash map with primitive <code>long</code> keys. Keys and values live in
+ * two parallel arrays probed linearly, so lookups box nothing and allocate
+ * nothing, and removal shifts the following entries back instead of
+ * leaving tombstones. Not thread safe
+ *
+ * @author wira
+ * @param <V> value type
+ */
+public class LongHashMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param capacity expected number of entries
+     */
+    public LongHashMap(int capacity) {
+        int n = 4;
+        while(n * LOAD_FACTOR < capacity) {
+            n <<= 1;
+        }
+        keys = new long[n];
+        values = new Object[n];
+        mask = n - 1;
+    }
+
+    /**
+     * Copy a map
+     *
+     * @param m map to copy
+     */
+    public LongHashMap(LongHashMap<V> m) {
+        keys = m.keys.clone();
+        values = m.values.clone();
+        mask = m.mask;
+        size = m.size;
+    }
+
+    /**
+     * Spread the key bits over the table index
+     */
+    private int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int i = slot(key);
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the value of a key
+     *
+     * @param key the key
+     * @return the value, <code>null</code> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = find(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Set the value of a key
+     *
+     * @param key the key
+     * @param value the value, must not be <code>null</code>
+     * @return the previous value, <code>null</code> if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(value == null) {
+            throw new NullPointerException("null value");
+        }
+        int i = slot(key);
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size > keys.length * LOAD_FACTOR) {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * Remove a key
+     *
+     * @param key the key
+     * @return the value it had, <code>null</code> if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = find(key);
+        if(i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        size--;
+        // move back entries that probed past the hole
+        int hole = i;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(values[j] == null) {
+                break;
+            }
+            int home = slot(keys[j]);
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        return old;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while(values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Get the keys in table order
+     *
+     * @return a new array of the keys
+     */
+    public long[] keys() {
+        long[] k = new long[size];
+        int n = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(values[i] != null) {
+                k[n++] = keys[i];
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Get the values in table order
+     *
+     * @return a new list of the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> v = new ArrayList<>(size);
+        for(Object o : values) {
+            if(o != null) {
+                v.add((V) o);
+            }
+        }
+        return v;
+    }
+}
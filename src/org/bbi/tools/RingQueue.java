@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue (Dmitry Vyukov's
+ * array based design). Every slot carries a sequence number that tells
+ * producers and consumers whose turn it is, so neither <code>offer</code>
+ * nor <code>poll</code> ever allocates or takes a lock
+ *
+ * @author wira
+ * @param <T> element type
+ */
+public class RingQueue<T> {
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity minimum capacity, rounded up to a power of two
+     */
+    public RingQueue(int capacity) {
+        int size = 2;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sequence = new AtomicLongArray(size);
+        items = new AtomicReferenceArray<>(size);
+        for(int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element
+     *
+     * @param item element to add, must not be <code>null</code>
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        long pos = tail.get();
+        while(true) {
+            int i = (int) pos & mask;
+            long diff = sequence.get(i) - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(i, item);
+                    sequence.set(i, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if(diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element
+     *
+     * @return the element, or <code>null</code> if the queue is empty
+     */
+    public T poll() {
+        long pos = head.get();
+        while(true) {
+            int i = (int) pos & mask;
+            long diff = sequence.get(i) - (pos + 1);
+            if(diff == 0) {
+                if(head.compareAndSet(pos, pos + 1)) {
+                    T item = items.get(i);
+                    items.lazySet(i, null);
+                    sequence.set(i, pos + mask + 1);
+                    return item;
+                }
+                pos = head.get();
+            } else if(diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Get an estimate of the number of elements. Exact only when nobody is
+     * adding or removing at the same time
+     *
+     * @return number of elements
+     */
+    public int size() {
+        long s = tail.get() - head.get();
+        return s < 0 ? 0 : (int) Math.min(s, mask + 1);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
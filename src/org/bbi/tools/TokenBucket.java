@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 wira.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bbi.tools;
+
+/**
+ * Token bucket rate limiter. Tokens come in at a steady rate up to a burst
+ * size, and whatever is limited takes some out or is refused. Time is read
+ * from the {@link CoarseClock}, so taking a token costs a lock and a few
+ * arithmetic operations
+ *
+ * @author wira
+ */
+public class TokenBucket {
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Create a full bucket
+     *
+     * @param rate tokens per second
+     * @param burst most tokens the bucket holds
+     */
+    public TokenBucket(double rate, double burst) {
+        this.rate = rate;
+        this.burst = burst;
+        tokens = burst;
+        refilled = CoarseClock.millis();
+    }
+
+    /**
+     * Take tokens if there are enough
+     *
+     * @param n number of tokens
+     * @return false if there are not, nothing is taken then
+     */
+    public synchronized boolean take(double n) {
+        long now = CoarseClock.millis();
+        long elapsed = now - refilled;
+        if(elapsed > 0) {
+            refilled = now;
+            tokens = Math.min(burst, tokens + elapsed * rate / 1000.0);
+        }
+        if(tokens < n) {
+            return false;
+        }
+        tokens -= n;
+        return true;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public double getBurst() {
+        return burst;
+    }
+}